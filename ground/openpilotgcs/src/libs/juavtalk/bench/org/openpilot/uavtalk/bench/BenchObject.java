@@ -0,0 +1,148 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk.bench;
+
+import org.openpilot.uavtalk.UAVDataObject;
+import org.openpilot.uavtalk.UAVObjectFieldDescription;
+
+/**
+ ******************************************************************************
+ *
+ * @file       BenchObject.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      object with the payload size of a real UAVObject for the benchmarks
+ *
+ * The sizes are taken from shared/uavobjectdefinition and given as "Name:bytes"
+ * so the results name the object whose size was measured:
+ *
+ *  DebugLogSettings:1    smallest object
+ *  FlightStatus:8
+ *  GyroSensor:16
+ *  AttitudeState:28
+ *  GPSPositionSensor:40
+ *  StabilizationSettings:112
+ *  DebugLogEntry:217     biggest object
+ *
+ * Like a generated object every size has one static field table: up to four
+ * float fields followed by an uint8 array for the remaining bytes. The
+ * tables are shared by all objects of a size and do not carry their ID.
+ *
+ ****************************************************************************
+*/
+public class BenchObject extends UAVDataObject {
+
+	public final static String[] REAL_SIZES={
+		"DebugLogSettings:1",
+		"FlightStatus:8",
+		"GyroSensor:16",
+		"AttitudeState:28",
+		"GPSPositionSensor:40",
+		"StabilizationSettings:112",
+		"DebugLogEntry:217"
+	};
+
+	private final static UAVObjectFieldDescription[][] FIELDS=new UAVObjectFieldDescription[REAL_SIZES.length][];
+	static {
+		for (int i=0;i<REAL_SIZES.length;i++)
+			FIELDS[i]=fields(parseSize(REAL_SIZES[i]));
+	}
+
+	private final int objId;
+	private final String name;
+	private final UAVObjectFieldDescription[] fields;
+
+	/**
+	 * @param objId - the object ID
+	 * @param spec - "Name:bytes" as in REAL_SIZES
+	 */
+	public BenchObject(int objId,String spec) {
+		super(parseSize(spec));
+		this.objId=objId;
+		this.name=spec.substring(0,spec.indexOf(':'));
+		UAVObjectFieldDescription[] f=null;
+		for (int i=0;i<REAL_SIZES.length;i++)
+			if (parseSize(REAL_SIZES[i])==data.capacity())
+				f=FIELDS[i];
+		this.fields=(f!=null)?f:fields(data.capacity());
+		for (int i=0;i<data.capacity();i++)
+			data.put(i,(byte)(i*31+7));
+	}
+
+	public static int parseSize(String spec) {
+		return Integer.parseInt(spec.substring(spec.indexOf(':')+1));
+	}
+
+	private static UAVObjectFieldDescription[] fields(int size) {
+		int floats=Math.min(4,size/4);
+		int rest=size-floats*4;
+		UAVObjectFieldDescription[] res=new UAVObjectFieldDescription[floats+(rest>0?1:0)];
+		for (int i=0;i<floats;i++)
+			res[i]=new UAVObjectFieldDescription("Value"+i,0,(byte)i,UAVObjectFieldDescription.FIELDTYPE_FLOAT32,"",null,null);
+		if (rest>0) {
+			String[] elements=new String[rest];
+			for (int i=0;i<rest;i++)
+				elements[i]=String.valueOf(i);
+			res[floats]=new UAVObjectFieldDescription("Data",0,(byte)floats,UAVObjectFieldDescription.FIELDTYPE_UINT8,"",null,elements);
+		}
+		return res;
+	}
+
+	public int getObjID() {
+		return objId;
+	}
+
+	public String getObjName() {
+		return name;
+	}
+
+	public String getObjDescription() {
+		return "benchmark object";
+	}
+
+	public boolean isSingleInstance() {
+		return true;
+	}
+
+	public boolean isSettings() {
+		return false;
+	}
+
+	public boolean isPriority() {
+		return false;
+	}
+
+	public UAVDataObject clone(int instId) {
+		BenchObject res=new BenchObject(objId,name+":"+getDataLength());
+		res.setInstID(instId);
+		return res;
+	}
+
+	public Object getField(int fieldid,int arr_pos) {
+		return Byte.valueOf(data.get(arr_pos));
+	}
+
+	public void setField(int fieldid,int arr_pos,Object val) {
+		data.put(arr_pos,((Number)val).byteValue());
+	}
+
+	public UAVObjectFieldDescription[] getFieldDescriptions() {
+		return fields;
+	}
+
+	public void setGeneratedMetaData() {
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openpilot.uavtalk.CRC8;
+import org.openpilot.uavtalk.ValueParser;
+
+/**
+ ******************************************************************************
+ *
+ * @file       CRC8Benchmark.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      CRC8 and ValueParser throughput
+ *
+ * The bytes aux counter reports the CRC throughput in bytes per second.
+ *
+ ****************************************************************************
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class CRC8Benchmark {
+
+	@Param({"9","16","64","226","1024","4096"})
+	public int length;
+
+	private byte[] data;
+	private ByteBuffer direct;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes=0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		data=new byte[length];
+		new Random(42).nextBytes(data);
+		direct=ByteBuffer.allocateDirect(length);
+		direct.put(data);
+		direct.clear();
+	}
+
+	/** one table lookup per byte - the reference */
+	@Benchmark
+	public byte byteWise(Bytes counter) {
+		byte crc=0;
+		for (int i=0;i<length;i++)
+			crc=CRC8.byteUpdate(crc,data[i]);
+		counter.bytes+=length;
+		return crc;
+	}
+
+	@Benchmark
+	public byte arrayUpdate(Bytes counter) {
+		counter.bytes+=length;
+		return CRC8.arrayUpdate((byte)0,data,0,length);
+	}
+
+	@Benchmark
+	public byte directBufferUpdate(Bytes counter) {
+		counter.bytes+=length;
+		return CRC8.bufferUpdate((byte)0,direct,0,length);
+	}
+
+	@Benchmark
+	public int parseIntFromArr4() {
+		int res=0;
+		for (int i=0;i+4<=length;i+=4)
+			res+=ValueParser.parse_int_from_arr_4(i,data);
+		return res;
+	}
+}
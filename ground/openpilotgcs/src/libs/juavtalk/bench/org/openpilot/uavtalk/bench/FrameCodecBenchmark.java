@@ -0,0 +1,154 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openpilot.uavtalk.UAVTalkDefinitions;
+import org.openpilot.uavtalk.UAVTalkFrame;
+import org.openpilot.uavtalk.UAVTalkFrameDecoder;
+import org.openpilot.uavtalk.UAVTalkFrameEncoder;
+import org.openpilot.uavtalk.UAVTalkFrameListener;
+import org.openpilot.uavtalk.UAVTalkHelper;
+
+/**
+ ******************************************************************************
+ *
+ * @file       FrameCodecBenchmark.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      frame encode and decode throughput across real payload sizes
+ *
+ * Run with -prof gc ( the bench target does ) to get the allocation per frame
+ * as gc.alloc.rate.norm - the buffer based paths are expected to show 0.
+ *
+ ****************************************************************************
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+	private final static int FRAMES_PER_STREAM=64;
+
+	@Param({
+		"DebugLogSettings:1",
+		"FlightStatus:8",
+		"GyroSensor:16",
+		"AttitudeState:28",
+		"GPSPositionSensor:40",
+		"StabilizationSettings:112",
+		"DebugLogEntry:217"
+	})
+	public String object;
+
+	private BenchObject obj;
+	private byte[] payload;
+	private ByteBuffer heapOut;
+	private ByteBuffer directOut;
+	private UAVTalkFrameEncoder encoder;
+
+	private byte[] stream;
+	private ByteBuffer streamBuffer;
+	private UAVTalkFrameDecoder decoder;
+	private UAVTalkFrameDecoder decoderInto;
+	private Blackhole blackhole;
+
+	@Setup
+	public void setup(Blackhole bh) {
+		blackhole=bh;
+		obj=new BenchObject(0x12345678,object);
+		payload=obj.serialize();
+		int frameLength=UAVTalkHelper.MIN_PACKAGE_SIZE+payload.length;
+		heapOut=ByteBuffer.allocate(frameLength);
+		directOut=ByteBuffer.allocateDirect(frameLength);
+		encoder=new UAVTalkFrameEncoder();
+
+		// every other frame changes the first field, so deserializing finds a changed field
+		byte[] changed=payload.clone();
+		changed[0]^=1;
+		stream=new byte[frameLength*FRAMES_PER_STREAM];
+		for (int i=0;i<FRAMES_PER_STREAM;i++) {
+			byte[] frame=UAVTalkHelper.generateUAVTalkPackage(UAVTalkDefinitions.TYPE_OBJ,obj.getObjID(),(i%2==0)?payload:changed);
+			System.arraycopy(frame,0,stream,i*frameLength,frameLength);
+		}
+		streamBuffer=ByteBuffer.wrap(stream);
+		decoder=new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				blackhole.consume(frame.getObjID());
+			}
+		});
+		decoderInto=new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				frame.deserializeInto(obj);
+			}
+		});
+	}
+
+	/** the original path - allocates the payload and the frame */
+	@Benchmark
+	public byte[] encodeGenerate() {
+		return UAVTalkHelper.generateUAVTalkPackage(UAVTalkDefinitions.TYPE_OBJ,obj);
+	}
+
+	@Benchmark
+	public int encodeIntoHeapBuffer() {
+		heapOut.clear();
+		return UAVTalkHelper.writeUAVTalkPackage(heapOut,UAVTalkDefinitions.TYPE_OBJ,obj);
+	}
+
+	@Benchmark
+	public int encodeIntoDirectBuffer() {
+		directOut.clear();
+		return UAVTalkHelper.writeUAVTalkPackage(directOut,UAVTalkDefinitions.TYPE_OBJ,obj);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeWithEncoder() {
+		return encoder.encode(UAVTalkDefinitions.TYPE_OBJ,obj);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES_PER_STREAM)
+	public void decodeStream() {
+		streamBuffer.clear();
+		decoder.decode(streamBuffer);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES_PER_STREAM)
+	public void decodeStreamIntoObject() {
+		streamBuffer.clear();
+		decoderInto.decode(streamBuffer);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openpilot.uavtalk.UAVObject;
+import org.openpilot.uavtalk.UAVObjectManager;
+
+/**
+ ******************************************************************************
+ *
+ * @file       ObjectLookupBenchmark.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      object lookup by ID with and without concurrent registration
+ *
+ * The manager holds as many objects as shared/uavobjectdefinition defines.
+ * lookup runs on 4 threads, the contended group adds a thread registering
+ * new instances while 3 threads look up. The manager is rebuilt for every
+ * iteration, as registration stops once MAX_INSTANCES of every object exist.
+ *
+ ****************************************************************************
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class ObjectLookupBenchmark {
+
+	private final static int NUM_OBJECTS=104;
+	private final static int MAX_INSTANCES=64;
+
+	private UAVObjectManager objMngr;
+	private int[] objIds;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+		int instId;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			next=0;
+			instId=0;
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		objMngr=new UAVObjectManager();
+		objIds=new int[NUM_OBJECTS];
+		Random random=new Random(42);
+		for (int i=0;i<NUM_OBJECTS;i++) {
+			// generated IDs always have the lowest bit cleared
+			objIds[i]=random.nextInt()&0xFFFFFFFE;
+			String spec=BenchObject.REAL_SIZES[i%BenchObject.REAL_SIZES.length];
+			objMngr.registerObject(new BenchObject(objIds[i],spec));
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public UAVObject lookup(Cursor cursor) {
+		cursor.next=(cursor.next+1)%NUM_OBJECTS;
+		return objMngr.getObject(objIds[cursor.next]);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public UAVObject contendedLookup(Cursor cursor) {
+		cursor.next=(cursor.next+1)%NUM_OBJECTS;
+		return objMngr.getObject(objIds[cursor.next]);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public boolean contendedRegister(Cursor cursor) {
+		cursor.next=(cursor.next+1)%NUM_OBJECTS;
+		if (cursor.next==0 && cursor.instId<MAX_INSTANCES)
+			cursor.instId++;
+		UAVObject obj=objMngr.getObject(objIds[cursor.next]);
+		return objMngr.registerObject(obj,cursor.instId);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openpilot.uavtalk.UAVTalkDefinitions;
+import org.openpilot.uavtalk.UAVTalkFrame;
+import org.openpilot.uavtalk.UAVTalkFrameDecoder;
+import org.openpilot.uavtalk.UAVTalkFrameListener;
+import org.openpilot.uavtalk.UAVTalkHelper;
+import org.openpilot.uavtalk.UAVTalkParallelReader;
+
+/**
+ ******************************************************************************
+ *
+ * @file       ParallelReaderBenchmark.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      decoding a capture in parallel chunks against one decoder
+ *
+ * The capture mixes valid frames with garbage, frames with a bad CRC, cut
+ * off frames and sync bytes inside of payloads, so chunks often start on a
+ * false sync. That the chunks deliver exactly the frames of the sequential
+ * decoder is checked by UAVTalkParallelReaderTest in "ant test".
+ *
+ ****************************************************************************
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class ParallelReaderBenchmark {
+
+	private final static int NUM_FRAMES=200000;
+	private final static int MAX_PAYLOAD_LENGTH=UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH;
+
+	@Param({"256","4096","65536","1048576"})
+	public int chunkSize;
+
+	private ByteBuffer capture;
+
+	/**
+	 * keeps a digest of every frame - type, object ID and payload
+	 */
+	private final static class Digest implements UAVTalkFrameListener {
+		long[] frames=new long[16];
+		int count;
+
+		public void onFrame(UAVTalkFrame frame) {
+			long h=((long)frame.getType()<<32)^frame.getObjID();
+			for (int i=0;i<frame.getPayloadLength();i++)
+				h=h*31+frame.getPayloadByte(i);
+			if (count==frames.length)
+				frames=Arrays.copyOf(frames,count*2);
+			frames[count++]=h;
+		}
+	}
+
+	private final static UAVTalkParallelReader.ListenerFactory<Digest> DIGESTS=new UAVTalkParallelReader.ListenerFactory<Digest>() {
+		public Digest create(UAVTalkParallelReader.Chunk chunk) {
+			return new Digest();
+		}
+	};
+
+	@Setup
+	public void setup() {
+		capture=ByteBuffer.wrap(generateCapture(new Random(1)));
+	}
+
+	@Benchmark
+	public long decodeSequential() {
+		Digest d=new Digest();
+		UAVTalkFrameDecoder decoder=new UAVTalkFrameDecoder(d,MAX_PAYLOAD_LENGTH,false);
+		decoder.decode(capture.duplicate());
+		return d.count;
+	}
+
+	@Benchmark
+	public long decodeParallel() throws Exception {
+		UAVTalkParallelReader reader=new UAVTalkParallelReader(capture.duplicate(),chunkSize,MAX_PAYLOAD_LENGTH);
+		reader.decode(DIGESTS);
+		return reader.getFrames();
+	}
+
+	private static byte[] generateCapture(Random r) {
+		ByteBuffer out=ByteBuffer.allocate(NUM_FRAMES*(UAVTalkHelper.MIN_PACKAGE_SIZE+150));
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer frame=ByteBuffer.allocate(UAVTalkHelper.MIN_PACKAGE_SIZE+MAX_PAYLOAD_LENGTH);
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] payload=new byte[300];
+		for (int i=0;i<NUM_FRAMES;i++) {
+			int kind=r.nextInt(20);
+			if (kind==0) {
+				// garbage with some sync bytes
+				for (int n=r.nextInt(30);n>0;n--)
+					out.put((byte)(r.nextInt(10)==0?UAVTalkDefinitions.SYNC_VAL:r.nextInt(256)));
+				continue;
+			}
+			int length=r.nextInt(kind==1?300:60);
+			r.nextBytes(payload);
+			if (length>0 && r.nextInt(4)==0)
+				payload[r.nextInt(length)]=UAVTalkDefinitions.SYNC_VAL;
+			frame.clear();
+			UAVTalkHelper.writeUAVTalkPackage(frame,UAVTalkDefinitions.TYPE_OBJ,r.nextInt(),payload,0,length);
+			int end=frame.position();
+			if (r.nextInt(50)==0)
+				frame.put(end-1,(byte)(frame.get(end-1)^1));
+			if (r.nextInt(80)==0)
+				end=r.nextInt(end);
+			out.put(frame.array(),0,end);
+		}
+		return Arrays.copyOf(out.array(),out.position());
+	}
+}
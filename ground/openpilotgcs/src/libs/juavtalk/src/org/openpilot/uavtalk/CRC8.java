@@ -16,6 +16,10 @@
 
 package org.openpilot.uavtalk;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
 /**
  ******************************************************************************
  *
@@ -25,7 +29,12 @@ package org.openpilot.uavtalk;
  *
  ****************************************************************************
 */
-public class CRC8 {
+public class CRC8 implements Checksum {
+
+	/** bytes processed per step by the sliced update */
+	private final static int SLICES=8;
+
+	private byte crc=0;
 
 	/**
 	* update a CRC8 value with one byte of data
@@ -46,9 +55,115 @@ public class CRC8 {
 	* @return - the new CRC value
 	*/
 	public static byte  arrayUpdate(byte crc, byte[] data, int length) {
-		for (int i=0;i<length;i++)
-	        crc = CRC8_TABLE[(crc ^ data[i])&0xFF];
-	    return crc;
+		return arrayUpdate(crc,data,0,length);
+	}
+
+	/**
+	* update a CRC8 value with a region of a byte-array
+	* 
+	* @param crc - start CRC8 Value
+	* @param data - data byte-array to update the CRC8-Checksum with
+	* @param offset - where to start in the array
+	* @param length - number of bytes to update the CRC8-Checksum with
+	* @return - the new CRC value
+	*/
+	public static byte arrayUpdate(byte crc, byte[] data, int offset, int length) {
+		int c=crc&0xFF;
+		int i=offset;
+		int end=offset+length;
+		for (;i<=end-SLICES;i+=SLICES)
+			c = SLICE_TABLE[7*256 + ((c ^ data[i])&0xFF)]
+			  ^ SLICE_TABLE[6*256 + (data[i+1]&0xFF)]
+			  ^ SLICE_TABLE[5*256 + (data[i+2]&0xFF)]
+			  ^ SLICE_TABLE[4*256 + (data[i+3]&0xFF)]
+			  ^ SLICE_TABLE[3*256 + (data[i+4]&0xFF)]
+			  ^ SLICE_TABLE[2*256 + (data[i+5]&0xFF)]
+			  ^ SLICE_TABLE[256 + (data[i+6]&0xFF)]
+			  ^ SLICE_TABLE[data[i+7]&0xFF];
+		for (;i<end;i++)
+			c = SLICE_TABLE[(c ^ data[i])&0xFF];
+		return (byte)c;
+	}
+
+	/**
+	* update a CRC8 value with a region of a ByteBuffer
+	* the position and limit of the buffer are not touched
+	*
+	* @param crc - start CRC8 Value
+	* @param data - the buffer holding the data
+	* @param offset - absolute index of the first byte in the buffer
+	* @param length - number of bytes to update the CRC8-Checksum with
+	* @return - the new CRC value
+	*/
+	public static byte bufferUpdate(byte crc, ByteBuffer data, int offset, int length) {
+		if (data.hasArray())
+			return arrayUpdate(crc,data.array(),data.arrayOffset()+offset,length);
+
+		int c=crc&0xFF;
+		int i=offset;
+		int end=offset+length;
+		boolean le=(data.order()==ByteOrder.LITTLE_ENDIAN);
+		for (;i<=end-SLICES;i+=SLICES) {
+			long l=data.getLong(i);
+			if (!le)
+				l=Long.reverseBytes(l);
+			c = SLICE_TABLE[7*256 + ((c ^ (int)l)&0xFF)]
+			  ^ SLICE_TABLE[6*256 + ((int)(l>>>8)&0xFF)]
+			  ^ SLICE_TABLE[5*256 + ((int)(l>>>16)&0xFF)]
+			  ^ SLICE_TABLE[4*256 + ((int)(l>>>24)&0xFF)]
+			  ^ SLICE_TABLE[3*256 + ((int)(l>>>32)&0xFF)]
+			  ^ SLICE_TABLE[2*256 + ((int)(l>>>40)&0xFF)]
+			  ^ SLICE_TABLE[256 + ((int)(l>>>48)&0xFF)]
+			  ^ SLICE_TABLE[(int)(l>>>56)&0xFF];
+		}
+		for (;i<end;i++)
+			c = SLICE_TABLE[(c ^ data.get(i))&0xFF];
+		return (byte)c;
+	}
+
+	/**
+	* update a CRC8 value with the remaining bytes of a ByteBuffer
+	* the position of the buffer is moved to its limit
+	*
+	* @param crc - start CRC8 Value
+	* @param data - the buffer holding the data
+	* @return - the new CRC value
+	*/
+	public static byte bufferUpdate(byte crc, ByteBuffer data) {
+		crc=bufferUpdate(crc,data,data.position(),data.remaining());
+		data.position(data.limit());
+		return crc;
+	}
+
+	/*
+	 * streaming interface - keeps the CRC between partial reads
+	 */
+
+	public void update(int b) {
+		crc=byteUpdate(crc,(byte)b);
+	}
+
+	public void update(byte[] b, int off, int len) {
+		crc=arrayUpdate(crc,b,off,len);
+	}
+
+	public void update(ByteBuffer buffer) {
+		crc=bufferUpdate(crc,buffer);
+	}
+
+	/**
+	 * @return - the CRC of all bytes since the last reset as unsigned value
+	 */
+	public long getValue() {
+		return crc&0xFF;
+	}
+
+	public byte getCRC() {
+		return crc;
+	}
+
+	public void reset() {
+		crc=0;
 	}
 
 	/** CRC lookup table - values from PYCRC **/ 
@@ -83,4 +198,21 @@ public class CRC8 {
 		(byte)0xd7, (byte)0xc2, (byte)0xc5, (byte)0xcc, (byte)0xcb, (byte)0xe6, (byte)0xe1, (byte)0xe8, (byte)0xef,
 		(byte)0xfa, (byte)0xfd, (byte)0xf4, (byte)0xf3
 	};
-}
\ No newline at end of file
+
+	/**
+	 * SLICE_TABLE[k*256+x] is the CRC of x followed by k zero bytes - as the
+	 * CRC is linear this lets us process SLICES bytes with independent lookups
+	 */
+	private final static int [] SLICE_TABLE = new int[SLICES*256];
+
+	static {
+		for (int x=0;x<256;x++) {
+			int c=CRC8_TABLE[x]&0xFF;
+			SLICE_TABLE[x]=c;
+			for (int k=1;k<SLICES;k++) {
+				c=CRC8_TABLE[c]&0xFF;
+				SLICE_TABLE[k*256+x]=c;
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       ObjectIdTable.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      immutable open addressing table from object ID to a value
+ *
+ * Lookups do not lock and do not box the key - writers build a changed copy
+ * with put() and publish it through a volatile field, readers use whichever
+ * copy they read. Also holds the hash of object IDs for other tables keyed
+ * by object ID.
+ *
+ ****************************************************************************
+*/
+final class ObjectIdTable<V> {
+
+	private final int[] keys;
+	private final Object[] values;
+	private final int mask;
+	private final int size;
+
+	/**
+	 * an empty table
+	 *
+	 * @param capacity - number of slots - a power of 2
+	 */
+	ObjectIdTable(int capacity) {
+		this(capacity,0);
+	}
+
+	private ObjectIdTable(int capacity,int size) {
+		keys=new int[capacity];
+		values=new Object[capacity];
+		mask=capacity-1;
+		this.size=size;
+	}
+
+	/**
+	 * @return - the value of the object - null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int objId) {
+		return (V)values[slot(objId)];
+	}
+
+	/**
+	 * @return - number of objects in the table
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return - number of slots - to iterate with valueAt()
+	 */
+	int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @param slot - index of the slot
+	 * @return - the value in the slot - null if the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V)values[slot];
+	}
+
+	/**
+	 * @param objId - the object
+	 * @param value - the new value - not null
+	 * @return - a copy of the table with the value set
+	 */
+	ObjectIdTable<V> put(int objId,V value) {
+		int n=(values[slot(objId)]==null)?size+1:size;
+		int capacity=keys.length;
+		while (n*2>capacity)
+			capacity*=2;
+		ObjectIdTable<V> res=new ObjectIdTable<V>(capacity,n);
+		for (int i=0;i<keys.length;i++) {
+			if (values[i]!=null) {
+				int s=res.slot(keys[i]);
+				res.keys[s]=keys[i];
+				res.values[s]=values[i];
+			}
+		}
+		int s=res.slot(objId);
+		res.keys[s]=objId;
+		res.values[s]=value;
+		return res;
+	}
+
+	private int slot(int objId) {
+		int i=mix(objId)&mask;
+		while (values[i]!=null && keys[i]!=objId)
+			i=(i+1)&mask;
+		return i;
+	}
+
+	/**
+	 * spread object IDs over the slots of a power of 2 sized table
+	 */
+	static int mix(int objId) {
+		int h=objId*0x9E3779B9;
+		return h^(h>>>16);
+	}
+}
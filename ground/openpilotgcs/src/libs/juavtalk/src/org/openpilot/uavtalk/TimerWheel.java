@@ -0,0 +1,173 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       TimerWheel.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      hashed timer wheel driven by the thread which owns it
+ *
+ * Timeouts are linked into the slot of their deadline tick, so scheduling and
+ * cancelling is O(1) and does not allocate. Deadlines further away than one
+ * turn of the wheel simply stay in their slot until their turn comes.
+ * The wheel has no thread of its own - the owner calls advance() regularly.
+ *
+ ****************************************************************************
+*/
+public class TimerWheel {
+
+	/**
+	 * an entry of the wheel - subclasses implement what happens on expiry
+	 */
+	public abstract static class Timeout {
+		private Timeout next;
+		private Timeout prev;
+		private Timeout nextExpired;
+		private int slot=-1;
+		private long deadline;
+
+		public boolean isScheduled() {
+			return slot>=0;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * called by advance() once the deadline has passed
+		 *
+		 * @param now - the time passed to advance()
+		 */
+		protected abstract void expired(long now);
+	}
+
+	private final Timeout[] slots;
+	private final int mask;
+	private final long tickMs;
+
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickMs - resolution of the wheel in ms
+	 * @param numSlots - number of slots - rounded up to a power of 2
+	 * @param now - the start time in ms
+	 */
+	public TimerWheel(long tickMs,int numSlots,long now) {
+		int n=1;
+		while (n<numSlots)
+			n<<=1;
+		slots=new Timeout[n];
+		mask=n-1;
+		this.tickMs=tickMs;
+		currentTick=now/tickMs;
+	}
+
+	/**
+	 * schedule a timeout - an already scheduled timeout is moved
+	 *
+	 * @param t - the timeout
+	 * @param deadline - time in ms at which the timeout expires
+	 */
+	public void schedule(Timeout t,long deadline) {
+		if (t.isScheduled())
+			cancel(t);
+
+		// round up - so the timeout is never visited before its deadline
+		long tick=Math.max((deadline+tickMs-1)/tickMs,currentTick+1);
+		int s=(int)(tick&mask);
+		t.deadline=deadline;
+		t.slot=s;
+		t.prev=null;
+		t.next=slots[s];
+		if (t.next!=null)
+			t.next.prev=t;
+		slots[s]=t;
+		size++;
+	}
+
+	/**
+	 * remove a timeout from the wheel - does nothing if it is not scheduled
+	 *
+	 * @param t - the timeout
+	 */
+	public void cancel(Timeout t) {
+		if (!t.isScheduled())
+			return;
+		if (t.prev!=null)
+			t.prev.next=t.next;
+		else
+			slots[t.slot]=t.next;
+		if (t.next!=null)
+			t.next.prev=t.prev;
+		t.next=null;
+		t.prev=null;
+		t.slot=-1;
+		size--;
+	}
+
+	/**
+	 * expire all timeouts with a deadline up to now
+	 * the expired() callbacks may schedule and cancel timeouts
+	 *
+	 * @param now - the current time in ms
+	 */
+	public void advance(long now) {
+		long target=now/tickMs;
+		if (target<=currentTick)
+			return;
+
+		long first=currentTick+1;
+		// no need to visit a slot twice
+		if (target-first>mask)
+			first=target-mask;
+
+		for (long tick=first;tick<=target;tick++) {
+			currentTick=tick;
+
+			Timeout expired=null;
+			Timeout t=slots[(int)(tick&mask)];
+			while (t!=null) {
+				Timeout next=t.next;
+				if (t.deadline<=now) {
+					cancel(t);
+					t.nextExpired=expired;
+					expired=t;
+				}
+				t=next;
+			}
+
+			while (expired!=null) {
+				Timeout e=expired;
+				expired=e.nextExpired;
+				e.nextExpired=null;
+				e.expired(now);
+			}
+		}
+		currentTick=target;
+	}
+
+	/**
+	 * @return - number of scheduled timeouts
+	 */
+	public int size() {
+		return size;
+	}
+}
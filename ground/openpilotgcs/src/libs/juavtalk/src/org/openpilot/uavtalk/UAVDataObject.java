@@ -0,0 +1,415 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVDataObject.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      base class for the generated UAVObjects
+ *
+ * The fields of the object are kept in one buffer with the same layout as on
+ * the wire. The generated classes add typed accessors which read and write
+ * this buffer directly - getField/setField only remain as a generic (boxing)
+ * fallback. As the layout is fixed, serializing and deserializing is a plain
+ * copy of NUMBYTES bytes.
+ *
+ * The generated setters mark their field in a dirty bitset ( bit n for field n,
+ * fields from 63 on share bit 63 ) which the owner of the object clears once
+ * it handled the changes. Deserializing compares the new data field by field
+ * and remembers which fields really changed, and getFingerprint() gives a
+ * cheap hash of the data, so identical updates can be detected without
+ * keeping a copy of the last one.
+ *
+ * Writes are guarded by a seqlock: the version is odd while the data is
+ * written. Readers on other threads never block the writer - they read
+ * optimistically and retry if the version changed meanwhile:
+ *
+ *   int v;
+ *   do {
+ *       v=obj.beginRead();
+ *       q1=obj.getQ1(); q2=obj.getQ2(); q3=obj.getQ3(); q4=obj.getQ4();
+ *   } while (!obj.endRead(v));
+ *
+ * or take a consistent copy with copyTo(). There may only be one writer at a
+ * time - setters, deserialize() and beginUpdate()/endUpdate() blocks of
+ * different threads have to be serialized by the caller.
+ *
+ ****************************************************************************
+*/
+public abstract class UAVDataObject extends UAVObject {
+
+	/** the field data - little endian, fields in the order of the wire format */
+	protected final ByteBuffer data;
+
+	private int instId=0;
+
+	private long dirtyFields;
+	private long updatedFields;
+
+	/** seqlock version - odd while a write is in progress */
+	private int version;
+	/** nesting of beginUpdate() - only touched by the writer */
+	private int updateDepth;
+	/** the thread inside beginUpdate()/endUpdate() - it may read its own update */
+	private Thread writer;
+
+	private final static VarHandle VERSION;
+	/** the dirty fields are set by the writer and cleared by the scheduler thread */
+	private final static VarHandle DIRTY_FIELDS;
+	static {
+		try {
+			VERSION=MethodHandles.lookup().findVarHandle(UAVDataObject.class,"version",int.class);
+			DIRTY_FIELDS=MethodHandles.lookup().findVarHandle(UAVDataObject.class,"dirtyFields",long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * @param numBytes - the length of the object data
+	 */
+	protected UAVDataObject(int numBytes) {
+		data=ByteBuffer.allocate(numBytes);
+		data.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	abstract public boolean isSingleInstance();
+	abstract public boolean isSettings();
+	abstract public boolean isPriority();
+
+	/**
+	 * create a new instance of this object with default field values
+	 *
+	 * @param instId - the instance ID of the new object
+	 */
+	abstract public UAVDataObject clone(int instId);
+
+	public byte[] serialize() {
+		byte[] res=new byte[data.capacity()];
+		serialize(res,0);
+		return res;
+	}
+
+	/**
+	 * serialize the object into a byte-array
+	 *
+	 * @param dst - the array to write to
+	 * @param offset - where to start in the array
+	 * @return - number of bytes written
+	 */
+	public int serialize(byte[] dst,int offset) {
+		getMetaData().last_serialize=System.currentTimeMillis();
+		int v;
+		do {
+			v=beginRead();
+			System.arraycopy(data.array(),0,dst,offset,data.capacity());
+		} while (!endRead(v));
+		return data.capacity();
+	}
+
+	public int serialize(ByteBuffer buf,int offset) {
+		if (buf.hasArray())
+			return serialize(buf.array(),buf.arrayOffset()+offset);
+
+		getMetaData().last_serialize=System.currentTimeMillis();
+		byte[] src=data.array();
+		int v;
+		do {
+			v=beginRead();
+			for (int i=0;i<src.length;i++)
+				buf.put(offset+i,src[i]);
+		} while (!endRead(v));
+		return src.length;
+	}
+
+	public void deserialize(byte[] src,int offset) {
+		updatedFields=changedFields(src,offset);
+		beginUpdate();
+		try {
+			System.arraycopy(src,offset,data.array(),0,data.capacity());
+		} finally {
+			endUpdate();
+		}
+		markDirtyFields(updatedFields);
+		super.deserialize(src,offset);
+	}
+
+	public void deserialize(ByteBuffer buf,int offset) {
+		if (buf.hasArray()) {
+			deserialize(buf.array(),buf.arrayOffset()+offset);
+		} else {
+			updatedFields=changedFields(buf,offset);
+			byte[] dst=data.array();
+			beginUpdate();
+			try {
+				for (int i=0;i<dst.length;i++)
+					dst[i]=buf.get(offset+i);
+			} finally {
+				endUpdate();
+			}
+			markDirtyFields(updatedFields);
+			getMetaData().last_deserialize=System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * copy a consistent sample of the data into another instance of the same
+	 * object - e.g. a private copy of a reader thread - without blocking the writer
+	 *
+	 * @param dst - the object to copy to
+	 */
+	public void copyTo(UAVDataObject dst) {
+		if (dst==this)
+			throw new IllegalArgumentException("can not copy "+getObjName()+" to itself");
+		if (dst.getObjID()!=getObjID())
+			throw new IllegalArgumentException("can not copy "+getObjName()+" to "+dst.getObjName());
+		dst.beginUpdate();
+		int v;
+		do {
+			v=beginRead();
+			System.arraycopy(data.array(),0,dst.data.array(),0,data.capacity());
+		} while (!endRead(v));
+		dst.endUpdate();
+		dst.markDirtyFields(UAVObjectEventBus.ALL_FIELDS);
+	}
+
+	/**
+	 * start an optimistic read - waits while a write of another thread is in
+	 * progress, the writer itself reads its update without waiting
+	 *
+	 * @return - the version to pass to endRead()
+	 */
+	public final int beginRead() {
+		int v;
+		while (((v=(int)VERSION.getAcquire(this))&1)!=0) {
+			if (writer==Thread.currentThread())
+				break;
+			Thread.onSpinWait();
+		}
+		return v;
+	}
+
+	/**
+	 * @param version - the result of beginRead()
+	 * @return - true if the values read since beginRead() are consistent - false to read again
+	 */
+	public final boolean endRead(int version) {
+		VarHandle.acquireFence();
+		return (int)VERSION.getOpaque(this)==version;
+	}
+
+	/**
+	 * @return - the current version - changes with every write
+	 */
+	public final int getVersion() {
+		return (int)VERSION.getAcquire(this);
+	}
+
+	/**
+	 * start a write - blocks may be nested, readers see the data of the
+	 * outermost block as one update. Readers of other threads wait for
+	 * endUpdate(), so it has to be called in a finally block if the write
+	 * can fail. The writing thread may read the object inside the block.
+	 */
+	public final void beginUpdate() {
+		if (updateDepth++==0) {
+			writer=Thread.currentThread();
+			VERSION.setOpaque(this,(int)VERSION.getOpaque(this)+1);
+			VarHandle.storeStoreFence();
+		}
+	}
+
+	public final void endUpdate() {
+		if (--updateDepth==0) {
+			VERSION.setRelease(this,(int)VERSION.getOpaque(this)+1);
+			writer=null;
+		}
+	}
+
+	/**
+	 * end a write of one field - called by the generated setters
+	 *
+	 * @param fieldId - the field which was written
+	 */
+	protected final void endUpdate(int fieldId) {
+		markDirty(fieldId);
+		endUpdate();
+	}
+
+	/**
+	 * @return - the constant length of the object data
+	 */
+	public int getDataLength() {
+		return data.capacity();
+	}
+
+	public int getInstID() {
+		return instId;
+	}
+
+	public void setInstID(int instId) {
+		this.instId=instId;
+	}
+
+	/**
+	 * @return - fields written by a setter or changed by deserialize() since
+	 *           the last clearDirtyFields() - bit n for field n
+	 */
+	public long getDirtyFields() {
+		return (long)DIRTY_FIELDS.getAcquire(this);
+	}
+
+	public boolean isDirty() {
+		return getDirtyFields()!=0;
+	}
+
+	/**
+	 * clear the dirty fields - atomically, so no field written meanwhile is lost
+	 *
+	 * @return - the dirty fields before they were cleared
+	 */
+	public long clearDirtyFields() {
+		return (long)DIRTY_FIELDS.getAndSet(this,0L);
+	}
+
+	/**
+	 * @return - fields which got a different value by the last deserialize - bit n for field n
+	 */
+	public long getUpdatedFields() {
+		return updatedFields;
+	}
+
+	/**
+	 * a 64 bit hash of the object data - equal data gives an equal fingerprint,
+	 * a different fingerprint always means different data
+	 *
+	 * @return - the fingerprint
+	 */
+	public long getFingerprint() {
+		int len=data.capacity();
+		long h;
+		int v;
+		do {
+			v=beginRead();
+			h=len;
+			int i=0;
+			for (;i+8<=len;i+=8)
+				h=mix(h^data.getLong(i));
+			for (;i<len;i++)
+				h=mix(h^(data.get(i)&0xFF));
+		} while (!endRead(v));
+		return h;
+	}
+
+	/**
+	 * @param fieldId - the ID of a field
+	 * @return - the bit of the field in dirty and changed field masks
+	 */
+	public final static long fieldBit(int fieldId) {
+		return 1L<<Math.min(fieldId,63);
+	}
+
+	/**
+	 * @param fieldId - the field which was written
+	 */
+	protected final void markDirty(int fieldId) {
+		markDirtyFields(fieldBit(fieldId));
+	}
+
+	private void markDirtyFields(long mask) {
+		if (mask!=0)
+			DIRTY_FIELDS.getAndBitwiseOr(this,mask);
+	}
+
+	private long changedFields(byte[] src,int offset) {
+		byte[] cur=data.array();
+		UAVObjectFieldDescription[] fields=getFieldDescriptions();
+		long res=0;
+		int pos=0;
+		for (int n=0;n<fields.length;n++) {
+			int end=pos+fieldLength(fields[n]);
+			if (Arrays.mismatch(cur,pos,end,src,offset+pos,offset+end)>=0)
+				res|=fieldBit(n);
+			pos=end;
+		}
+		return res;
+	}
+
+	private long changedFields(ByteBuffer buf,int offset) {
+		byte[] cur=data.array();
+		UAVObjectFieldDescription[] fields=getFieldDescriptions();
+		long res=0;
+		int pos=0;
+		for (int n=0;n<fields.length;n++) {
+			int end=pos+fieldLength(fields[n]);
+			for (int i=pos;i<end;i++) {
+				if (cur[i]!=buf.get(offset+i)) {
+					res|=fieldBit(n);
+					break;
+				}
+			}
+			pos=end;
+		}
+		return res;
+	}
+
+	private static int fieldLength(UAVObjectFieldDescription field) {
+		return UAVObjectFieldDescription.getTypeSize(field.getType())*field.getNumElements();
+	}
+
+	private static long mix(long h) {
+		h*=0x9E3779B97F4A7C15L;
+		return h^(h>>>32);
+	}
+
+	/**
+	 * check the index of an array element
+	 *
+	 * @param idx - the index
+	 * @param numElements - number of elements in the field
+	 * @return - the index
+	 */
+	protected final static int checkIndex(int idx,int numElements) {
+		if (idx<0 || idx>=numElements)
+			throw new ArrayIndexOutOfBoundsException(idx);
+		return idx;
+	}
+
+	/**
+	 * convert a value for an enum field to its option index
+	 *
+	 * @param val - the option name or its index as Number
+	 * @param options - the options of the field
+	 * @return - the option index
+	 */
+	protected final static int enumOption(Object val,String[] options) {
+		if (val instanceof Number)
+			return ((Number)val).intValue();
+		for (int i=0;i<options.length;i++)
+			if (options[i].equals(val))
+				return i;
+		throw new IllegalArgumentException("unknown option "+val);
+	}
+}
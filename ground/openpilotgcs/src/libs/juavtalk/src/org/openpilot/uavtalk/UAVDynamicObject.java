@@ -0,0 +1,98 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVDynamicObject.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      an UAVObject without generated class - backed by an UAVObjectDefinition
+ *
+ * Behaves like a generated object: same data layout, same serialization and
+ * the same generic getField/setField. Typed access goes through the Field
+ * accessors of the definition, e.g.
+ *
+ *   UAVObjectDefinition.Field roll=def.getField("Roll");
+ *   float r=roll.getFloat(obj);
+ *
+ ****************************************************************************
+*/
+public class UAVDynamicObject extends UAVDataObject {
+
+	private final UAVObjectDefinition definition;
+
+	public UAVDynamicObject(UAVObjectDefinition definition) {
+		super(definition.getNumBytes());
+		this.definition=definition;
+		definition.setDefaults(this);
+	}
+
+	public UAVObjectDefinition getDefinition() {
+		return definition;
+	}
+
+	public int getObjID() {
+		return definition.getObjID();
+	}
+
+	public String getObjName() {
+		return definition.getObjName();
+	}
+
+	public String getObjDescription() {
+		return definition.getObjDescription();
+	}
+
+	public boolean isSingleInstance() {
+		return definition.isSingleInstance();
+	}
+
+	public boolean isSettings() {
+		return definition.isSettings();
+	}
+
+	public boolean isPriority() {
+		return definition.isPriority();
+	}
+
+	public UAVObjectFieldDescription[] getFieldDescriptions() {
+		return definition.getFieldDescriptions();
+	}
+
+	public void setGeneratedMetaData() {
+		definition.fillMetaData(getMetaData());
+	}
+
+	public Object getField(int fieldid,int arr_pos) {
+		return field(fieldid).get(this,arr_pos);
+	}
+
+	public void setField(int fieldid,int arr_pos,Object val) {
+		field(fieldid).set(this,arr_pos,val);
+	}
+
+	public UAVDataObject clone(int instId) {
+		return definition.newObject(instId);
+	}
+
+	private UAVObjectDefinition.Field field(int fieldid) {
+		if (fieldid<0 || fieldid>=definition.getNumFields())
+			throw new IllegalArgumentException("unknown field "+fieldid);
+		return definition.getField(fieldid);
+	}
+}
@@ -16,6 +16,8 @@
 
 package org.openpilot.uavtalk;
 
+import java.nio.ByteBuffer;
+
 import org.openpilot.uavtalk.UAVObjectFieldDescription;
 
 /**
@@ -41,6 +43,23 @@ public abstract class UAVObject {
     	return new byte[0];
     }
     
+    /**
+     * serialize the object into a buffer starting at an absolute index
+     * position and limit of the buffer are not touched
+     * 
+     * generated objects should override this to write their fields directly
+     * 
+     * @param buf - the buffer to write to
+     * @param offset - absolute index to start writing
+     * @return number of bytes written
+     */
+    public int serialize(ByteBuffer buf,int offset) {
+    	byte[] data=serialize();
+    	for (int i=0;i<data.length;i++)
+    		buf.put(offset+i,data[i]);
+    	return data.length;
+    }
+    
     public void deserialize(byte[] data) {
     	deserialize(data,0);
     }
@@ -49,6 +68,26 @@ public abstract class UAVObject {
     	getMetaData().last_deserialize=System.currentTimeMillis();
     }
     
+    /**
+     * deserialize the object from a buffer starting at an absolute index
+     * position and limit of the buffer are not touched
+     * 
+     * generated objects should override this to read their fields directly
+     * 
+     * @param buf - the buffer to read from
+     * @param offset - absolute index to start reading
+     */
+    public void deserialize(ByteBuffer buf,int offset) {
+    	if (buf.hasArray()) {
+    		deserialize(buf.array(),buf.arrayOffset()+offset);
+    	} else {
+    		byte[] data=new byte[buf.limit()-offset];
+    		for (int i=0;i<data.length;i++)
+    			data[i]=buf.get(offset+i);
+    		deserialize(data,0);
+    	}
+    }
+    
     abstract public UAVObjectFieldDescription[] getFieldDescriptions(); 
     
     private UAVObjectMetaData myMetaData=null;
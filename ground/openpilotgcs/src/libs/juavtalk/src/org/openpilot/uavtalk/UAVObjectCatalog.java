@@ -0,0 +1,124 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.util.HashMap;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectCatalog.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      immutable table of the objects a factory can create
+ *
+ * A catalog is built once - the generated UAVObjectsInitialize keeps one in
+ * a static field - and shared by all UAVObjectManagers it is added to. The
+ * managers create an object only when it is looked up the first time, so
+ * bootstrapping the registry of a new link does not construct anything.
+ *
+ ****************************************************************************
+*/
+public final class UAVObjectCatalog {
+
+	private final int[] objIds;
+	private final String[] names;
+	private final UAVObjectFactory factory;
+
+	/* open addressing - index+1 of the object ID, 0 for free slots. Not an
+	   ObjectIdTable: the catalog never changes after construction and is
+	   shared by all managers, plain int slots avoid boxing the index */
+	private final int[] keys;
+	private final int[] values;
+	private final int mask;
+	private final HashMap<String,Integer> byName;
+
+	/**
+	 * @param objIds - IDs of the objects the factory creates
+	 * @param names - the object names - same order as the IDs
+	 * @param factory - creates the objects
+	 */
+	public UAVObjectCatalog(int[] objIds,String[] names,UAVObjectFactory factory) {
+		if (objIds.length!=names.length)
+			throw new IllegalArgumentException("number of IDs and names differ");
+		this.objIds=objIds.clone();
+		this.names=names.clone();
+		this.factory=factory;
+
+		int capacity=16;
+		while (capacity<objIds.length*2)
+			capacity<<=1;
+		keys=new int[capacity];
+		values=new int[capacity];
+		mask=capacity-1;
+		byName=new HashMap<String,Integer>(objIds.length*2);
+		for (int i=0;i<objIds.length;i++) {
+			int s=slot(objIds[i]);
+			if (values[s]!=0)
+				throw new IllegalArgumentException("duplicate object ID "+Integer.toHexString(objIds[i]));
+			keys[s]=objIds[i];
+			values[s]=i+1;
+			byName.put(names[i],i);
+		}
+	}
+
+	public int size() {
+		return objIds.length;
+	}
+
+	public int getObjID(int idx) {
+		return objIds[idx];
+	}
+
+	public String getObjName(int idx) {
+		return names[idx];
+	}
+
+	/**
+	 * @param objId - the object ID
+	 * @return - index of the object or -1
+	 */
+	public int indexOf(int objId) {
+		return values[slot(objId)]-1;
+	}
+
+	/**
+	 * @param name - the object name
+	 * @return - index of the object or -1
+	 */
+	public int indexOf(String name) {
+		Integer res=byName.get(name);
+		return (res==null)?-1:res;
+	}
+
+	/**
+	 * @param idx - index of the object
+	 * @return - a new instance 0 of the object
+	 */
+	public UAVObject createObject(int idx) {
+		UAVObject res=factory.createObject(objIds[idx]);
+		if (res==null || res.getObjID()!=objIds[idx])
+			throw new IllegalStateException("factory can not create "+names[idx]);
+		return res;
+	}
+
+	private int slot(int objId) {
+		int i=ObjectIdTable.mix(objId)&mask;
+		while (values[i]!=0 && keys[i]!=objId)
+			i=(i+1)&mask;
+		return i;
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectColumnExporter.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      streams decoded objects into per-object columnar files
+ *
+ * Every object gets one file <name>.uavcol in the output directory. After a
+ * header describing the columns the file consists of row groups of up to
+ * rowsPerGroup rows. A group holds the time column followed by one chunk per
+ * field element, each prefixed with its length, so a reader can skip all
+ * columns it is not interested in. Encodings start fresh in every group:
+ *
+ *  time                        - delta of the previous time as zig-zag varint
+ *  FIELDTYPE_INT* / _UINT*     - delta of the previous value as zig-zag varint
+ *  FIELDTYPE_FLOAT32           - raw little endian float
+ *  FIELDTYPE_ENUM              - runs of ( option index, varint run length ) -
+ *                                the options are the dictionary in the header
+ *
+ * Memory is bounded by the column buffers of one row group per object,
+ * independent of the length of the stream. Use UAVObjectColumnReader to read.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectColumnExporter implements UAVTalkFrameListener {
+
+	public final static int DEFAULT_ROWS_PER_GROUP=1024;
+
+	public final static byte ENCODING_RAW=0;
+	public final static byte ENCODING_DELTA=1;
+	public final static byte ENCODING_DICTIONARY=2;
+
+	final static int MAGIC=0x55415643; // "UAVC"
+	final static int VERSION=1;
+	final static int GROUP_MARKER=0x47525550; // "GRUP"
+
+	final static String FILE_EXTENSION=".uavcol";
+
+	private final static class Column {
+		final String name;
+		final byte type;
+		final byte encoding;
+		final int offset;
+		final byte[] buf;
+		int len;
+		long prev;
+		int runValue=-1;
+		int runLength;
+
+		Column(String name,byte type,int offset,int rows) {
+			this.name=name;
+			this.type=type;
+			this.offset=offset;
+			if (type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32) {
+				encoding=ENCODING_RAW;
+				buf=new byte[rows*4];
+			} else if (type==UAVObjectFieldDescription.FIELDTYPE_ENUM) {
+				encoding=ENCODING_DICTIONARY;
+				buf=new byte[rows*6];
+			} else {
+				encoding=ENCODING_DELTA;
+				buf=new byte[rows*10];
+			}
+		}
+
+		void add(long value) {
+			switch (encoding) {
+			case ENCODING_RAW:
+				int bits=(int)value;
+				buf[len++]=(byte)bits;
+				buf[len++]=(byte)(bits>>8);
+				buf[len++]=(byte)(bits>>16);
+				buf[len++]=(byte)(bits>>24);
+				break;
+			case ENCODING_DICTIONARY:
+				if (value!=runValue)
+					endRun();
+				runValue=(int)value;
+				runLength++;
+				break;
+			default:
+				long delta=value-prev;
+				putVarLong((delta<<1)^(delta>>63));
+				prev=value;
+			}
+		}
+
+		void endRun() {
+			if (runLength>0) {
+				buf[len++]=(byte)runValue;
+				putVarLong(runLength);
+			}
+			runLength=0;
+		}
+
+		void putVarLong(long v) {
+			while ((v&~0x7FL)!=0) {
+				buf[len++]=(byte)((v&0x7F)|0x80);
+				v>>>=7;
+			}
+			buf[len++]=(byte)v;
+		}
+
+		void writeChunk(DataOutputStream out) throws IOException {
+			endRun();
+			out.writeInt(len);
+			out.write(buf,0,len);
+			len=0;
+			prev=0;
+			runValue=-1;
+		}
+	}
+
+	private final static class ObjectColumns {
+		final DataOutputStream out;
+		final Column time;
+		final Column[] columns;
+		int rows;
+
+		ObjectColumns(DataOutputStream out,Column time,Column[] columns) {
+			this.out=out;
+			this.time=time;
+			this.columns=columns;
+		}
+	}
+
+	private final File dir;
+	private final UAVObjectManager objMngr;
+	private final int rowsPerGroup;
+	private final IdentityHashMap<UAVObject,ObjectColumns> objects=new IdentityHashMap<UAVObject,ObjectColumns>();
+
+	private long rows;
+	private long skippedFrames;
+	private long writeErrors;
+
+	/**
+	 * @param dir - output directory
+	 * @param objMngr - objects whose field descriptions define the columns
+	 */
+	public UAVObjectColumnExporter(File dir,UAVObjectManager objMngr) {
+		this(dir,objMngr,DEFAULT_ROWS_PER_GROUP);
+	}
+
+	/**
+	 * @param dir - output directory
+	 * @param objMngr - objects whose field descriptions define the columns
+	 * @param rowsPerGroup - rows buffered per object before they are written
+	 */
+	public UAVObjectColumnExporter(File dir,UAVObjectManager objMngr,int rowsPerGroup) {
+		this.dir=dir;
+		this.objMngr=objMngr;
+		this.rowsPerGroup=rowsPerGroup;
+	}
+
+	/**
+	 * export a complete log with the recorded times
+	 *
+	 * @param reader - the log
+	 */
+	public void export(final UAVTalkLogReader reader) throws IOException {
+		UAVTalkFrameDecoder decoder=new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				exportFrame(frame,reader.getReplayTime());
+			}
+		});
+		reader.replay(decoder,Long.MIN_VALUE,Long.MAX_VALUE,UAVTalkLogReader.SPEED_MAX);
+		flush();
+	}
+
+	/**
+	 * export a frame of a live link with the current time
+	 */
+	public void onFrame(UAVTalkFrame frame) {
+		exportFrame(frame,System.currentTimeMillis());
+	}
+
+	/**
+	 * add a row for the object of the frame - frames of unknown objects,
+	 * with a wrong length or without object data are skipped
+	 *
+	 * @param frame - the frame
+	 * @param time - time of the row in ms
+	 * @return - false if the frame was skipped
+	 */
+	public synchronized boolean exportFrame(UAVTalkFrame frame,long time) {
+		byte type=frame.getType();
+		UAVObject obj=objMngr.getObject(frame.getObjID());
+		if ((type!=UAVTalkDefinitions.TYPE_OBJ && type!=UAVTalkDefinitions.TYPE_OBJ_ACK)
+				|| obj==null || frame.getPayloadLength()!=obj.getDataLength()) {
+			skippedFrames++;
+			return false;
+		}
+
+		try {
+			ObjectColumns oc=objects.get(obj);
+			if (oc==null) {
+				oc=open(obj);
+				objects.put(obj,oc);
+			}
+
+			ByteBuffer buf=frame.getBuffer();
+			int payload=frame.getPayloadOffset();
+			oc.time.add(time);
+			for (int i=0;i<oc.columns.length;i++) {
+				Column c=oc.columns[i];
+				c.add(readValue(buf,payload+c.offset,c.type));
+			}
+			rows++;
+			if (++oc.rows==rowsPerGroup)
+				writeGroup(oc);
+		} catch (IOException e) {
+			writeErrors++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * write all buffered rows
+	 */
+	public synchronized void flush() throws IOException {
+		for (ObjectColumns oc : objects.values()) {
+			if (oc.rows>0)
+				writeGroup(oc);
+			oc.out.flush();
+		}
+	}
+
+	/**
+	 * write all buffered rows and close the files
+	 */
+	public synchronized void close() throws IOException {
+		IOException error=null;
+		for (Iterator<ObjectColumns> it=objects.values().iterator();it.hasNext();) {
+			ObjectColumns oc=it.next();
+			try {
+				if (oc.rows>0)
+					writeGroup(oc);
+				oc.out.close();
+			} catch (IOException e) {
+				error=e;
+			}
+			it.remove();
+		}
+		if (error!=null)
+			throw error;
+	}
+
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	public synchronized long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	public synchronized long getWriteErrors() {
+		return writeErrors;
+	}
+
+	private ObjectColumns open(UAVObject obj) throws IOException {
+		UAVObjectFieldDescription[] fields=obj.getFieldDescriptions();
+		int numColumns=0;
+		for (int i=0;i<fields.length;i++)
+			numColumns+=fields[i].getNumElements();
+
+		Column[] columns=new Column[numColumns];
+		int offset=0;
+		int c=0;
+		for (int i=0;i<fields.length;i++) {
+			UAVObjectFieldDescription f=fields[i];
+			int n=f.getNumElements();
+			for (int j=0;j<n;j++) {
+				String name=n>1?f.getName()+"."+f.getElementNames()[j]:f.getName();
+				columns[c++]=new Column(name,f.getType(),offset,rowsPerGroup);
+				offset+=UAVObjectFieldDescription.getTypeSize(f.getType());
+			}
+		}
+
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(dir,obj.getObjName()+FILE_EXTENSION))));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(obj.getObjID());
+		out.writeUTF(obj.getObjName());
+		out.writeInt(numColumns);
+		c=0;
+		for (int i=0;i<fields.length;i++) {
+			UAVObjectFieldDescription f=fields[i];
+			String[] options=f.getEnumOptions();
+			if (options==null)
+				options=new String[0];
+			for (int j=0;j<f.getNumElements();j++) {
+				Column col=columns[c++];
+				out.writeUTF(col.name);
+				out.writeByte(col.type);
+				out.writeByte(col.encoding);
+				out.writeUTF(f.getUnit()==null?"":f.getUnit());
+				out.writeInt(options.length);
+				for (int k=0;k<options.length;k++)
+					out.writeUTF(options[k]);
+			}
+		}
+
+		return new ObjectColumns(out,new Column("time",UAVObjectFieldDescription.FIELDTYPE_UINT32,0,rowsPerGroup),columns);
+	}
+
+	private void writeGroup(ObjectColumns oc) throws IOException {
+		oc.out.writeInt(GROUP_MARKER);
+		oc.out.writeInt(oc.rows);
+		oc.time.writeChunk(oc.out);
+		for (int i=0;i<oc.columns.length;i++)
+			oc.columns[i].writeChunk(oc.out);
+		oc.rows=0;
+	}
+
+	/**
+	 * @return - the element as long - floats as their raw bits
+	 */
+	private static long readValue(ByteBuffer buf,int pos,byte type) {
+		switch (type) {
+		case UAVObjectFieldDescription.FIELDTYPE_INT8:
+			return buf.get(pos);
+		case UAVObjectFieldDescription.FIELDTYPE_UINT8:
+		case UAVObjectFieldDescription.FIELDTYPE_ENUM:
+			return buf.get(pos)&0xFF;
+		case UAVObjectFieldDescription.FIELDTYPE_INT16:
+			return (short)((buf.get(pos)&0xFF)|(buf.get(pos+1)<<8));
+		case UAVObjectFieldDescription.FIELDTYPE_UINT16:
+			return (buf.get(pos)&0xFF)|((buf.get(pos+1)&0xFF)<<8);
+		case UAVObjectFieldDescription.FIELDTYPE_UINT32:
+			return readInt(buf,pos)&0xFFFFFFFFL;
+		default:
+			return readInt(buf,pos);
+		}
+	}
+
+	private static int readInt(ByteBuffer buf,int pos) {
+		return (buf.get(pos)&0xFF)
+				| ((buf.get(pos+1)&0xFF)<<8)
+				| ((buf.get(pos+2)&0xFF)<<16)
+				| ((buf.get(pos+3)&0xFF)<<24);
+	}
+}
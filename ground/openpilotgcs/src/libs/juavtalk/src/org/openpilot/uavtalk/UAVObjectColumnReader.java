@@ -0,0 +1,229 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectColumnReader.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      reads single columns of files written by UAVObjectColumnExporter
+ *
+ * The file is read one row group at a time. Only the time column and the
+ * requested column are decoded - the chunks of all other columns are skipped.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectColumnReader {
+
+	private final DataInputStream in;
+
+	private final int objId;
+	private final String objName;
+	private final String[] names;
+	private final byte[] types;
+	private final byte[] encodings;
+	private final String[] units;
+	private final String[][] options;
+
+	private long[] times=new long[0];
+	private double[] values=new double[0];
+	private long[] deltas=new long[0];
+	private byte[] chunk=new byte[0];
+
+	public UAVObjectColumnReader(File file) throws IOException {
+		in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		if (in.readInt()!=UAVObjectColumnExporter.MAGIC || in.readInt()!=UAVObjectColumnExporter.VERSION) {
+			in.close();
+			throw new IOException("not a column file: "+file);
+		}
+		objId=in.readInt();
+		objName=in.readUTF();
+		int n=in.readInt();
+		names=new String[n];
+		types=new byte[n];
+		encodings=new byte[n];
+		units=new String[n];
+		options=new String[n][];
+		for (int i=0;i<n;i++) {
+			names[i]=in.readUTF();
+			types[i]=in.readByte();
+			encodings[i]=in.readByte();
+			units[i]=in.readUTF();
+			options[i]=new String[in.readInt()];
+			for (int j=0;j<options[i].length;j++)
+				options[i][j]=in.readUTF();
+		}
+	}
+
+	public int getObjID() {
+		return objId;
+	}
+
+	public String getObjName() {
+		return objName;
+	}
+
+	public int getNumColumns() {
+		return names.length;
+	}
+
+	/**
+	 * @return - "Field" or "Field.Element" for arrays
+	 */
+	public String getColumnName(int column) {
+		return names[column];
+	}
+
+	/**
+	 * @return - one of the UAVObjectFieldDescription.FIELDTYPE_ constants
+	 */
+	public byte getColumnType(int column) {
+		return types[column];
+	}
+
+	public String getColumnUnit(int column) {
+		return units[column];
+	}
+
+	/**
+	 * @return - the dictionary of an enum column - empty for other columns
+	 */
+	public String[] getEnumOptions(int column) {
+		return options[column];
+	}
+
+	/**
+	 * @return - index of the column or -1 if there is no such column
+	 */
+	public int findColumn(String name) {
+		for (int i=0;i<names.length;i++)
+			if (names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * read the next row group
+	 *
+	 * @param column - the column to decode - -1 to only decode the times
+	 * @return - number of rows in the group or -1 at the end of the file
+	 */
+	public int nextGroup(int column) throws IOException {
+		int marker;
+		try {
+			marker=in.readInt();
+		} catch (EOFException e) {
+			return -1;
+		}
+		if (marker!=UAVObjectColumnExporter.GROUP_MARKER)
+			throw new IOException("broken row group in "+objName);
+
+		int rows=in.readInt();
+		if (times.length<rows) {
+			times=new long[rows];
+			values=new double[rows];
+			deltas=new long[rows];
+		}
+
+		decodeDelta(readChunk(),rows,times);
+		for (int i=0;i<names.length;i++) {
+			if (i!=column) {
+				in.skipBytes(in.readInt());
+				continue;
+			}
+			int len=readChunk();
+			switch (encodings[i]) {
+			case UAVObjectColumnExporter.ENCODING_RAW:
+				for (int r=0,p=0;r<rows;r++,p+=4)
+					values[r]=Float.intBitsToFloat((chunk[p]&0xFF)|((chunk[p+1]&0xFF)<<8)
+							|((chunk[p+2]&0xFF)<<16)|((chunk[p+3]&0xFF)<<24));
+				break;
+			case UAVObjectColumnExporter.ENCODING_DICTIONARY:
+				int r=0;
+				int p=0;
+				while (p<len) {
+					int value=chunk[p++]&0xFF;
+					long run=0;
+					for (int shift=0;;shift+=7) {
+						byte b=chunk[p++];
+						run|=(long)(b&0x7F)<<shift;
+						if (b>=0)
+							break;
+					}
+					for (long k=0;k<run;k++)
+						values[r++]=value;
+				}
+				break;
+			default:
+				decodeDelta(len,rows,deltas);
+				for (int k=0;k<rows;k++)
+					values[k]=deltas[k];
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return - time of a row of the current group in ms
+	 */
+	public long getTime(int row) {
+		return times[row];
+	}
+
+	/**
+	 * @return - value of a row of the current group - the option index for enums
+	 */
+	public double getValue(int row) {
+		return values[row];
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readChunk() throws IOException {
+		int len=in.readInt();
+		if (chunk.length<len)
+			chunk=new byte[len];
+		in.readFully(chunk,0,len);
+		return len;
+	}
+
+	private void decodeDelta(int len,int rows,long[] dst) {
+		long prev=0;
+		int p=0;
+		for (int r=0;r<rows && p<len;r++) {
+			long v=0;
+			for (int shift=0;;shift+=7) {
+				byte b=chunk[p++];
+				v|=(long)(b&0x7F)<<shift;
+				if (b>=0)
+					break;
+			}
+			prev+=(v>>>1)^-(v&1);
+			dst[r]=prev;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectDefinition.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      an UAVObject definition loaded at runtime
+ *
+ * Holds everything the generator would put into the class of an object: ID,
+ * flags, field descriptions in wire order, the byte offset of every field,
+ * the default data and the default metadata. Definitions are immutable and
+ * shared by all objects created from them - see UAVObjectSchemaLoader.
+ *
+ ****************************************************************************
+*/
+public final class UAVObjectDefinition {
+
+	/**
+	 * typed access to one field of an object with the layout of the definition
+	 * the offset is resolved once, so an access is one bounds check and one
+	 * read of the object data - like the generated accessors
+	 */
+	public final static class Field {
+		private final UAVObjectFieldDescription description;
+		private final int objId;
+		private final int fieldId;
+		private final byte type;
+		private final int offset;
+		private final int numElements;
+		private final int elementSize;
+
+		Field(UAVObjectFieldDescription description,int fieldId,int offset) {
+			this.description=description;
+			this.objId=description.getObjId();
+			this.fieldId=fieldId;
+			this.type=description.getType();
+			this.offset=offset;
+			this.numElements=description.getNumElements();
+			this.elementSize=UAVObjectFieldDescription.getTypeSize(type);
+		}
+
+		public UAVObjectFieldDescription getDescription() {
+			return description;
+		}
+
+		public String getName() {
+			return description.getName();
+		}
+
+		public int getFieldId() {
+			return fieldId;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		/**
+		 * @return - byte offset of the first element in the object data
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getNumElements() {
+			return numElements;
+		}
+
+		public float getFloat(UAVDataObject obj) {
+			return getFloat(obj,0);
+		}
+
+		/**
+		 * @param obj - an object of the definition
+		 * @param idx - the element
+		 * @return - the value - integer fields are converted
+		 */
+		public float getFloat(UAVDataObject obj,int idx) {
+			return readFloat(data(obj),pos(idx));
+		}
+
+		public void setFloat(UAVDataObject obj,float value) {
+			setFloat(obj,0,value);
+		}
+
+		/**
+		 * @param obj - an object of the definition
+		 * @param idx - the element
+		 * @param value - the value - truncated for integer fields
+		 */
+		public void setFloat(UAVDataObject obj,int idx,float value) {
+			ByteBuffer data=data(obj);
+			int pos=pos(idx);
+			obj.beginUpdate();
+			writeFloat(data,pos,value);
+			obj.endUpdate(fieldId);
+		}
+
+		public long getLong(UAVDataObject obj) {
+			return getLong(obj,0);
+		}
+
+		/**
+		 * @param obj - an object of the definition
+		 * @param idx - the element
+		 * @return - the value - unsigned types are not sign extended, enums give the option index
+		 */
+		public long getLong(UAVDataObject obj,int idx) {
+			return readLong(data(obj),pos(idx));
+		}
+
+		public void setLong(UAVDataObject obj,long value) {
+			setLong(obj,0,value);
+		}
+
+		/**
+		 * @param obj - an object of the definition
+		 * @param idx - the element
+		 * @param value - the value - cut to the size of the field type
+		 */
+		public void setLong(UAVDataObject obj,int idx,long value) {
+			ByteBuffer data=data(obj);
+			int pos=pos(idx);
+			obj.beginUpdate();
+			writeLong(data,pos,value);
+			obj.endUpdate(fieldId);
+		}
+
+		/**
+		 * generic ( boxing ) read access with the boxed types of the generated getField()
+		 */
+		public Object get(UAVDataObject obj,int idx) {
+			ByteBuffer data=data(obj);
+			int pos=pos(idx);
+			switch (type) {
+			case UAVObjectFieldDescription.FIELDTYPE_INT8:
+			case UAVObjectFieldDescription.FIELDTYPE_ENUM:
+				return data.get(pos);
+			case UAVObjectFieldDescription.FIELDTYPE_INT16:
+			case UAVObjectFieldDescription.FIELDTYPE_UINT8:
+				return (short)readLong(data,pos);
+			case UAVObjectFieldDescription.FIELDTYPE_INT32:
+			case UAVObjectFieldDescription.FIELDTYPE_UINT16:
+				return (int)readLong(data,pos);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT32:
+				return readLong(data,pos);
+			default:
+				return data.getFloat(pos);
+			}
+		}
+
+		/**
+		 * generic write access - enums also take the option name
+		 */
+		public void set(UAVDataObject obj,int idx,Object val) {
+			if (type==UAVObjectFieldDescription.FIELDTYPE_ENUM)
+				setLong(obj,idx,UAVDataObject.enumOption(val,description.getEnumOptions()));
+			else if (type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32)
+				setFloat(obj,idx,((Number)val).floatValue());
+			else
+				setLong(obj,idx,((Number)val).longValue());
+		}
+
+		private ByteBuffer data(UAVDataObject obj) {
+			if (obj.getObjID()!=objId)
+				throw new IllegalArgumentException(obj.getObjName()+" has no field "+description.getName());
+			return obj.data;
+		}
+
+		private int pos(int idx) {
+			return offset+UAVDataObject.checkIndex(idx,numElements)*elementSize;
+		}
+
+		private float readFloat(ByteBuffer data,int pos) {
+			if (type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32)
+				return data.getFloat(pos);
+			return readLong(data,pos);
+		}
+
+		private void writeFloat(ByteBuffer data,int pos,float value) {
+			if (type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32)
+				data.putFloat(pos,value);
+			else
+				writeLong(data,pos,(long)value);
+		}
+
+		private long readLong(ByteBuffer data,int pos) {
+			switch (type) {
+			case UAVObjectFieldDescription.FIELDTYPE_INT8:
+				return data.get(pos);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT8:
+			case UAVObjectFieldDescription.FIELDTYPE_ENUM:
+				return data.get(pos)&0xFF;
+			case UAVObjectFieldDescription.FIELDTYPE_INT16:
+				return data.getShort(pos);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT16:
+				return data.getShort(pos)&0xFFFF;
+			case UAVObjectFieldDescription.FIELDTYPE_INT32:
+				return data.getInt(pos);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT32:
+				return data.getInt(pos)&0xFFFFFFFFL;
+			default:
+				return (long)data.getFloat(pos);
+			}
+		}
+
+		private void writeLong(ByteBuffer data,int pos,long value) {
+			switch (elementSize) {
+			case 1:
+				data.put(pos,(byte)value);
+				break;
+			case 2:
+				data.putShort(pos,(short)value);
+				break;
+			default:
+				if (type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32)
+					data.putFloat(pos,value);
+				else
+					data.putInt(pos,(int)value);
+			}
+		}
+	}
+
+	private final int objId;
+	private final String name;
+	private final String description;
+	private final String fileName;
+	private final boolean singleInstance;
+	private final boolean settings;
+	private final boolean priority;
+
+	private final UAVObjectFieldDescription[] fieldDescriptions;
+	private final Field[] fields;
+	private final HashMap<String,Field> byName=new HashMap<String,Field>();
+	private final int numBytes;
+	private final byte[] defaultData;
+	private final UAVObjectMetaData metaData;
+
+	/**
+	 * @param fieldDescriptions - the fields in wire order
+	 * @param defaults - default value strings per field and element - null for fields without defaults
+	 * @param metaData - the default metadata
+	 */
+	UAVObjectDefinition(int objId,String name,String description,String fileName,
+			boolean singleInstance,boolean settings,boolean priority,
+			UAVObjectFieldDescription[] fieldDescriptions,String[][] defaults,UAVObjectMetaData metaData) {
+		this.objId=objId;
+		this.name=name;
+		this.description=description;
+		this.fileName=fileName;
+		this.singleInstance=singleInstance;
+		this.settings=settings;
+		this.priority=priority;
+		this.fieldDescriptions=fieldDescriptions;
+		this.metaData=metaData;
+
+		fields=new Field[fieldDescriptions.length];
+		int offset=0;
+		for (int n=0;n<fields.length;n++) {
+			UAVObjectFieldDescription f=fieldDescriptions[n];
+			fields[n]=new Field(f,n,offset);
+			byName.put(f.getName(),fields[n]);
+			offset+=UAVObjectFieldDescription.getTypeSize(f.getType())*f.getNumElements();
+		}
+		numBytes=offset;
+
+		ByteBuffer data=ByteBuffer.allocate(numBytes);
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		for (int n=0;n<fields.length;n++) {
+			if (defaults[n]==null)
+				continue;
+			Field f=fields[n];
+			for (int idx=0;idx<f.numElements;idx++) {
+				int pos=f.offset+idx*f.elementSize;
+				String value=defaults[n][idx];
+				if (f.type==UAVObjectFieldDescription.FIELDTYPE_ENUM)
+					f.writeLong(data,pos,Math.max(indexOf(f.description.getEnumOptions(),value),0));
+				else if (f.type==UAVObjectFieldDescription.FIELDTYPE_FLOAT32)
+					f.writeFloat(data,pos,parseFloat(value));
+				else
+					f.writeLong(data,pos,parseLong(value));
+			}
+		}
+		defaultData=data.array();
+	}
+
+	public int getObjID() {
+		return objId;
+	}
+
+	public String getObjName() {
+		return name;
+	}
+
+	public String getObjDescription() {
+		return description;
+	}
+
+	/**
+	 * @return - name of the XML file the object was defined in
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	public boolean isSingleInstance() {
+		return singleInstance;
+	}
+
+	public boolean isSettings() {
+		return settings;
+	}
+
+	public boolean isPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return - the length of the object data
+	 */
+	public int getNumBytes() {
+		return numBytes;
+	}
+
+	public UAVObjectFieldDescription[] getFieldDescriptions() {
+		return fieldDescriptions;
+	}
+
+	public int getNumFields() {
+		return fields.length;
+	}
+
+	/**
+	 * @param fieldId - index of the field in wire order
+	 */
+	public Field getField(int fieldId) {
+		return fields[fieldId];
+	}
+
+	/**
+	 * @param name - the field name as in the XML definition
+	 * @return - the field or null
+	 */
+	public Field getField(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * copy the default metadata of the definition
+	 *
+	 * @param meta - the metadata to fill
+	 */
+	public void fillMetaData(UAVObjectMetaData meta) {
+		meta.gcsAccess=metaData.gcsAccess;
+		meta.gcsTelemetryAcked=metaData.gcsTelemetryAcked;
+		meta.gcsTelemetryUpdateMode=metaData.gcsTelemetryUpdateMode;
+		meta.gcsTelemetryUpdatePeriod=metaData.gcsTelemetryUpdatePeriod;
+		meta.flightAccess=metaData.flightAccess;
+		meta.flightTelemetryAcked=metaData.flightTelemetryAcked;
+		meta.flightTelemetryUpdateMode=metaData.flightTelemetryUpdateMode;
+		meta.flightTelemetryUpdatePeriod=metaData.flightTelemetryUpdatePeriod;
+		meta.loggingUpdateMode=metaData.loggingUpdateMode;
+		meta.loggingUpdatePeriod=metaData.loggingUpdatePeriod;
+	}
+
+	/**
+	 * create an object with the default field values
+	 *
+	 * @param instId - the instance ID
+	 */
+	public UAVDynamicObject newObject(int instId) {
+		UAVDynamicObject obj=new UAVDynamicObject(this);
+		obj.setInstID(instId);
+		return obj;
+	}
+
+	/**
+	 * copy the default data into an object of this definition
+	 */
+	void setDefaults(UAVDataObject obj) {
+		System.arraycopy(defaultData,0,obj.data.array(),0,numBytes);
+	}
+
+	private static int indexOf(String[] options,String value) {
+		for (int i=0;i<options.length;i++)
+			if (options[i].equals(value))
+				return i;
+		return -1;
+	}
+
+	/* like QString::toFloat() / toLongLong() used by the generator - 0 if the value is invalid */
+
+	private static float parseFloat(String value) {
+		try {
+			return Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
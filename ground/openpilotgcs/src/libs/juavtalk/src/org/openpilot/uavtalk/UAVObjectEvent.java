@@ -0,0 +1,109 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectEvent.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      an object update delivered by the UAVObjectEventBus
+ *
+ * A subscription reuses the same event for every update, so an event is only
+ * valid during the UAVObjectEventHandler callback. The data is a copy of the
+ * object as it was published - the object itself may have changed since.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectEvent {
+
+	UAVObject obj;
+	int objId;
+	long time;
+	long fieldMask;
+	long sequence;
+	int length;
+	final byte[] data;
+
+	UAVObjectEvent(int maxDataLength) {
+		data=new byte[maxDataLength];
+	}
+
+	public int getObjID() {
+		return objId;
+	}
+
+	/**
+	 * @return - the published object - its data may be newer than the event
+	 */
+	public UAVObject getObject() {
+		return obj;
+	}
+
+	/**
+	 * @return - time in ms at which the update was published
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return - bit n is set if field n changed - all bits if unknown
+	 */
+	public long getFieldMask() {
+		return fieldMask;
+	}
+
+	public boolean hasFieldChanged(int fieldId) {
+		return (fieldMask&UAVDataObject.fieldBit(fieldId))!=0;
+	}
+
+	/**
+	 * @return - position of the update in the bus - gaps mean updates were filtered, conflated or lost
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return - true if the event carries a copy of the object data
+	 */
+	public boolean hasData() {
+		return length>=0;
+	}
+
+	public int getDataLength() {
+		return length;
+	}
+
+	/**
+	 * @return - the copied data - only valid during the callback
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * deserialize the published data into an object - e.g. a private copy of the consumer
+	 *
+	 * @param dst - the object to fill
+	 */
+	public void deserializeInto(UAVObject dst) {
+		if (length>=0)
+			dst.deserialize(data,0);
+	}
+}
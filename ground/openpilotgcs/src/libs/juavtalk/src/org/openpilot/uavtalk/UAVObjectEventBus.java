@@ -0,0 +1,393 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectEventBus.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      single producer / multi consumer ring of object updates
+ *
+ * The producer ( normally the thread decoding a link, see
+ * UAVTalkSession.setEventBus() ) copies every update into a preallocated
+ * slot of the ring - publishing takes no lock and allocates nothing. Every
+ * subscription reads the ring with its own cursor, so a slow consumer never
+ * stalls the producer: if it falls more than one turn of the ring behind, the
+ * overwritten updates are counted as lost and it continues with the oldest
+ * update still available.
+ *
+ * A slot is written like a seqlock - its sequence is invalidated before and
+ * set after the data is written, and readers check it before and after copying.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectEventBus {
+
+	public final static int DEFAULT_SIZE=1024;
+	public final static int DEFAULT_MAX_DATA_LENGTH=256;
+	public final static int DEFAULT_BATCH_SIZE=64;
+
+	/** polls before a waiting consumer parks - parking and unparking costs more than a short spin */
+	private final static int SPIN_TRIES=100;
+
+	/** field mask of updates without information about the changed fields */
+	public final static long ALL_FIELDS=-1L;
+
+	/**
+	 * one consumer of the bus - to be polled by one thread
+	 */
+	public final class Subscription {
+		private final int[] filter;
+		private final long fieldMask;
+		private final boolean conflate;
+		private final int batchSize;
+		private final UAVObjectEvent event=new UAVObjectEvent(maxDataLength);
+
+		/* conflation - latest sequence per object of the current batch and the
+		   fields its updates changed. Not an ObjectIdTable: the map is cleared and
+		   refilled for every batch and must not allocate, while an ObjectIdTable
+		   copies itself on every put */
+		private final long[] pending;
+		private final long[] pendingMasks;
+		private final int[] mapKeys;
+		private final int[] mapValues;
+
+		private long nextSeq;
+		private long lost;
+		private volatile Thread waiter;
+
+		Subscription(int[] filter,long fieldMask,boolean conflate,int batchSize) {
+			this.filter=filter;
+			this.fieldMask=fieldMask;
+			this.conflate=conflate;
+			this.batchSize=batchSize;
+			pending=new long[batchSize];
+			pendingMasks=new long[batchSize];
+			int n=2;
+			while (n<batchSize*2)
+				n<<=1;
+			mapKeys=new int[n];
+			mapValues=new int[n];
+			Arrays.fill(mapValues,-1);
+			nextSeq=cursor.get()+1;
+		}
+
+		/**
+		 * deliver the available updates - at most one batch
+		 *
+		 * @param handler - gets the updates
+		 * @return - number of updates delivered
+		 */
+		public int poll(UAVObjectEventHandler handler) {
+			long available=cursor.get();
+			if (available<nextSeq)
+				return 0;
+			if (available-nextSeq>=size) {
+				long oldest=available-size+1;
+				lost+=oldest-nextSeq;
+				nextSeq=oldest;
+			}
+			long end=Math.min(available,nextSeq+batchSize-1);
+
+			int delivered=conflate?pollConflated(handler,end):pollAll(handler,end);
+			nextSeq=end+1;
+			if (delivered>0)
+				handler.endOfBatch();
+			return delivered;
+		}
+
+		/**
+		 * wait for updates and deliver them - at most one batch
+		 *
+		 * @param handler - gets the updates
+		 * @param timeout - ms to wait at most
+		 * @return - number of updates delivered - 0 on timeout
+		 */
+		public int poll(UAVObjectEventHandler handler,long timeout) {
+			long deadline=System.nanoTime()+timeout*1000000L;
+			int spins=0;
+			while (true) {
+				int n=poll(handler);
+				if (n>0)
+					return n;
+				if (spins++<SPIN_TRIES) {
+					Thread.onSpinWait();
+					continue;
+				}
+				long wait=deadline-System.nanoTime();
+				if (wait<=0 || Thread.interrupted())
+					return 0;
+				waiter=Thread.currentThread();
+				if (cursor.get()<nextSeq)
+					LockSupport.parkNanos(this,wait);
+				waiter=null;
+			}
+		}
+
+		/**
+		 * @return - updates which were overwritten before they were read
+		 */
+		public long getLost() {
+			return lost;
+		}
+
+		public void close() {
+			unsubscribe(this);
+		}
+
+		private int pollAll(UAVObjectEventHandler handler,long end) {
+			int delivered=0;
+			for (long s=nextSeq;s<=end;s++) {
+				if (!read(s,event,true)) {
+					lost++;
+					continue;
+				}
+				if (matches(event)) {
+					handler.onEvent(event);
+					delivered++;
+				}
+			}
+			return delivered;
+		}
+
+		private int pollConflated(UAVObjectEventHandler handler,long end) {
+			int n=0;
+			int mask=mapKeys.length-1;
+			for (long s=nextSeq;s<=end;s++) {
+				if (!read(s,event,false)) {
+					lost++;
+					continue;
+				}
+				if (!matches(event))
+					continue;
+				int i=ObjectIdTable.mix(event.objId)&mask;
+				while (mapValues[i]>=0 && mapKeys[i]!=event.objId)
+					i=(i+1)&mask;
+				if (mapValues[i]>=0) {
+					pending[mapValues[i]]=s;
+					pendingMasks[mapValues[i]]|=event.fieldMask;
+				} else {
+					mapKeys[i]=event.objId;
+					mapValues[i]=n;
+					pendingMasks[n]=event.fieldMask;
+					pending[n++]=s;
+				}
+			}
+
+			int delivered=0;
+			for (int p=0;p<n;p++) {
+				if (read(pending[p],event,true)) {
+					event.fieldMask=pendingMasks[p];
+					handler.onEvent(event);
+					delivered++;
+				} else {
+					lost++;
+				}
+			}
+			if (n>0)
+				Arrays.fill(mapValues,-1);
+			return delivered;
+		}
+
+		private boolean matches(UAVObjectEvent e) {
+			if (fieldMask!=ALL_FIELDS && (e.fieldMask&fieldMask)==0)
+				return false;
+			return filter==null || Arrays.binarySearch(filter,e.objId)>=0;
+		}
+	}
+
+	private final int size;
+	private final int mask;
+	private final int maxDataLength;
+
+	private final AtomicLongArray sequences;
+	private final UAVObject[] objects;
+	private final int[] objIds;
+	private final long[] times;
+	private final long[] fieldMasks;
+	private final int[] lengths;
+	private final ByteBuffer slotData;
+
+	/** last published sequence */
+	private final AtomicLong cursor=new AtomicLong(-1);
+	private long next;
+
+	private volatile Subscription[] subscriptions=new Subscription[0];
+
+	public UAVObjectEventBus() {
+		this(DEFAULT_SIZE,DEFAULT_MAX_DATA_LENGTH);
+	}
+
+	/**
+	 * @param size - number of slots - rounded up to a power of 2
+	 * @param maxDataLength - objects with more data are published without a copy of it
+	 */
+	public UAVObjectEventBus(int size,int maxDataLength) {
+		int n=1;
+		while (n<size)
+			n<<=1;
+		this.size=n;
+		mask=n-1;
+		this.maxDataLength=maxDataLength;
+		sequences=new AtomicLongArray(n);
+		for (int i=0;i<n;i++)
+			sequences.set(i,-1);
+		objects=new UAVObject[n];
+		objIds=new int[n];
+		times=new long[n];
+		fieldMasks=new long[n];
+		lengths=new int[n];
+		slotData=ByteBuffer.allocate(n*maxDataLength);
+		slotData.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * subscribe to the updates of some objects
+	 *
+	 * @param objIds - the objects - null for all objects
+	 * @param fieldMask - only updates changing one of these fields ( bit n for field n ) - ALL_FIELDS for all updates
+	 * @param conflate - only deliver the latest update per object of a batch
+	 * @param batchSize - maximum number of updates per poll
+	 */
+	public synchronized Subscription subscribe(int[] objIds,long fieldMask,boolean conflate,int batchSize) {
+		int[] filter=null;
+		if (objIds!=null) {
+			filter=objIds.clone();
+			Arrays.sort(filter);
+		}
+		Subscription s=new Subscription(filter,fieldMask,conflate,batchSize);
+		Subscription[] subs=Arrays.copyOf(subscriptions,subscriptions.length+1);
+		subs[subs.length-1]=s;
+		subscriptions=subs;
+		return s;
+	}
+
+	/**
+	 * subscribe to all updates of one object
+	 */
+	public Subscription subscribe(int objId) {
+		return subscribe(new int[] {objId},ALL_FIELDS,false,DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * subscribe to the updates of all objects
+	 */
+	public Subscription subscribeAll(boolean conflate) {
+		return subscribe(null,ALL_FIELDS,conflate,DEFAULT_BATCH_SIZE);
+	}
+
+	public synchronized void unsubscribe(Subscription s) {
+		Subscription[] subs=subscriptions;
+		for (int i=0;i<subs.length;i++) {
+			if (subs[i]==s) {
+				Subscription[] res=new Subscription[subs.length-1];
+				System.arraycopy(subs,0,res,0,i);
+				System.arraycopy(subs,i+1,res,i,subs.length-i-1);
+				subscriptions=res;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * publish an update of all fields with the current time
+	 */
+	public void publish(UAVObject obj) {
+		publish(obj,ALL_FIELDS,System.currentTimeMillis());
+	}
+
+	/**
+	 * publish an update - must only be called by one thread
+	 *
+	 * @param obj - the updated object - its data is copied
+	 * @param fieldMask - bit n is set if field n changed
+	 * @param time - time of the update in ms
+	 */
+	public void publish(UAVObject obj,long fieldMask,long time) {
+		long seq=next++;
+		int i=(int)(seq&mask);
+
+		// invalidate the slot before its data is overwritten
+		sequences.setOpaque(i,-1);
+		VarHandle.storeStoreFence();
+
+		objects[i]=obj;
+		objIds[i]=obj.getObjID();
+		times[i]=time;
+		fieldMasks[i]=fieldMask;
+		int len=obj.getDataLength();
+		if (len<=maxDataLength) {
+			obj.serialize(slotData,i*maxDataLength);
+			lengths[i]=len;
+		} else {
+			lengths[i]=-1;
+		}
+
+		sequences.lazySet(i,seq);
+		// a full store - the waiters must not be read before the cursor is visible,
+		// the consumer writes waiter before it reads the cursor
+		cursor.set(seq);
+
+		Subscription[] subs=subscriptions;
+		for (int s=0;s<subs.length;s++) {
+			Thread w=subs[s].waiter;
+			if (w!=null) {
+				// unpark only once per wait - the consumer checks the cursor before parking
+				subs[s].waiter=null;
+				LockSupport.unpark(w);
+			}
+		}
+	}
+
+	/**
+	 * @return - sequence of the last published update - -1 if nothing was published
+	 */
+	public long getCursor() {
+		return cursor.get();
+	}
+
+	/**
+	 * copy a slot into an event
+	 *
+	 * @return - false if the slot was overwritten in the meantime
+	 */
+	private boolean read(long seq,UAVObjectEvent e,boolean withData) {
+		int i=(int)(seq&mask);
+		if (sequences.get(i)!=seq)
+			return false;
+		e.obj=objects[i];
+		e.objId=objIds[i];
+		e.time=times[i];
+		e.fieldMask=fieldMasks[i];
+		e.sequence=seq;
+		int len=lengths[i];
+		e.length=len;
+		if (withData && len>0)
+			System.arraycopy(slotData.array(),i*maxDataLength,e.data,0,Math.min(len,maxDataLength));
+		VarHandle.acquireFence();
+		return sequences.get(i)==seq;
+	}
+}
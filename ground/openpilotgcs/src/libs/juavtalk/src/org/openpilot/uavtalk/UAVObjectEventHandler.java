@@ -0,0 +1,40 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectEventHandler.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      consumer of a UAVObjectEventBus subscription
+ *
+ ****************************************************************************
+*/
+public interface UAVObjectEventHandler {
+
+	/**
+	 * @param event - the update - only valid during the call
+	 */
+	public void onEvent(UAVObjectEvent event);
+
+	/**
+	 * called after the last event of a poll - e.g. to repaint once per batch
+	 */
+	public void endOfBatch();
+
+}
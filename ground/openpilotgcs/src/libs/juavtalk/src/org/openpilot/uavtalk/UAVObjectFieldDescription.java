@@ -85,5 +85,30 @@ public class UAVObjectFieldDescription {
 	public byte getType() {
 		return type;
 	}
+
+	/**
+	 * @return - number of elements - 1 if the field is no array
+	 */
+	public int getNumElements() {
+		return (elementNames==null || elementNames.length==0)?1:elementNames.length;
+	}
+
+	/**
+	 * @param type - one of the FIELDTYPE_ constants
+	 * @return - size of one element in bytes
+	 */
+	public final static int getTypeSize(byte type) {
+		switch (type) {
+		case FIELDTYPE_INT8:
+		case FIELDTYPE_UINT8:
+		case FIELDTYPE_ENUM:
+			return 1;
+		case FIELDTYPE_INT16:
+		case FIELDTYPE_UINT16:
+			return 2;
+		default:
+			return 4;
+		}
+	}
 	
 }
\ No newline at end of file
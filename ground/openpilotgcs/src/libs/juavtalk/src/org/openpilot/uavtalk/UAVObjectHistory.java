@@ -0,0 +1,499 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectHistory.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      off-heap history of the last samples of tracked objects
+ *
+ * Every tracked object gets a Series: one direct buffer holding a ring of
+ * sample times and one ring per field element, stored with the size of its
+ * field type. The last capacity updates are kept, older ones are overwritten.
+ * A session fills the history from the frames it deserializes ( see
+ * UAVTalkSession.setHistory() ), so consumers like scopes and health checks
+ * share one buffer instead of keeping their own lists of boxed values.
+ *
+ * Recording must be done by one thread. Queries may run on any thread and
+ * do not allocate - like a seqlock they check afterwards whether the samples
+ * they read were overwritten in the meantime and retry if so. Sample times
+ * are expected to be ascending, windows are found by binary search.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectHistory implements UAVTalkFrameListener {
+
+	/**
+	 * the samples of one object
+	 */
+	public final static class Series {
+		private final UAVObject obj;
+		private final int capacity;
+		private final ByteBuffer buf;
+		private final String[] names;
+		private final byte[] types;
+		private final int[] srcOffsets;
+		private final int[] ringOffsets;
+		private final int dataLength;
+
+		/** number of samples ever recorded - set after a sample was written */
+		private volatile long count;
+		/** number of samples whose writing started - set before a sample is written */
+		private volatile long started;
+
+		Series(UAVObject obj,int capacity) {
+			this.obj=obj;
+			this.capacity=capacity;
+			UAVObjectFieldDescription[] fields=obj.getFieldDescriptions();
+			int n=0;
+			for (int i=0;i<fields.length;i++)
+				n+=fields[i].getNumElements();
+			names=new String[n];
+			types=new byte[n];
+			srcOffsets=new int[n];
+			ringOffsets=new int[n];
+
+			int src=0;
+			int ring=capacity*8;
+			int c=0;
+			for (int i=0;i<fields.length;i++) {
+				UAVObjectFieldDescription f=fields[i];
+				int size=UAVObjectFieldDescription.getTypeSize(f.getType());
+				for (int j=0;j<f.getNumElements();j++) {
+					names[c]=f.getNumElements()>1?f.getName()+"."+f.getElementNames()[j]:f.getName();
+					types[c]=f.getType();
+					srcOffsets[c]=src;
+					ringOffsets[c]=ring;
+					src+=size;
+					ring+=capacity*size;
+					c++;
+				}
+			}
+			dataLength=src;
+			buf=ByteBuffer.allocateDirect(ring);
+			buf.order(ByteOrder.nativeOrder());
+		}
+
+		public UAVObject getObject() {
+			return obj;
+		}
+
+		public int getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * @return - number of field elements - the columns of the series
+		 */
+		public int getNumColumns() {
+			return names.length;
+		}
+
+		/**
+		 * @param name - field name, "Field.Element" for elements of array fields
+		 * @return - the column - -1 if there is none with this name
+		 */
+		public int getColumn(String name) {
+			for (int i=0;i<names.length;i++) {
+				if (names[i].equals(name))
+					return i;
+			}
+			return -1;
+		}
+
+		public String getColumnName(int column) {
+			return names[column];
+		}
+
+		/**
+		 * @return - number of samples ever recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return - number of samples available
+		 */
+		public int size() {
+			return (int)Math.min(count,capacity);
+		}
+
+		/**
+		 * @return - time of the latest sample - Long.MIN_VALUE if there is none
+		 */
+		public long getLatestTime() {
+			while (true) {
+				long n=count;
+				if (n==0)
+					return Long.MIN_VALUE;
+				long res=time(n-1);
+				if (valid(n-1))
+					return res;
+			}
+		}
+
+		/**
+		 * @return - the latest value of a column - NaN if there is none
+		 */
+		public double getLatest(int column) {
+			while (true) {
+				long n=count;
+				if (n==0)
+					return Double.NaN;
+				double res=value(column,n-1);
+				if (valid(n-1))
+					return res;
+			}
+		}
+
+		/**
+		 * @param from - start of the window in ms
+		 * @param to - end of the window in ms ( inclusive )
+		 * @return - smallest value of the column in the window - NaN if the window is empty
+		 */
+		public double min(int column,long from,long to) {
+			while (true) {
+				long first=find(from);
+				long end=findAfter(to);
+				double res=Double.NaN;
+				for (long s=first;s<end;s++) {
+					double v=value(column,s);
+					if (!(v>=res))
+						res=v;
+				}
+				if (valid(first))
+					return res;
+			}
+		}
+
+		/**
+		 * @param from - start of the window in ms
+		 * @param to - end of the window in ms ( inclusive )
+		 * @return - biggest value of the column in the window - NaN if the window is empty
+		 */
+		public double max(int column,long from,long to) {
+			while (true) {
+				long first=find(from);
+				long end=findAfter(to);
+				double res=Double.NaN;
+				for (long s=first;s<end;s++) {
+					double v=value(column,s);
+					if (!(v<=res))
+						res=v;
+				}
+				if (valid(first))
+					return res;
+			}
+		}
+
+		/**
+		 * @param from - start of the window in ms
+		 * @param to - end of the window in ms ( inclusive )
+		 * @return - mean of the column in the window - NaN if the window is empty
+		 */
+		public double mean(int column,long from,long to) {
+			while (true) {
+				long first=find(from);
+				long end=findAfter(to);
+				double sum=0;
+				for (long s=first;s<end;s++)
+					sum+=value(column,s);
+				if (valid(first))
+					return end>first?sum/(end-first):Double.NaN;
+			}
+		}
+
+		/**
+		 * copy the samples of a window
+		 *
+		 * @param from - start of the window in ms
+		 * @param to - end of the window in ms ( inclusive )
+		 * @param times - gets the times - may be null
+		 * @param values - gets the values
+		 * @return - number of samples copied - at most values.length, the latest ones
+		 */
+		public int copy(int column,long from,long to,long[] times,double[] values) {
+			while (true) {
+				long end=findAfter(to);
+				long first=Math.max(find(from),end-values.length);
+				int n=0;
+				for (long s=first;s<end;s++,n++) {
+					if (times!=null)
+						times[n]=time(s);
+					values[n]=value(column,s);
+				}
+				if (valid(first))
+					return n;
+			}
+		}
+
+		/**
+		 * reduce a window to min.length buckets of equal duration - min and max
+		 * per bucket keep the peaks a plot would lose by picking samples
+		 *
+		 * @param from - start of the window in ms
+		 * @param to - end of the window in ms ( inclusive )
+		 * @param min - gets the smallest value per bucket - NaN for empty buckets
+		 * @param max - gets the biggest value per bucket - may be null
+		 * @param mean - gets the mean per bucket - may be null
+		 * @return - number of buckets which got samples
+		 */
+		public int downsample(int column,long from,long to,double[] min,double[] max,double[] mean) {
+			int buckets=min.length;
+			// in double - to-from+1 overflows for windows like from 0 to Long.MAX_VALUE
+			double duration=(double)to-from+1;
+			while (true) {
+				for (int b=0;b<buckets;b++) {
+					min[b]=Double.NaN;
+					if (max!=null)
+						max[b]=Double.NaN;
+					if (mean!=null)
+						mean[b]=0;
+				}
+				long first=find(from);
+				long end=findAfter(to);
+				int filled=0;
+				int bucket=-1;
+				int n=0;
+				for (long s=first;s<=end;s++) {
+					int b=s<end?Math.min((int)(((double)time(s)-from)*buckets/duration),buckets-1):buckets;
+					if (b!=bucket) {
+						if (bucket>=0) {
+							if (mean!=null)
+								mean[bucket]/=n;
+							filled++;
+						}
+						bucket=b;
+						n=0;
+					}
+					if (s==end)
+						break;
+					double v=value(column,s);
+					if (!(v>=min[b]))
+						min[b]=v;
+					if (max!=null && !(v<=max[b]))
+						max[b]=v;
+					if (mean!=null)
+						mean[b]+=v;
+					n++;
+				}
+				if (valid(first)) {
+					if (mean!=null) {
+						for (int b=0;b<buckets;b++) {
+							if (Double.isNaN(min[b]))
+								mean[b]=Double.NaN;
+						}
+					}
+					return filled;
+				}
+			}
+		}
+
+		/**
+		 * append a sample - only called by the recording thread
+		 */
+		void record(ByteBuffer src,int offset,long time) {
+			long n=count;
+			int slot=(int)(n%capacity);
+			// invalidate the oldest sample before it is overwritten
+			started=n+1;
+			VarHandle.storeStoreFence();
+			buf.putLong(slot*8,time);
+			for (int c=0;c<types.length;c++) {
+				int pos=offset+srcOffsets[c];
+				int dst=ringOffsets[c];
+				switch (types[c]) {
+				case UAVObjectFieldDescription.FIELDTYPE_INT8:
+				case UAVObjectFieldDescription.FIELDTYPE_UINT8:
+				case UAVObjectFieldDescription.FIELDTYPE_ENUM:
+					buf.put(dst+slot,src.get(pos));
+					break;
+				case UAVObjectFieldDescription.FIELDTYPE_INT16:
+				case UAVObjectFieldDescription.FIELDTYPE_UINT16:
+					buf.putShort(dst+slot*2,(short)((src.get(pos)&0xFF)|(src.get(pos+1)<<8)));
+					break;
+				default:
+					buf.putInt(dst+slot*4,(src.get(pos)&0xFF)
+							| ((src.get(pos+1)&0xFF)<<8)
+							| ((src.get(pos+2)&0xFF)<<16)
+							| ((src.get(pos+3)&0xFF)<<24));
+				}
+			}
+			count=n+1;
+		}
+
+		private long time(long seq) {
+			return buf.getLong((int)(seq%capacity)*8);
+		}
+
+		private double value(int column,long seq) {
+			int slot=(int)(seq%capacity);
+			int pos=ringOffsets[column];
+			switch (types[column]) {
+			case UAVObjectFieldDescription.FIELDTYPE_INT8:
+				return buf.get(pos+slot);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT8:
+			case UAVObjectFieldDescription.FIELDTYPE_ENUM:
+				return buf.get(pos+slot)&0xFF;
+			case UAVObjectFieldDescription.FIELDTYPE_INT16:
+				return buf.getShort(pos+slot*2);
+			case UAVObjectFieldDescription.FIELDTYPE_UINT16:
+				return buf.getShort(pos+slot*2)&0xFFFF;
+			case UAVObjectFieldDescription.FIELDTYPE_UINT32:
+				return buf.getInt(pos+slot*4)&0xFFFFFFFFL;
+			case UAVObjectFieldDescription.FIELDTYPE_FLOAT32:
+				return Float.intBitsToFloat(buf.getInt(pos+slot*4));
+			default:
+				return buf.getInt(pos+slot*4);
+			}
+		}
+
+		/**
+		 * @return - first available sample with a time of at least t
+		 */
+		private long find(long t) {
+			long end=count;
+			long lo=Math.max(0,end-capacity);
+			long hi=end;
+			while (lo<hi) {
+				long mid=(lo+hi)>>>1;
+				if (time(mid)<t)
+					lo=mid+1;
+				else
+					hi=mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @return - first available sample with a time after t - the end for Long.MAX_VALUE
+		 */
+		private long findAfter(long t) {
+			return (t==Long.MAX_VALUE)?count:find(t+1);
+		}
+
+		/**
+		 * @return - true if the samples from seq on were not overwritten while they were read
+		 */
+		private boolean valid(long seq) {
+			VarHandle.acquireFence();
+			return seq>=started-capacity;
+		}
+	}
+
+	/** copy-on-write table objId -> Series */
+	private volatile ObjectIdTable<Series> table=new ObjectIdTable<Series>(16);
+	private ByteBuffer scratch=ByteBuffer.allocate(0);
+
+	private long samples;
+	private long skipped;
+
+	/**
+	 * keep the last samples of an object - an object which is already tracked
+	 * keeps its series
+	 *
+	 * @param obj - the object
+	 * @param capacity - number of samples to keep, e.g. rate * seconds
+	 * @return - the series of the object
+	 */
+	public synchronized Series track(UAVObject obj,int capacity) {
+		Series s=table.get(obj.getObjID());
+		if (s!=null)
+			return s;
+		s=new Series(obj,capacity);
+		table=table.put(obj.getObjID(),s);
+		return s;
+	}
+
+	/**
+	 * @return - the series of an object - null if it is not tracked
+	 */
+	public Series getSeries(int objId) {
+		return table.get(objId);
+	}
+
+	/**
+	 * record a frame with the current time
+	 */
+	public void onFrame(UAVTalkFrame frame) {
+		record(frame,System.currentTimeMillis());
+	}
+
+	/**
+	 * record the object data of a frame - frames of untracked objects and
+	 * frames without object data are ignored
+	 *
+	 * @param frame - the frame
+	 * @param time - time of the sample in ms
+	 * @return - false if the frame was not recorded
+	 */
+	public boolean record(UAVTalkFrame frame,long time) {
+		byte type=frame.getType();
+		if (type!=UAVTalkDefinitions.TYPE_OBJ && type!=UAVTalkDefinitions.TYPE_OBJ_ACK)
+			return false;
+		Series s=getSeries(frame.getObjID());
+		if (s==null)
+			return false;
+		if (frame.getPayloadLength()!=s.dataLength) {
+			skipped++;
+			return false;
+		}
+		s.record(frame.getBuffer(),frame.getPayloadOffset(),time);
+		samples++;
+		return true;
+	}
+
+	/**
+	 * record the current data of a tracked object
+	 *
+	 * @param obj - the object
+	 * @param time - time of the sample in ms
+	 * @return - false if the object is not tracked
+	 */
+	public boolean record(UAVObject obj,long time) {
+		Series s=getSeries(obj.getObjID());
+		if (s==null)
+			return false;
+		if (scratch.capacity()<s.dataLength)
+			scratch=ByteBuffer.allocate(s.dataLength);
+		obj.serialize(scratch,0);
+		s.record(scratch,0,time);
+		samples++;
+		return true;
+	}
+
+	/**
+	 * @return - samples recorded
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return - frames of tracked objects with a wrong length
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectLogger.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      destination for objects logged by the UAVObjectScheduler
+ *
+ ****************************************************************************
+*/
+public interface UAVObjectLogger {
+
+	/**
+	 * @param obj - the object to log - its current data is serialized
+	 * @param time - time in ms at which the object was logged
+	 */
+	public void logObject(UAVObject obj,long time) throws IOException;
+
+}
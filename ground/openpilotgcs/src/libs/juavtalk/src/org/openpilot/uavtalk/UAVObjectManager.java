@@ -0,0 +1,209 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.util.HashMap;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectManager.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      thread-safe registry of UAVObjects and their instances
+ *
+ * Objects are kept in an open-addressing table keyed by the int object ID,
+ * each slot holding the instances of that object indexed by instance ID.
+ * Registration copies the table and publishes the new one, so lookups never
+ * lock and never allocate - registering happens rarely, lookups for every frame.
+ *
+ * Objects can also be registered lazily by adding an UAVObjectCatalog: instance
+ * 0 of a catalog object is created and registered on its first lookup by ID or
+ * name, so a manager only holds the objects which are actually used.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectManager {
+
+	/** immutable snapshot of the registry */
+	private final static class Table {
+		final ObjectIdTable<UAVObject[]> instances;
+		final UAVObject[] all;
+		final HashMap<String,UAVObject> byName;
+
+		Table(ObjectIdTable<UAVObject[]> instances,UAVObject[] all,HashMap<String,UAVObject> byName) {
+			this.instances=instances;
+			this.all=all;
+			this.byName=byName;
+		}
+	}
+
+	private final static int MIN_CAPACITY=64;
+
+	private volatile Table table=new Table(new ObjectIdTable<UAVObject[]>(MIN_CAPACITY),new UAVObject[0],new HashMap<String,UAVObject>());
+	private volatile UAVObjectCatalog[] catalogs=new UAVObjectCatalog[0];
+
+	/**
+	 * make the objects of a catalog available - they are created on demand
+	 * objects registered directly take precedence over catalog objects
+	 *
+	 * @param catalog - the catalog - may be shared by many managers
+	 */
+	public synchronized void addCatalog(UAVObjectCatalog catalog) {
+		UAVObjectCatalog[] res=new UAVObjectCatalog[catalogs.length+1];
+		System.arraycopy(catalogs,0,res,0,catalogs.length);
+		res[catalogs.length]=catalog;
+		catalogs=res;
+	}
+
+	/**
+	 * register an object as instance 0
+	 *
+	 * @param obj - the object to register
+	 * @return - false if the instance was already registered
+	 */
+	public boolean registerObject(UAVObject obj) {
+		return registerObject(obj,0);
+	}
+
+	/**
+	 * register an instance of a multi-instance object
+	 *
+	 * @param obj - the object to register
+	 * @param instId - the instance ID - also set on a UAVDataObject
+	 * @return - false if the instance was already registered
+	 */
+	public synchronized boolean registerObject(UAVObject obj,int instId) {
+		if (instId<0)
+			throw new IllegalArgumentException("invalid instance ID "+instId);
+
+		Table old=table;
+		int objId=obj.getObjID();
+		UAVObject[] inst=old.instances.get(objId);
+		if (inst!=null && instId<inst.length && inst[instId]!=null)
+			return false;
+
+		UAVObject[] all=new UAVObject[old.all.length+1];
+		System.arraycopy(old.all,0,all,0,old.all.length);
+		all[old.all.length]=obj;
+
+		HashMap<String,UAVObject> byName=new HashMap<String,UAVObject>(old.byName);
+		if (!byName.containsKey(obj.getObjName()))
+			byName.put(obj.getObjName(),obj);
+
+		UAVObject[] new_inst=new UAVObject[Math.max(instId+1,inst==null?0:inst.length)];
+		if (inst!=null)
+			System.arraycopy(inst,0,new_inst,0,inst.length);
+		new_inst[instId]=obj;
+
+		if (obj instanceof UAVDataObject)
+			((UAVDataObject)obj).setInstID(instId);
+		table=new Table(old.instances.put(objId,new_inst),all,byName);
+		return true;
+	}
+
+	/**
+	 * @param objId - the object ID
+	 * @return - instance 0 of the object or null if not registered and not in a catalog
+	 */
+	public UAVObject getObject(int objId) {
+		return getObject(objId,0);
+	}
+
+	/**
+	 * @param objId - the object ID
+	 * @param instId - the instance ID
+	 * @return - the instance or null if not registered
+	 */
+	public UAVObject getObject(int objId,int instId) {
+		Table t=table;
+		UAVObject[] inst=t.instances.get(objId);
+		if (instId==0 && (inst==null || inst[0]==null))
+			return create(objId);
+		if (inst==null || instId<0 || instId>=inst.length)
+			return null;
+		return inst[instId];
+	}
+
+	/**
+	 * @param objId - the object ID
+	 * @return - number of instance slots for the object ( highest instance ID + 1 )
+	 */
+	public int getNumInstances(int objId) {
+		Table t=table;
+		UAVObject[] inst=t.instances.get(objId);
+		if (inst==null)
+			return (findCatalog(objId)!=null)?1:0;
+		return inst.length;
+	}
+
+	/**
+	 * @param name - the object name
+	 * @return - the first registered instance with this name or null
+	 */
+	public UAVObject getObjectByName(String name) {
+		UAVObject res=table.byName.get(name);
+		if (res!=null)
+			return res;
+		UAVObjectCatalog[] cs=catalogs;
+		for (int i=0;i<cs.length;i++) {
+			int idx=cs[i].indexOf(name);
+			if (idx>=0)
+				return create(cs[i],idx);
+		}
+		return null;
+	}
+
+	/**
+	 * @return - number of distinct object IDs - catalog objects count once they were created
+	 */
+	public int getNumObjects() {
+		return table.instances.size();
+	}
+
+	/**
+	 * @return - all registered instances in registration order - including created catalog objects
+	 */
+	public UAVObject[] getUAVObjectArray() {
+		return table.all.clone();
+	}
+
+	private UAVObject create(int objId) {
+		UAVObjectCatalog c=findCatalog(objId);
+		return (c==null)?null:create(c,c.indexOf(objId));
+	}
+
+	private synchronized UAVObject create(UAVObjectCatalog c,int idx) {
+		// another thread may have been faster
+		int objId=c.getObjID(idx);
+		Table t=table;
+		UAVObject[] inst=t.instances.get(objId);
+		if (inst!=null && inst[0]!=null)
+			return inst[0];
+
+		UAVObject obj=c.createObject(idx);
+		registerObject(obj,0);
+		return obj;
+	}
+
+	private UAVObjectCatalog findCatalog(int objId) {
+		UAVObjectCatalog[] cs=catalogs;
+		for (int i=0;i<cs.length;i++)
+			if (cs[i].indexOf(objId)>=0)
+				return cs[i];
+		return null;
+	}
+}
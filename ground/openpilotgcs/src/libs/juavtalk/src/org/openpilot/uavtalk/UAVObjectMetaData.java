@@ -48,6 +48,7 @@ public class UAVObjectMetaData {
 	public final static byte UPDATEMODE_MANUAL=1;
 	public final static byte UPDATEMODE_ONCHANGE=2;
 	public final static byte UPDATEMODE_PERIODIC=3;
+	public final static byte UPDATEMODE_THROTTLED=4;
 	
 	public final static String getUpdateModeString(byte update_mode) {
 		switch(update_mode) {
@@ -59,6 +60,8 @@ public class UAVObjectMetaData {
 			return "on change";
 		case UPDATEMODE_PERIODIC:
 			return "periodic";
+		case UPDATEMODE_THROTTLED:
+			return "throttled";
 		default:
 			return "unknown";
 			
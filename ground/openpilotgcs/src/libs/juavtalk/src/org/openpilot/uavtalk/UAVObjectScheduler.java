@@ -0,0 +1,360 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectScheduler.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      sends and logs objects according to their metadata
+ *
+ * Every object gets one timeout on a TimerWheel for telemetry
+ * ( gcsTelemetryUpdateMode ) and one for logging ( loggingUpdateMode ):
+ *
+ *  UPDATEMODE_PERIODIC  - every period - missed periods are skipped, not caught up
+ *  UPDATEMODE_ONCHANGE  - on the next tick after objectChanged() - all changes
+ *                         until then are coalesced into one update
+ *  UPDATEMODE_THROTTLED - like on change but at most once per period
+ *  UPDATEMODE_MANUAL / UPDATEMODE_NEVER - not scheduled
+ *
+ * On change and throttled updates of data objects are skipped if no field
+ * was written since the last update ( see UAVDataObject.isDirty() ) or the
+ * fingerprint of the object data equals the one of the last update, so
+ * setting a field to the value it already had costs no bandwidth.
+ *
+ * Updates which are due in the same tick are dispatched priority objects
+ * first. One thread drives the scheduler - either run() or regular calls to
+ * tick() - and also ticks the session, so no timer thread per object is needed.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectScheduler implements Runnable {
+
+	public final static int DEFAULT_TICK=5;
+
+	private final static int WHEEL_SLOTS=1024;
+
+	private final class Update extends TimerWheel.Timeout {
+		final UAVObject obj;
+		final boolean logging;
+		final boolean priority;
+		byte mode;
+		int period;
+		long last;
+		long fingerprint;
+		boolean hasFingerprint;
+		/** dirty fields of the object since the last dispatch of this update */
+		long dirty;
+		/** the other update of the same object - shares the dirty fields */
+		Update other;
+		Update nextDue;
+
+		Update(UAVObject obj,boolean logging) {
+			this.obj=obj;
+			this.logging=logging;
+			this.priority=(obj instanceof UAVDataObject) && ((UAVDataObject)obj).isPriority();
+		}
+
+		protected void expired(long now) {
+			// dispatched after the wheel turned so priority objects go first
+			if (priority) {
+				nextDue=priorityDue;
+				priorityDue=this;
+			} else {
+				nextDue=normalDue;
+				normalDue=this;
+			}
+		}
+	}
+
+	private final static class Entry {
+		Update telemetry;
+		Update logging;
+	}
+
+	private final UAVTalkSession session;
+	private final UAVObjectLogger logger;
+	private final TimerWheel wheel;
+	private final long tickMs;
+	private final IdentityHashMap<UAVObject,Entry> entries=new IdentityHashMap<UAVObject,Entry>();
+
+	private Update priorityDue;
+	private Update normalDue;
+
+	private volatile boolean running;
+
+	private long updates;
+	private long suppressed;
+	private long failures;
+	private long maxLateness;
+
+	/**
+	 * @param session - session to send objects with - null to not send
+	 * @param logger - where to log objects - null to not log
+	 */
+	public UAVObjectScheduler(UAVTalkSession session,UAVObjectLogger logger) {
+		this(session,logger,DEFAULT_TICK);
+	}
+
+	/**
+	 * @param session - session to send objects with - null to not send
+	 * @param logger - where to log objects - null to not log
+	 * @param tickMs - resolution of the scheduler in ms
+	 */
+	public UAVObjectScheduler(UAVTalkSession session,UAVObjectLogger logger,int tickMs) {
+		this.session=session;
+		this.logger=logger;
+		this.tickMs=tickMs;
+		wheel=new TimerWheel(tickMs,WHEEL_SLOTS,System.currentTimeMillis());
+	}
+
+	/**
+	 * schedule all objects of a manager
+	 *
+	 * @param objMngr - the manager
+	 */
+	public synchronized void addObjects(UAVObjectManager objMngr) {
+		UAVObject[] objs=objMngr.getUAVObjectArray();
+		for (int i=0;i<objs.length;i++)
+			addObject(objs[i]);
+	}
+
+	/**
+	 * schedule an object according to its metadata
+	 *
+	 * @param obj - the object
+	 */
+	public synchronized void addObject(UAVObject obj) {
+		Entry e=entries.get(obj);
+		if (e==null) {
+			e=new Entry();
+			e.telemetry=new Update(obj,false);
+			e.logging=new Update(obj,true);
+			e.telemetry.other=e.logging;
+			e.logging.other=e.telemetry;
+			entries.put(obj,e);
+		}
+		long now=System.currentTimeMillis();
+		UAVObjectMetaData meta=obj.getMetaData();
+		configure(e.telemetry,meta.gcsTelemetryUpdateMode,meta.gcsTelemetryUpdatePeriod,now);
+		configure(e.logging,meta.loggingUpdateMode,meta.loggingUpdatePeriod,now);
+	}
+
+	/**
+	 * to be called after the metadata of an object changed
+	 *
+	 * @param obj - the object
+	 */
+	public void metaDataChanged(UAVObject obj) {
+		addObject(obj);
+	}
+
+	public synchronized void removeObject(UAVObject obj) {
+		Entry e=entries.remove(obj);
+		if (e!=null) {
+			wheel.cancel(e.telemetry);
+			wheel.cancel(e.logging);
+		}
+	}
+
+	/**
+	 * notify the scheduler that an object was changed - objects which are
+	 * sent or logged on change are updated with the next tick
+	 *
+	 * @param obj - the changed object
+	 */
+	public synchronized void objectChanged(UAVObject obj) {
+		Entry e=entries.get(obj);
+		if (e==null)
+			return;
+		long now=System.currentTimeMillis();
+		changed(e.telemetry,now);
+		changed(e.logging,now);
+	}
+
+	/**
+	 * dispatch all updates which are due
+	 */
+	public void tick() {
+		tick(System.currentTimeMillis());
+	}
+
+	/**
+	 * dispatch all updates which are due
+	 *
+	 * @param now - the current time in ms
+	 */
+	public synchronized void tick(long now) {
+		wheel.advance(now);
+
+		while (priorityDue!=null) {
+			Update u=priorityDue;
+			priorityDue=u.nextDue;
+			u.nextDue=null;
+			dispatch(u,now);
+		}
+		while (normalDue!=null) {
+			Update u=normalDue;
+			normalDue=u.nextDue;
+			u.nextDue=null;
+			dispatch(u,now);
+		}
+
+		if (session!=null)
+			session.tick(now);
+	}
+
+	/**
+	 * tick the scheduler until stop() is called
+	 */
+	public void run() {
+		running=true;
+		long next=System.currentTimeMillis();
+		while (running) {
+			tick(System.currentTimeMillis());
+			next+=tickMs;
+			long wait=next-System.currentTimeMillis();
+			if (wait>0)
+				LockSupport.parkNanos(wait*1000000L);
+			else
+				next=System.currentTimeMillis();
+		}
+	}
+
+	public void stop() {
+		running=false;
+	}
+
+	/**
+	 * @return - number of objects sent and logged
+	 */
+	public synchronized long getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * @return - on change updates which were skipped as the object data did not change
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @return - updates which could not be written
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return - the biggest delay in ms between the due time and the dispatch of an update
+	 */
+	public synchronized long getMaxLateness() {
+		return maxLateness;
+	}
+
+	public synchronized void resetStats() {
+		updates=0;
+		suppressed=0;
+		failures=0;
+		maxLateness=0;
+	}
+
+	private void configure(Update u,byte mode,int period,long now) {
+		u.mode=mode;
+		u.period=period;
+		u.hasFingerprint=false;
+		wheel.cancel(u);
+		if (mode==UAVObjectMetaData.UPDATEMODE_PERIODIC && period>0)
+			wheel.schedule(u,now+period);
+	}
+
+	private void changed(Update u,long now) {
+		if (u.isScheduled())
+			return;
+		if (u.mode==UAVObjectMetaData.UPDATEMODE_ONCHANGE)
+			wheel.schedule(u,now);
+		else if (u.mode==UAVObjectMetaData.UPDATEMODE_THROTTLED)
+			wheel.schedule(u,Math.max(now,u.last+u.period));
+	}
+
+	private void dispatch(Update u,long now) {
+		long deadline=u.getDeadline();
+		if (now-deadline>maxLateness)
+			maxLateness=now-deadline;
+
+		if (u.obj instanceof UAVDataObject) {
+			// the object has one set of dirty fields for telemetry and logging
+			long dirty=((UAVDataObject)u.obj).clearDirtyFields();
+			u.dirty|=dirty;
+			u.other.dirty|=dirty;
+		}
+
+		if (u.mode==UAVObjectMetaData.UPDATEMODE_PERIODIC) {
+			if (u.period>0) {
+				long next=deadline+u.period;
+				if (next<=now)
+					next=now+u.period-(now-deadline)%u.period;
+				wheel.schedule(u,next);
+			}
+		} else if (u.obj instanceof UAVDataObject) {
+			// nothing written - no need to hash the data
+			if (u.hasFingerprint && u.dirty==0) {
+				suppressed++;
+				return;
+			}
+			u.dirty=0;
+			long fingerprint=((UAVDataObject)u.obj).getFingerprint();
+			if (u.hasFingerprint && fingerprint==u.fingerprint) {
+				suppressed++;
+				return;
+			}
+			u.fingerprint=fingerprint;
+			u.hasFingerprint=true;
+		}
+		u.dirty=0;
+		u.last=now;
+
+		UAVObjectMetaData meta=u.obj.getMetaData();
+		try {
+			if (u.logging) {
+				if (logger==null)
+					return;
+				meta.last_log=now;
+				logger.logObject(u.obj,now);
+			} else {
+				if (session==null)
+					return;
+				meta.last_gcs_update=now;
+				if (meta.gcsTelemetryAcked)
+					session.sendObjectAcked(u.obj);
+				else
+					session.sendObject(u.obj);
+			}
+			updates++;
+		} catch (IOException e) {
+			// send again on the next change even if the data stays the same
+			u.hasFingerprint=false;
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,582 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVObjectSchemaLoader.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      loads UAVObject XML definitions at runtime
+ *
+ * Parses the files of shared/uavobjectdefinition the same way uavobjgenerator
+ * does - fields sorted by element size, object IDs from the same hash - so
+ * the resulting UAVDynamicObjects talk to a firmware built from these files
+ * even if no class was generated for them.
+ *
+ * Loaded definitions are cached by the UAVO hash of the definition set, the
+ * SHA1 the firmware reports in its description ( see make/scripts/version-info.py ),
+ * so a reconnect to the same firmware does not parse anything.
+ *
+ ****************************************************************************
+*/
+public class UAVObjectSchemaLoader {
+
+	private final static String[] FIELD_TYPES={ "int8","int16","int32","uint8","uint16","uint32","float","enum" };
+	private final static String[] UPDATE_MODES={ "manual","periodic","onchange","throttled" };
+	private final static byte[] UPDATE_MODE_VALUES={
+		UAVObjectMetaData.UPDATEMODE_MANUAL,
+		UAVObjectMetaData.UPDATEMODE_PERIODIC,
+		UAVObjectMetaData.UPDATEMODE_ONCHANGE,
+		UAVObjectMetaData.UPDATEMODE_THROTTLED };
+	private final static String[] ACCESS_MODES={ "readwrite","readonly" };
+	private final static byte[] ACCESS_MODE_VALUES={
+		UAVObjectMetaData.ACCESS_READWRITE,
+		UAVObjectMetaData.ACCESS_READONLY };
+
+	private final static HashMap<String,UAVObjectDefinition[]> cache=new HashMap<String,UAVObjectDefinition[]>();
+
+	private final static class FieldInfo {
+		String name;
+		String units;
+		byte type;
+		String[] elementNames;
+		String[] options;
+		String[] defaults;
+
+		FieldInfo copy(String name) {
+			FieldInfo res=new FieldInfo();
+			res.name=name;
+			res.units=units;
+			res.type=type;
+			res.elementNames=elementNames;
+			res.options=options;
+			res.defaults=defaults;
+			return res;
+		}
+
+		int size() {
+			return UAVObjectFieldDescription.getTypeSize(type);
+		}
+	}
+
+	private final static Comparator<FieldInfo> BY_SIZE=new Comparator<FieldInfo>() {
+		public int compare(FieldInfo f1,FieldInfo f2) {
+			return f2.size()-f1.size();
+		}
+	};
+
+	/**
+	 * definitions of a firmware - parsed only if the hash is not cached yet
+	 *
+	 * @param uavoHash - UAVO hash reported by the firmware - a prefix ( e.g. 8 bytes ) is enough
+	 * @param dir - directory with the XML definitions of that firmware
+	 * @return - the definitions
+	 * @throws IOException - if a file is invalid or the files do not match the hash
+	 */
+	public static UAVObjectDefinition[] load(byte[] uavoHash,File dir) throws IOException {
+		UAVObjectDefinition[] res=getCached(uavoHash);
+		if (res!=null)
+			return res;
+
+		byte[] actual=computeHash(dir);
+		if (uavoHash.length==0 || uavoHash.length>actual.length
+				|| !Arrays.equals(actual,0,uavoHash.length,uavoHash,0,uavoHash.length))
+			throw new IOException("definitions in "+dir+" do not match UAVO hash "+toHex(uavoHash));
+
+		res=load(dir);
+		synchronized (cache) {
+			cache.put(toHex(uavoHash),res);
+		}
+		return res.clone();
+	}
+
+	/**
+	 * @param uavoHash - the UAVO hash as passed to load()
+	 * @return - the cached definitions or null
+	 */
+	public static UAVObjectDefinition[] getCached(byte[] uavoHash) {
+		UAVObjectDefinition[] res;
+		synchronized (cache) {
+			res=cache.get(toHex(uavoHash));
+		}
+		return (res==null)?null:res.clone();
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * parse all XML files of a directory - sorted by file name like the generator
+	 *
+	 * @param dir - the directory
+	 * @return - the definitions
+	 */
+	public static UAVObjectDefinition[] load(File dir) throws IOException {
+		File[] files=dir.listFiles();
+		if (files==null)
+			throw new IOException("can not read "+dir);
+		Arrays.sort(files);
+
+		ArrayList<UAVObjectDefinition> res=new ArrayList<UAVObjectDefinition>();
+		for (int i=0;i<files.length;i++) {
+			if (!files[i].isFile() || !files[i].getName().endsWith(".xml"))
+				continue;
+			InputStream in=new FileInputStream(files[i]);
+			try {
+				res.addAll(Arrays.asList(parse(in,files[i].getName())));
+			} finally {
+				in.close();
+			}
+		}
+		return res.toArray(new UAVObjectDefinition[res.size()]);
+	}
+
+	/**
+	 * parse one XML file
+	 *
+	 * @param in - the XML
+	 * @param fileName - name of the file for error messages
+	 * @return - the objects defined in the file
+	 */
+	public static UAVObjectDefinition[] parse(InputStream in,String fileName) throws IOException {
+		Document doc;
+		try {
+			DocumentBuilderFactory factory=DocumentBuilderFactory.newInstance();
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING,true);
+			factory.setExpandEntityReferences(false);
+			DocumentBuilder builder=factory.newDocumentBuilder();
+			doc=builder.parse(in);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch (SAXException e) {
+			throw new IOException(fileName+": Improperly formated XML file",e);
+		}
+
+		ArrayList<UAVObjectDefinition> res=new ArrayList<UAVObjectDefinition>();
+		for (Node n=doc.getDocumentElement().getFirstChild();n!=null;n=n.getNextSibling()) {
+			if (n.getNodeType()!=Node.ELEMENT_NODE)
+				continue;
+			Element object=(Element)n;
+			try {
+				res.add(parseObject(object,fileName));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(fileName+": "+object.getAttribute("name")+": "+e.getMessage());
+			}
+		}
+		return res.toArray(new UAVObjectDefinition[res.size()]);
+	}
+
+	/**
+	 * register an instance of every definition which has no registered object yet -
+	 * generated classes registered before are kept
+	 *
+	 * @param objMngr - the manager
+	 * @param defs - the definitions
+	 * @return - number of objects registered
+	 */
+	public static int register(UAVObjectManager objMngr,UAVObjectDefinition[] defs) {
+		int res=0;
+		for (int i=0;i<defs.length;i++) {
+			if (objMngr.getObject(defs[i].getObjID())==null && objMngr.registerObject(defs[i].newObject(0)))
+				res++;
+		}
+		return res;
+	}
+
+	/**
+	 * a catalog creating UAVDynamicObjects on demand - see UAVObjectManager.addCatalog()
+	 *
+	 * @param defs - the definitions
+	 * @return - the catalog
+	 */
+	public static UAVObjectCatalog createCatalog(UAVObjectDefinition[] defs) {
+		final HashMap<Integer,UAVObjectDefinition> byId=new HashMap<Integer,UAVObjectDefinition>();
+		int[] objIds=new int[defs.length];
+		String[] names=new String[defs.length];
+		for (int i=0;i<defs.length;i++) {
+			objIds[i]=defs[i].getObjID();
+			names[i]=defs[i].getObjName();
+			byId.put(objIds[i],defs[i]);
+		}
+		return new UAVObjectCatalog(objIds,names,new UAVObjectFactory() {
+			public UAVObject createObject(int objId) {
+				UAVObjectDefinition def=byId.get(objId);
+				return (def==null)?null:def.newObject(0);
+			}
+		});
+	}
+
+	/**
+	 * compute the UAVO hash of a definition directory like version-info.py:
+	 * SHA1 over the hex SHA1s of all files in sorted order, with line ends
+	 * normalized to \n
+	 *
+	 * @param dir - the directory
+	 * @return - the 20 byte hash
+	 */
+	public static byte[] computeHash(File dir) throws IOException {
+		try {
+			MessageDigest total=MessageDigest.getInstance("SHA-1");
+			hashDir(dir,total,MessageDigest.getInstance("SHA-1"));
+			return total.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public static String toHex(byte[] hash) {
+		StringBuilder res=new StringBuilder(hash.length*2);
+		for (int i=0;i<hash.length;i++)
+			res.append(Character.forDigit((hash[i]>>4)&0xF,16)).append(Character.forDigit(hash[i]&0xF,16));
+		return res.toString();
+	}
+
+	private static void hashDir(File dir,MessageDigest total,MessageDigest file) throws IOException {
+		File[] files=dir.listFiles();
+		if (files==null)
+			throw new IOException("can not read "+dir);
+		Arrays.sort(files);
+
+		for (int i=0;i<files.length;i++) {
+			if (!files[i].isFile())
+				continue;
+			file.reset();
+			file.update(normalizeLineEnds(readFile(files[i])));
+			total.update(toHex(file.digest()).getBytes("US-ASCII"));
+		}
+		for (int i=0;i<files.length;i++)
+			if (files[i].isDirectory())
+				hashDir(files[i],total,file);
+	}
+
+	private static UAVObjectDefinition parseObject(Element object,String fileName) {
+		String name=requireAttribute(object,"name","Object:name attribute is missing");
+		boolean singleInstance=parseBoolean(requireAttribute(object,"singleinstance","Object:singleinstance attribute is missing"),
+				"Object:singleinstance attribute value is invalid");
+		boolean settings=parseBoolean(requireAttribute(object,"settings","Object:settings attribute is missing"),
+				"Object:settings attribute value is invalid (true|false)");
+		boolean priority=false;
+		if (object.hasAttribute("priority"))
+			priority=parseBoolean(object.getAttribute("priority"),"Object:priority attribute value is invalid (true|false)");
+		if (settings && !singleInstance)
+			throw new IllegalArgumentException("Object: Settings objects can not have multiple instances");
+
+		ArrayList<FieldInfo> fields=new ArrayList<FieldInfo>();
+		UAVObjectMetaData meta=new UAVObjectMetaData();
+		String description=null;
+		boolean accessFound=false;
+		boolean gcsFound=false;
+		boolean flightFound=false;
+		boolean logFound=false;
+
+		for (Node n=object.getFirstChild();n!=null;n=n.getNextSibling()) {
+			if (n.getNodeType()!=Node.ELEMENT_NODE)
+				continue;
+			Element e=(Element)n;
+			String tag=e.getTagName();
+			if (tag.equals("field")) {
+				fields.add(parseField(e,fields,settings));
+			} else if (tag.equals("access")) {
+				meta.gcsAccess=ACCESS_MODE_VALUES[indexOf(ACCESS_MODES,
+						requireAttribute(e,"gcs","Object:access:gcs attribute is missing"),"Object:access:gcs attribute value is invalid")];
+				meta.flightAccess=ACCESS_MODE_VALUES[indexOf(ACCESS_MODES,
+						requireAttribute(e,"flight","Object:access:flight attribute is missing"),"Object:access:flight attribute value is invalid")];
+				accessFound=true;
+			} else if (tag.equals("telemetrygcs")) {
+				meta.gcsTelemetryUpdateMode=parseUpdateMode(e);
+				meta.gcsTelemetryUpdatePeriod=parsePeriod(e);
+				meta.gcsTelemetryAcked=parseAcked(e);
+				gcsFound=true;
+			} else if (tag.equals("telemetryflight")) {
+				meta.flightTelemetryUpdateMode=parseUpdateMode(e);
+				meta.flightTelemetryUpdatePeriod=parsePeriod(e);
+				meta.flightTelemetryAcked=parseAcked(e);
+				flightFound=true;
+			} else if (tag.equals("logging")) {
+				meta.loggingUpdateMode=parseUpdateMode(e);
+				meta.loggingUpdatePeriod=parsePeriod(e);
+				logFound=true;
+			} else if (tag.equals("description")) {
+				Node text=e.getFirstChild();
+				description=(text==null || text.getNodeValue()==null)?"":text.getNodeValue();
+			} else {
+				throw new IllegalArgumentException("Unknown object element");
+			}
+		}
+
+		if (fields.isEmpty())
+			throw new IllegalArgumentException("Object::field element is missing");
+		if (!accessFound)
+			throw new IllegalArgumentException("Object::access element is missing");
+		if (!gcsFound)
+			throw new IllegalArgumentException("Object::telemetrygcs element is missing");
+		if (!flightFound)
+			throw new IllegalArgumentException("Object::telemetryflight element is missing");
+		if (!logFound)
+			throw new IllegalArgumentException("Object::logging element is missing");
+		if (description==null)
+			throw new IllegalArgumentException("Object::description element is missing");
+
+		// stable sort - fields of the same size keep the order of the XML
+		Collections.sort(fields,BY_SIZE);
+
+		int objId=calculateID(name,settings,singleInstance,fields);
+
+		UAVObjectFieldDescription[] descriptions=new UAVObjectFieldDescription[fields.size()];
+		String[][] defaults=new String[fields.size()][];
+		for (int n=0;n<descriptions.length;n++) {
+			FieldInfo f=fields.get(n);
+			descriptions[n]=new UAVObjectFieldDescription(f.name,objId,(byte)n,f.type,f.units,
+					f.type==UAVObjectFieldDescription.FIELDTYPE_ENUM?f.options:null,f.elementNames);
+			defaults[n]=f.defaults;
+		}
+
+		return new UAVObjectDefinition(objId,name,description,fileName,singleInstance,settings,priority,descriptions,defaults,meta);
+	}
+
+	private static FieldInfo parseField(Element e,ArrayList<FieldInfo> fields,boolean settings) {
+		String name=requireAttribute(e,"name","Object:field:name attribute is missing");
+
+		if (e.hasAttribute("cloneof")) {
+			String parent=e.getAttribute("cloneof");
+			if (parent.length()==0)
+				throw new IllegalArgumentException("Object:field:cloneof attribute is empty");
+			for (int i=0;i<fields.size();i++)
+				if (fields.get(i).name.equals(parent))
+					return fields.get(i).copy(name);
+			throw new IllegalArgumentException("Object:field::cloneof parent unknown");
+		}
+
+		FieldInfo f=new FieldInfo();
+		f.name=name;
+		f.units=requireAttribute(e,"units","Object:field:units attribute is missing");
+		f.type=(byte)indexOf(FIELD_TYPES,requireAttribute(e,"type","Object:field:type attribute is missing"),
+				"Object:field:type attribute value is invalid");
+
+		if (e.hasAttribute("elementnames"))
+			f.elementNames=splitList(e.getAttribute("elementnames"));
+		else
+			f.elementNames=childList(e,"elementnames","elementname");
+		if (f.elementNames.length==0) {
+			if (!e.hasAttribute("elements"))
+				throw new IllegalArgumentException("Object:field:elements and Object:field:elementnames attribute/element is missing");
+			int numElements;
+			try {
+				numElements=Integer.parseInt(e.getAttribute("elements").trim());
+			} catch (NumberFormatException ex) {
+				numElements=0;
+			}
+			if (numElements<=0)
+				throw new IllegalArgumentException("Object:field:elements attribute value is invalid");
+			f.elementNames=new String[numElements];
+			for (int i=0;i<numElements;i++)
+				f.elementNames[i]=Integer.toString(i);
+		}
+
+		if (f.type==UAVObjectFieldDescription.FIELDTYPE_ENUM) {
+			if (e.hasAttribute("options"))
+				f.options=splitList(e.getAttribute("options"));
+			else
+				f.options=childList(e,"options","option");
+			if (f.options.length==0)
+				throw new IllegalArgumentException("Object:field:options attribute/element is missing");
+		} else {
+			f.options=new String[0];
+		}
+
+		if (!e.hasAttribute("defaultvalue")) {
+			if (settings)
+				throw new IllegalArgumentException("Object:field:defaultvalue attribute is missing (required for settings objects)");
+		} else {
+			String[] defaults=splitList(e.getAttribute("defaultvalue"));
+			if (defaults.length!=f.elementNames.length) {
+				if (defaults.length!=1)
+					throw new IllegalArgumentException("Object:field:incorrect number of default values");
+				// legacy single default for all elements
+				String value=defaults[0];
+				defaults=new String[f.elementNames.length];
+				Arrays.fill(defaults,value);
+			}
+			f.defaults=defaults;
+		}
+		return f;
+	}
+
+	/**
+	 * the object ID as calculated by uavobjgenerator - a Shift-Add-XOR hash over
+	 * the name, the flags and the sorted fields with the LSB reserved for the metaobject
+	 */
+	private static int calculateID(String name,boolean settings,boolean singleInstance,ArrayList<FieldInfo> fields) {
+		int hash=updateHash(name,0);
+		hash=updateHash(settings?1:0,hash);
+		hash=updateHash(singleInstance?1:0,hash);
+		for (int n=0;n<fields.size();n++) {
+			FieldInfo f=fields.get(n);
+			hash=updateHash(f.name,hash);
+			hash=updateHash(f.elementNames.length,hash);
+			hash=updateHash(f.type,hash);
+			if (f.type==UAVObjectFieldDescription.FIELDTYPE_ENUM)
+				for (int m=0;m<f.options.length;m++)
+					hash=updateHash(f.options[m],hash);
+		}
+		return hash&0xFFFFFFFE;
+	}
+
+	private static int updateHash(int value,int hash) {
+		return hash^((hash<<5)+(hash>>>2)+value);
+	}
+
+	private static int updateHash(String value,int hash) {
+		// QString::toLatin1() - the bytes are signed chars like in the generator
+		for (int n=0;n<value.length();n++) {
+			char c=value.charAt(n);
+			hash=updateHash((byte)(c<256?c:'?'),hash);
+		}
+		return hash;
+	}
+
+	private static byte parseUpdateMode(Element e) {
+		return UPDATE_MODE_VALUES[indexOf(UPDATE_MODES,
+				requireAttribute(e,"updatemode","Object:telemetrygcs:updatemode attribute is missing"),
+				"Object:telemetrygcs:updatemode attribute value is invalid")];
+	}
+
+	private static int parsePeriod(Element e) {
+		String period=requireAttribute(e,"period","Object:telemetrygcs:period attribute is missing");
+		try {
+			return Integer.parseInt(period.trim());
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	private static boolean parseAcked(Element e) {
+		return parseBoolean(requireAttribute(e,"acked","Object:telemetrygcs:acked attribute is missing"),
+				"Object:telemetrygcs:acked attribute value is invalid");
+	}
+
+	private static boolean parseBoolean(String value,String error) {
+		if (value.equals("true"))
+			return true;
+		if (value.equals("false"))
+			return false;
+		throw new IllegalArgumentException(error);
+	}
+
+	private static String requireAttribute(Element e,String name,String error) {
+		if (!e.hasAttribute(name))
+			throw new IllegalArgumentException(error);
+		return e.getAttribute(name);
+	}
+
+	private static int indexOf(String[] values,String value,String error) {
+		for (int i=0;i<values.length;i++)
+			if (values[i].equals(value))
+				return i;
+		throw new IllegalArgumentException(error);
+	}
+
+	/**
+	 * split a comma separated attribute like QString::split(",",SkipEmptyParts) followed by trimmed()
+	 */
+	private static String[] splitList(String value) {
+		ArrayList<String> res=new ArrayList<String>();
+		String[] parts=value.split(",",-1);
+		for (int i=0;i<parts.length;i++)
+			if (parts[i].length()>0)
+				res.add(parts[i].trim());
+		return res.toArray(new String[res.size()]);
+	}
+
+	/**
+	 * the non empty texts of <list><item>text</item>...</list> children
+	 */
+	private static String[] childList(Element e,String list,String item) {
+		ArrayList<String> res=new ArrayList<String>();
+		for (Node l=e.getFirstChild();l!=null;l=l.getNextSibling()) {
+			if (l.getNodeType()!=Node.ELEMENT_NODE || !l.getNodeName().equals(list))
+				continue;
+			for (Node i=l.getFirstChild();i!=null;i=i.getNextSibling()) {
+				if (i.getNodeType()!=Node.ELEMENT_NODE || !i.getNodeName().equals(item))
+					continue;
+				Node text=i.getFirstChild();
+				if (text!=null && text.getNodeType()==Node.TEXT_NODE && text.getNodeValue().length()>0)
+					res.add(text.getNodeValue());
+			}
+			break;
+		}
+		return res.toArray(new String[res.size()]);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in=new FileInputStream(file);
+		try {
+			ByteArrayOutputStream res=new ByteArrayOutputStream((int)file.length());
+			byte[] buf=new byte[4096];
+			int n;
+			while ((n=in.read(buf))>0)
+				res.write(buf,0,n);
+			return res.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * \r\n and \r to \n - like reading the file with universal newlines
+	 */
+	private static byte[] normalizeLineEnds(byte[] data) {
+		int n=0;
+		for (int i=0;i<data.length;i++) {
+			if (data[i]=='\r') {
+				data[n++]='\n';
+				if (i+1<data.length && data[i+1]=='\n')
+					i++;
+			} else {
+				data[n++]=data[i];
+			}
+		}
+		return Arrays.copyOf(data,n);
+	}
+}
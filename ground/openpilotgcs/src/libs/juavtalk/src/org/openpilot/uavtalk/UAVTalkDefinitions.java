@@ -37,6 +37,7 @@ public class UAVTalkDefinitions {
 	public final static byte TYPE_OBJ_REQ = (TYPE_VER | 0x01);
 	public final static byte TYPE_OBJ_ACK = (TYPE_VER | 0x02);
 	public final static byte TYPE_ACK     = (TYPE_VER | 0x03);
+	public final static byte TYPE_NACK    = (TYPE_VER | 0x04);
 
 
 	public final static String getTypeString(byte type) {
@@ -49,9 +50,27 @@ public class UAVTalkDefinitions {
 				return "obj_ack";
 			case TYPE_OBJ_REQ:
 				return "obj_req";
+			case TYPE_NACK:
+				return "nack";
 		}			
 		return "unknown type";
 	}
 
+	/**
+	 * @param type - the type byte of a package
+	 * @return - true if the type is known in this protocol version
+	 */
+	public final static boolean isValidType(byte type) {
+		switch(type) {
+			case TYPE_OBJ:
+			case TYPE_OBJ_REQ:
+			case TYPE_OBJ_ACK:
+			case TYPE_ACK:
+			case TYPE_NACK:
+				return true;
+		}
+		return false;
+	}
+
 
 }
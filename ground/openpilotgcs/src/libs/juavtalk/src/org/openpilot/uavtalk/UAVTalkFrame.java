@@ -0,0 +1,141 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.nio.ByteBuffer;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkFrame.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      view on a received UAVTalk frame
+ *
+ * The frame does not own any data - it only points into the buffer the frame
+ * was decoded from. A decoder reuses the same instance for every frame, so the
+ * contents are only valid during the UAVTalkFrameListener callback.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkFrame {
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+	private byte type;
+	private int objId;
+
+	/**
+	 * point this view to a frame which was already checked for length and CRC
+	 *
+	 * @param buffer - the buffer holding the frame
+	 * @param offset - absolute index of the sync byte in the buffer
+	 * @param length - the length field of the frame ( header + payload )
+	 */
+	void set(ByteBuffer buffer,int offset,int length) {
+		this.buffer=buffer;
+		this.offset=offset;
+		this.length=length;
+		this.type=buffer.get(offset+1);
+		this.objId=(buffer.get(offset+4)&0xFF)
+				| ((buffer.get(offset+5)&0xFF)<<8)
+				| ((buffer.get(offset+6)&0xFF)<<16)
+				| ((buffer.get(offset+7)&0xFF)<<24);
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getObjID() {
+		return objId;
+	}
+
+	/**
+	 * @return - the buffer the frame lives in - do not modify position or limit
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return - absolute index of the first payload byte in getBuffer()
+	 */
+	public int getPayloadOffset() {
+		return offset+UAVTalkHelper.HEADER_LENGTH;
+	}
+
+	public int getPayloadLength() {
+		return length-UAVTalkHelper.HEADER_LENGTH;
+	}
+
+	/**
+	 * @return - the complete length of the frame on the wire including sync and CRC
+	 */
+	public int getFrameLength() {
+		return length+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+	}
+
+	public byte getPayloadByte(int pos) {
+		return buffer.get(getPayloadOffset()+pos);
+	}
+
+	/**
+	 * copy the payload to an array
+	 *
+	 * @param dst - the destination array
+	 * @param dst_offset - where to start in the destination array
+	 */
+	public void copyPayload(byte[] dst,int dst_offset) {
+		int src=getPayloadOffset();
+		int len=getPayloadLength();
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(),buffer.arrayOffset()+src,dst,dst_offset,len);
+		} else {
+			for (int i=0;i<len;i++)
+				dst[dst_offset+i]=buffer.get(src+i);
+		}
+	}
+
+	/**
+	 * copy the complete frame including sync and CRC to a buffer
+	 *
+	 * @param dst - the destination - written at its position which is advanced
+	 */
+	public void writeTo(ByteBuffer dst) {
+		int len=getFrameLength();
+		if (buffer.hasArray()) {
+			dst.put(buffer.array(),buffer.arrayOffset()+offset,len);
+		} else {
+			for (int i=0;i<len;i++)
+				dst.put(buffer.get(offset+i));
+		}
+	}
+
+	/**
+	 * deserialize the payload into the given object
+	 *
+	 * @param obj - the object to fill
+	 * @return - false if the payload length differs from the object - the object is not changed then
+	 */
+	public boolean deserializeInto(UAVObject obj) {
+		if (getPayloadLength()!=obj.getDataLength())
+			return false;
+		obj.deserialize(buffer,getPayloadOffset());
+		return true;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkFrameDecoder.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      incremental decoder for a stream of UAVTalk frames
+ *
+ * Frames are checked for length and CRC in place and handed to the listener
+ * as a view - no memory is allocated per frame. Bytes which can not be part
+ * of a valid frame are skipped until the next SYNC_VAL is found.
+ * A decoder is meant to be used by one thread ( the one reading the link ).
+ *
+ ****************************************************************************
+*/
+public class UAVTalkFrameDecoder {
+
+	public final static int DEFAULT_MAX_PAYLOAD_LENGTH=1024;
+
+	private final UAVTalkFrameListener listener;
+	private final UAVTalkFrame frame=new UAVTalkFrame();
+	private final int maxPayloadLength;
+
+	/** holds the start of a frame which was not completely received yet - always in write mode */
+	private final ByteBuffer rx;
+
+	private long rxBytes;
+	private long rxObjects;
+	private long rxSyncErrors;
+	private long rxCrcErrors;
+
+	public UAVTalkFrameDecoder(UAVTalkFrameListener listener) {
+		this(listener,DEFAULT_MAX_PAYLOAD_LENGTH,false);
+	}
+
+	/**
+	 * @param listener - gets all valid frames
+	 * @param maxPayloadLength - frames announcing a bigger payload are treated as sync errors
+	 * @param direct - use a direct buffer for reading from channels
+	 */
+	public UAVTalkFrameDecoder(UAVTalkFrameListener listener,int maxPayloadLength,boolean direct) {
+		this.listener=listener;
+		this.maxPayloadLength=maxPayloadLength;
+		int capacity=UAVTalkHelper.MIN_PACKAGE_SIZE+maxPayloadLength;
+		rx=direct?ByteBuffer.allocateDirect(capacity):ByteBuffer.allocate(capacity);
+		rx.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * read once from the channel and decode everything which arrived
+	 *
+	 * @param channel - the channel to read from
+	 * @return - number of bytes read or -1 at end of stream
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		int res=channel.read(rx);
+		rx.flip();
+		scan(rx);
+		rx.compact();
+		return res;
+	}
+
+	/**
+	 * decode all remaining bytes of the buffer
+	 * complete frames are passed directly from src - only the start of an
+	 * incomplete frame at the end is copied for the next call
+	 *
+	 * @param src - the buffer to decode - will be consumed completely
+	 */
+	public void decode(ByteBuffer src) {
+		if (rx.position()==0)
+			scan(src);
+
+		while (src.hasRemaining()) {
+			int n=Math.min(src.remaining(),rx.remaining());
+			int limit=src.limit();
+			src.limit(src.position()+n);
+			rx.put(src);
+			src.limit(limit);
+
+			rx.flip();
+			scan(rx);
+			rx.compact();
+		}
+	}
+
+	/**
+	 * decode a region of a byte-array
+	 *
+	 * @param data - the array
+	 * @param offset - where to start in the array
+	 * @param length - number of bytes to decode
+	 */
+	public void decode(byte[] data,int offset,int length) {
+		decode(ByteBuffer.wrap(data,offset,length));
+	}
+
+	/**
+	 * drop a partially received frame - e.g. after a reconnect
+	 */
+	public void reset() {
+		rx.clear();
+	}
+
+	/**
+	 * decode all complete frames between position and limit
+	 * the position is left at the start of the first incomplete frame
+	 */
+	private void scan(ByteBuffer buf) {
+		int pos=buf.position();
+		int limit=buf.limit();
+
+		while (pos<limit) {
+			if (buf.get(pos)!=UAVTalkDefinitions.SYNC_VAL) {
+				rxSyncErrors++;
+				pos++;
+				continue;
+			}
+
+			if (limit-pos<UAVTalkHelper.HEADER_LENGTH)
+				break;
+
+			byte type=buf.get(pos+1);
+			int length=(buf.get(pos+2)&0xFF) | ((buf.get(pos+3)&0xFF)<<8);
+
+			if (!UAVTalkDefinitions.isValidType(type)
+					|| length<UAVTalkHelper.HEADER_LENGTH
+					|| length-UAVTalkHelper.HEADER_LENGTH>maxPayloadLength) {
+				// not a frame start - resync after this byte
+				rxSyncErrors++;
+				pos++;
+				continue;
+			}
+
+			if (limit-pos<length+UAVTalkHelper.PACKAGE_LENGTH_CRC)
+				break;
+
+			if (CRC8.bufferUpdate((byte)0,buf,pos,length)!=buf.get(pos+length)) {
+				// could be a false sync inside of data - resync after this byte
+				rxCrcErrors++;
+				pos++;
+				continue;
+			}
+
+			rxObjects++;
+			rxBytes+=length+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+
+			frame.set(buf,pos,length);
+			pos+=length+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+			buf.position(pos);
+			listener.onFrame(frame);
+		}
+		buf.position(pos);
+	}
+
+	/**
+	 * @return - bytes of valid frames received
+	 */
+	public long getRxBytes() {
+		return rxBytes;
+	}
+
+	/**
+	 * @return - number of valid frames received
+	 */
+	public long getRxObjects() {
+		return rxObjects;
+	}
+
+	/**
+	 * @return - bytes skipped while searching for a frame start ( RxSyncErrors )
+	 */
+	public long getRxSyncErrors() {
+		return rxSyncErrors;
+	}
+
+	/**
+	 * @return - frames dropped because of a wrong checksum ( RxCrcErrors )
+	 */
+	public long getRxCrcErrors() {
+		return rxCrcErrors;
+	}
+
+	public void resetStats() {
+		rxBytes=0;
+		rxObjects=0;
+		rxSyncErrors=0;
+		rxCrcErrors=0;
+	}
+}
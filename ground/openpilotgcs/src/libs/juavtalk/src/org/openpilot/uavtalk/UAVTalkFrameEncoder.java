@@ -0,0 +1,114 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkFrameEncoder.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      encodes UAVTalk frames into one reused buffer
+ *
+ * The counterpart of UAVTalkFrameDecoder for the sending side - objects are
+ * serialized straight behind the header and the CRC is computed over the
+ * written region, so sending a frame does not produce garbage.
+ * An encoder is meant to be used by one thread.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkFrameEncoder {
+
+	private final ByteBuffer tx;
+
+	public UAVTalkFrameEncoder() {
+		this(UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH,false);
+	}
+
+	/**
+	 * @param maxPayloadLength - the biggest payload which will be sent
+	 * @param direct - use a direct buffer for writing to channels
+	 */
+	public UAVTalkFrameEncoder(int maxPayloadLength,boolean direct) {
+		int capacity=UAVTalkHelper.MIN_PACKAGE_SIZE+maxPayloadLength;
+		tx=direct?ByteBuffer.allocateDirect(capacity):ByteBuffer.allocate(capacity);
+		tx.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * encode a frame - serializes the object as payload if the type needs it
+	 *
+	 * @param type - the package type
+	 * @param obj - the object
+	 * @return - the internal buffer flipped for reading the frame - valid until the next call
+	 */
+	public ByteBuffer encode(byte type,UAVObject obj) {
+		tx.clear();
+		UAVTalkHelper.writeUAVTalkPackage(tx,type,obj);
+		tx.flip();
+		return tx;
+	}
+
+	/**
+	 * encode a frame without payload
+	 *
+	 * @param type - the package type
+	 * @param obj_id - the object ID
+	 * @return - the internal buffer flipped for reading the frame - valid until the next call
+	 */
+	public ByteBuffer encode(byte type,int obj_id) {
+		tx.clear();
+		UAVTalkHelper.writeUAVTalkPackage(tx,type,obj_id);
+		tx.flip();
+		return tx;
+	}
+
+	/**
+	 * encode a frame and write it completely to the channel
+	 *
+	 * @param channel - the channel to write to
+	 * @param type - the package type
+	 * @param obj - the object
+	 * @return - number of bytes written
+	 */
+	public int send(WritableByteChannel channel,byte type,UAVObject obj) throws IOException {
+		return writeFully(channel,encode(type,obj));
+	}
+
+	/**
+	 * encode a frame without payload and write it completely to the channel
+	 *
+	 * @param channel - the channel to write to
+	 * @param type - the package type
+	 * @param obj_id - the object ID
+	 * @return - number of bytes written
+	 */
+	public int send(WritableByteChannel channel,byte type,int obj_id) throws IOException {
+		return writeFully(channel,encode(type,obj_id));
+	}
+
+	private static int writeFully(WritableByteChannel channel,ByteBuffer buf) throws IOException {
+		int res=buf.remaining();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		return res;
+	}
+}
@@ -15,6 +15,9 @@
  */
 
 package org.openpilot.uavtalk;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import org.openpilot.uavtalk.CRC8;
 import org.openpilot.uavtalk.UAVObject;
 
@@ -41,6 +44,13 @@ public class UAVTalkHelper {
 										    + PACKAGE_LENGTH_OBJID
 										    + PACKAGE_LENGTH_CRC ;
 
+	public final static int HEADER_LENGTH=MIN_PACKAGE_SIZE-PACKAGE_LENGTH_CRC;
+
+	/** the biggest payload the 16 bit length field can announce */
+	public final static int MAX_PAYLOAD_LENGTH=0xFFFF-HEADER_LENGTH;
+
+	private final static byte[] EMPTY_PAYLOAD=new byte[0];
+
 	/**
 	 * generate a UAVTalk package 
 	 * 
@@ -50,6 +60,7 @@ public class UAVTalkHelper {
 	 * @return byte-array containing the UAVTalk Package
 	 */
 	public static byte[] generateUAVTalkPackage(byte type,int obj_id,byte[] payload) {
+		checkPayloadLength(payload.length);
 		byte[] res=new byte[MIN_PACKAGE_SIZE +payload.length];
 		res[0]=UAVTalkDefinitions.SYNC_VAL;
 		res[1]=type;
@@ -60,10 +71,7 @@ public class UAVTalkHelper {
 		res[6]=(byte)((obj_id>>16)&0xFF);
 		res[7]=(byte)((obj_id>>24)&0xFF);
 		
-		
-		for (int i=0;i<payload.length;i++) 
-			res[8+i]=payload[i];
-		
+		System.arraycopy(payload,0,res,HEADER_LENGTH,payload.length);
 		
 		res[8+payload.length]=CRC8.arrayUpdate((byte)0,res,8+payload.length);
 	
@@ -79,7 +87,7 @@ public class UAVTalkHelper {
 	 * @return byte-array containing the UAVTalk Package
 	 */
 	public static byte[] generateUAVTalkPackage(byte type,int obj_id) {
-		return  generateUAVTalkPackage(type,obj_id,new byte[0]); 
+		return  generateUAVTalkPackage(type,obj_id,EMPTY_PAYLOAD); 
 	}
 
 	/**
@@ -99,4 +107,96 @@ public class UAVTalkHelper {
 		}
 		
 	}
-}	
\ No newline at end of file
+
+	/**
+	 * write a UAVTalk package without any payload to the buffer
+	 * 
+	 * @param buf - the buffer to write to - starting at its position
+	 * @param type - the package 
+	 * @param obj_id - the object ID
+	 * @return number of bytes written
+	 */
+	public static int writeUAVTalkPackage(ByteBuffer buf,byte type,int obj_id) {
+		int start=buf.position();
+		writeHeader(buf,start,type,obj_id,0);
+		return finishPackage(buf,start,0);
+	}
+
+	/**
+	 * write a UAVTalk package to the buffer
+	 * 
+	 * @param buf - the buffer to write to - starting at its position
+	 * @param type - the package 
+	 * @param obj_id - the object ID
+	 * @param payload - array holding the payload
+	 * @param offset - where the payload starts in the array
+	 * @param length - length of the payload
+	 * @return number of bytes written
+	 */
+	public static int writeUAVTalkPackage(ByteBuffer buf,byte type,int obj_id,byte[] payload,int offset,int length) {
+		int start=buf.position();
+		writeHeader(buf,start,type,obj_id,length);
+		buf.position(start+HEADER_LENGTH);
+		buf.put(payload,offset,length);
+		return finishPackage(buf,start,length);
+	}
+
+	/**
+	 * write a UAVTalk package to the buffer - an UAVDataObject serializes
+	 * itself directly behind the header if the type carries a payload, other
+	 * objects are serialized once into an array
+	 * 
+	 * @param buf - the buffer to write to - starting at its position
+	 * @param type - the package 
+	 * @param obj - the object
+	 * @return number of bytes written
+	 */
+	public static int writeUAVTalkPackage(ByteBuffer buf,byte type,UAVObject obj) {
+		switch (type) {
+			case UAVTalkDefinitions.TYPE_OBJ_ACK:
+			case UAVTalkDefinitions.TYPE_OBJ:
+				if (!(obj instanceof UAVDataObject)) {
+					// the length of other objects is only known by serializing them
+					byte[] payload=obj.serialize();
+					return writeUAVTalkPackage(buf,type,obj.getObjID(),payload,0,payload.length);
+				}
+				checkPayloadLength(obj.getDataLength());
+				int start=buf.position();
+				// check before the object writes past the limit
+				if (buf.remaining()<MIN_PACKAGE_SIZE+obj.getDataLength())
+					throw new BufferOverflowException();
+				int length=obj.serialize(buf,start+HEADER_LENGTH);
+				writeHeader(buf,start,type,obj.getObjID(),length);
+				return finishPackage(buf,start,length);
+			default:	
+				return writeUAVTalkPackage(buf,type,obj.getObjID()); 
+		}
+	}
+
+	private static void writeHeader(ByteBuffer buf,int start,byte type,int obj_id,int length) {
+		checkPayloadLength(length);
+		if (buf.limit()-start<MIN_PACKAGE_SIZE+length)
+			throw new BufferOverflowException();
+		buf.put(start,UAVTalkDefinitions.SYNC_VAL);
+		buf.put(start+1,type);
+		buf.put(start+2,(byte)((HEADER_LENGTH + length)&0xFF));
+		buf.put(start+3,(byte)(((HEADER_LENGTH + length)>>8)&0xFF));
+		buf.put(start+4,(byte)((obj_id)&0xFF));
+		buf.put(start+5,(byte)((obj_id>>8)&0xFF));
+		buf.put(start+6,(byte)((obj_id>>16)&0xFF));
+		buf.put(start+7,(byte)((obj_id>>24)&0xFF));
+	}
+
+	private static void checkPayloadLength(int length) {
+		if (length>MAX_PAYLOAD_LENGTH)
+			throw new IllegalArgumentException("payload of "+length+" bytes does not fit into a package");
+	}
+
+	/** append the CRC over header and payload and move the position behind the package */
+	private static int finishPackage(ByteBuffer buf,int start,int length) {
+		int crc_pos=start+HEADER_LENGTH+length;
+		buf.put(crc_pos,CRC8.bufferUpdate((byte)0,buf,start,HEADER_LENGTH+length));
+		buf.position(crc_pos+PACKAGE_LENGTH_CRC);
+		return MIN_PACKAGE_SIZE+length;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkHistogram.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      fixed-bucket histogram for latencies
+ *
+ * Values below 4 have their own bucket, above that every power of 2 is split
+ * into 4 buckets, so a bucket is at most 25% wide. Recording is one atomic
+ * increment and never allocates. Values above 2^40 go into the last bucket.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkHistogram {
+
+	private final static int MAX_BITS=40;
+	private final static int NUM_BUCKETS=4+(MAX_BITS-2)*4;
+
+	private final AtomicLongArray buckets=new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count=new AtomicLong();
+	private final AtomicLong sum=new AtomicLong();
+	private final AtomicLong max=new AtomicLong();
+
+	/**
+	 * @param value - the value to record - negative values count as 0
+	 */
+	public void record(long value) {
+		if (value<0)
+			value=0;
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value>(m=max.get()) && !max.compareAndSet(m,value))
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n=count.get();
+		return n==0?0:(double)sum.get()/n;
+	}
+
+	/**
+	 * @param percentile - 0..100
+	 * @return - upper bound of the bucket holding the percentile - 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n=0;
+		for (int i=0;i<NUM_BUCKETS;i++)
+			n+=buckets.get(i);
+		if (n==0)
+			return 0;
+		long rank=(long)Math.ceil(percentile/100.0*n);
+		if (rank<1)
+			rank=1;
+		long seen=0;
+		for (int i=0;i<NUM_BUCKETS;i++) {
+			seen+=buckets.get(i);
+			if (seen>=rank)
+				return Math.min(upperBound(i),getMax());
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i=0;i<NUM_BUCKETS;i++)
+			buckets.set(i,0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	public String toString() {
+		return "count="+getCount()+" mean="+(long)getMean()+" p50="+getValueAtPercentile(50)
+				+" p99="+getValueAtPercentile(99)+" max="+getMax();
+	}
+
+	private static int bucket(long value) {
+		if (value<4)
+			return (int)value;
+		int msb=63-Long.numberOfLeadingZeros(value);
+		if (msb>=MAX_BITS)
+			return NUM_BUCKETS-1;
+		return 4+(msb-2)*4+(int)((value>>(msb-2))&3);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket<4)
+			return bucket;
+		int msb=(bucket-4)/4+2;
+		long sub=(bucket-4)&3;
+		return ((4+sub+1)<<(msb-2))-1;
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkLink.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      one connection of a UAVTalkTransport
+ *
+ * Every link has its own decoder, object manager and session, so links do not
+ * share any state. Frames are read and decoded on the selector thread of the
+ * link. Frames sent through the session are collected in a bounded outbound
+ * buffer which is written as fast as the channel accepts it:
+ *
+ *  - above the high watermark the link stops reading - the peer is slowed
+ *    down by TCP flow control instead of queueing answers without limit
+ *  - frames wait in the outbound queue while the buffer is full - once the
+ *    queue is full as well, further frames are dropped and counted as
+ *    TxFailures by the session
+ *
+ * The session does not write frames itself but adds them to an outbound queue
+ * ( see UAVTalkOutboundQueue ), which is flushed after every read and every
+ * tick - answers go out with the read that caused them, frames sent by other
+ * threads wait at most one tick and updates of the same object in between
+ * are sent once. The queue only flushes what fits into the outbound buffer.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkLink implements UAVTalkFrameListener {
+
+	public final static int DEFAULT_OUTBOUND_SIZE=64*1024;
+
+	/** room for the biggest UDP datagram - a read drops what does not fit */
+	public final static int MAX_DATAGRAM_SIZE=64*1024;
+
+	/**
+	 * the channel the session writes to - frames go into the outbound buffer
+	 */
+	private final class Outbound implements WritableByteChannel {
+		public int write(ByteBuffer src) throws IOException {
+			int len=src.remaining();
+			synchronized (outbound) {
+				if (closed)
+					throw new IOException("link closed");
+				if (outbound.remaining()<len) {
+					txDropped++;
+					throw new IOException("outbound buffer full");
+				}
+				boolean wasEmpty=outbound.position()==0;
+				outbound.put(src);
+				if (wasEmpty)
+					flushOutbound();
+				if (outbound.position()>0 && !writePending) {
+					writePending=true;
+					worker.updateInterest(UAVTalkLink.this);
+				}
+			}
+			return len;
+		}
+
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		public void close() {
+		}
+	}
+
+	private final UAVTalkTransport.Worker worker;
+	private final ByteChannel channel;
+	private final UAVObjectManager objMngr;
+	private final UAVTalkFrameDecoder decoder;
+	private final UAVTalkSession session;
+	private final UAVTalkLinkListener listener;
+	private final UAVTalkMetrics metrics;
+	private final UAVTalkOutboundQueue queue=new UAVTalkOutboundQueue();
+	private final Outbound out=new Outbound();
+
+	/** always in write mode - guarded by itself */
+	private final ByteBuffer outbound;
+	private boolean writePending;
+	private long txDropped;
+
+	/** UDP only - every datagram is received as a whole */
+	private final ByteBuffer datagram;
+	private long rxTruncated;
+
+	private volatile boolean connected;
+	private volatile boolean readPaused;
+	private volatile boolean closed;
+
+	SelectionKey key;
+
+	private long rateTime;
+	private long rateRxBytes;
+	private long rateTxBytes;
+	private volatile int rxDataRate;
+	private volatile int txDataRate;
+
+	UAVTalkLink(UAVTalkTransport.Worker worker,ByteChannel channel,boolean connected,UAVObjectManager objMngr,UAVTalkLinkListener listener,int outboundSize) {
+		this.worker=worker;
+		this.channel=channel;
+		this.connected=connected;
+		this.objMngr=objMngr;
+		this.listener=listener;
+		outbound=ByteBuffer.allocateDirect(outboundSize);
+		decoder=new UAVTalkFrameDecoder(this,UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH,true);
+		datagram=(channel instanceof DatagramChannel)?ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE):null;
+		session=new UAVTalkSession(objMngr,out);
+		session.setOutboundQueue(queue);
+		metrics=new UAVTalkMetrics(objMngr);
+		metrics.setLink(this);
+		session.setMetrics(metrics);
+	}
+
+	public UAVObjectManager getObjectManager() {
+		return objMngr;
+	}
+
+	/**
+	 * @return - the session to send and request objects on this link
+	 */
+	public UAVTalkSession getSession() {
+		return session;
+	}
+
+	/**
+	 * @return - the queue of frames not yet in the outbound buffer - e.g. to set a rate limit
+	 */
+	public UAVTalkOutboundQueue getOutboundQueue() {
+		return queue;
+	}
+
+	/**
+	 * @return - per-object counters and latencies of this link
+	 */
+	public UAVTalkMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ByteChannel getChannel() {
+		return channel;
+	}
+
+	public boolean isConnected() {
+		return connected && !closed;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * stop reading from the link until resumeReading() - for consumers which fall behind
+	 */
+	public void pauseReading() {
+		readPaused=true;
+		worker.updateInterest(this);
+	}
+
+	public void resumeReading() {
+		readPaused=false;
+		worker.updateInterest(this);
+	}
+
+	public boolean isReadingPaused() {
+		return readPaused;
+	}
+
+	/**
+	 * close the link - the listener is notified from the selector thread
+	 */
+	public void close() {
+		worker.close(this,null);
+	}
+
+	public long getRxBytes() {
+		return decoder.getRxBytes();
+	}
+
+	public long getRxObjects() {
+		return decoder.getRxObjects();
+	}
+
+	/**
+	 * @return - sync and CRC errors
+	 */
+	public long getRxErrors() {
+		return decoder.getRxSyncErrors()+decoder.getRxCrcErrors();
+	}
+
+	/**
+	 * @return - bytes skipped while searching for a frame start
+	 */
+	public long getRxSyncErrors() {
+		return decoder.getRxSyncErrors();
+	}
+
+	/**
+	 * @return - frames dropped because of a wrong checksum
+	 */
+	public long getRxCrcErrors() {
+		return decoder.getRxCrcErrors();
+	}
+
+	public long getRxFailures() {
+		return session.getRxFailures();
+	}
+
+	/**
+	 * @return - UDP datagrams which filled the receive buffer and may have been cut off
+	 */
+	public long getRxTruncated() {
+		return rxTruncated;
+	}
+
+	public long getTxBytes() {
+		return session.getTxBytes();
+	}
+
+	public long getTxObjects() {
+		return session.getTxObjects();
+	}
+
+	public long getTxRetries() {
+		return session.getTxRetries();
+	}
+
+	public long getTxFailures() {
+		return session.getTxFailures();
+	}
+
+	/**
+	 * @return - frames dropped because the outbound buffer was full
+	 */
+	public long getTxDropped() {
+		synchronized (outbound) {
+			return txDropped;
+		}
+	}
+
+	/**
+	 * @return - bytes waiting in the outbound buffer
+	 */
+	public int getOutboundBytes() {
+		synchronized (outbound) {
+			return outbound.position();
+		}
+	}
+
+	/**
+	 * fill the counters of a GCSTelemetryStats object - fields are matched by name
+	 * so any object with the same field names can be used
+	 *
+	 * @param stats - the object to fill
+	 */
+	public void fillTelemetryStats(UAVObject stats) {
+		UAVObjectFieldDescription[] fields=stats.getFieldDescriptions();
+		for (int i=0;i<fields.length;i++) {
+			String name=fields[i].getName();
+			Number value;
+			if (name.equals("TxDataRate"))
+				value=Float.valueOf(getTxDataRate());
+			else if (name.equals("RxDataRate"))
+				value=Float.valueOf(getRxDataRate());
+			else if (name.equals("TxBytes"))
+				value=uint32(getTxBytes());
+			else if (name.equals("RxBytes"))
+				value=uint32(getRxBytes());
+			else if (name.equals("TxFailures"))
+				value=uint32(getTxFailures());
+			else if (name.equals("TxRetries"))
+				value=uint32(getTxRetries());
+			else if (name.equals("RxFailures"))
+				value=uint32(getRxFailures());
+			else if (name.equals("RxSyncErrors"))
+				value=uint32(getRxSyncErrors());
+			else if (name.equals("RxCrcErrors"))
+				value=uint32(getRxCrcErrors());
+			else
+				continue;
+			stats.setField(fields[i].getFieldId(),0,value);
+		}
+	}
+
+	/**
+	 * @return - bytes per second received - updated once per second
+	 */
+	public int getRxDataRate() {
+		return rxDataRate;
+	}
+
+	/**
+	 * @return - bytes per second sent - updated once per second
+	 */
+	public int getTxDataRate() {
+		return txDataRate;
+	}
+
+	public void onFrame(UAVTalkFrame frame) {
+		session.onFrame(frame);
+		if (listener!=null)
+			listener.frameReceived(this,frame);
+	}
+
+	/**
+	 * @return - the interest set for the selector
+	 */
+	int interestOps() {
+		if (closed)
+			return 0;
+		if (!connected)
+			return SelectionKey.OP_CONNECT;
+		int ops=0;
+		boolean full;
+		synchronized (outbound) {
+			if (writePending)
+				ops|=SelectionKey.OP_WRITE;
+			full=outbound.position()>outbound.capacity()/2;
+		}
+		if (!readPaused && !full)
+			ops|=SelectionKey.OP_READ;
+		return ops;
+	}
+
+	void finishConnect() throws IOException {
+		if (((SocketChannel)channel).finishConnect())
+			connected=true;
+	}
+
+	void read() throws IOException {
+		if (datagram!=null)
+			readDatagram();
+		else if (decoder.read(channel)<0)
+			throw new EOFException();
+		flushQueue(System.currentTimeMillis());
+	}
+
+	/**
+	 * receive one datagram - the decoder buffer only has room for one frame,
+	 * a datagram read into it would lose the frames behind that
+	 */
+	private void readDatagram() throws IOException {
+		datagram.clear();
+		if (channel.read(datagram)<=0)
+			return;
+		boolean truncated=!datagram.hasRemaining();
+		datagram.flip();
+		decoder.decode(datagram);
+		if (truncated) {
+			// the rest of the cut off frame is not in the next datagram
+			rxTruncated++;
+			decoder.reset();
+		}
+	}
+
+	/**
+	 * @return - true if the outbound buffer is empty now
+	 */
+	boolean write() throws IOException {
+		synchronized (outbound) {
+			flushOutbound();
+			writePending=outbound.position()>0;
+			return !writePending;
+		}
+	}
+
+	void tick(long now) {
+		session.tick(now);
+		try {
+			flushQueue(now);
+		} catch (IOException e) {
+			// the channel failed - the next read or write reports it
+		}
+		if (now-rateTime>=1000) {
+			long rx=getRxBytes();
+			long tx=getTxBytes();
+			if (rateTime>0) {
+				rxDataRate=(int)((rx-rateRxBytes)*1000/(now-rateTime));
+				txDataRate=(int)((tx-rateTxBytes)*1000/(now-rateTime));
+			}
+			rateRxBytes=rx;
+			rateTxBytes=tx;
+			rateTime=now;
+		}
+	}
+
+	/**
+	 * @return - false if the link was already closed
+	 */
+	boolean closeChannel() {
+		synchronized (outbound) {
+			if (closed)
+				return false;
+			closed=true;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+		return true;
+	}
+
+	UAVTalkLinkListener getListener() {
+		return listener;
+	}
+
+	SelectableChannel getSelectableChannel() {
+		return (SelectableChannel)channel;
+	}
+
+	private static Long uint32(long value) {
+		return Long.valueOf(Math.min(value,0xFFFFFFFFL));
+	}
+
+	/**
+	 * move queued frames into the outbound buffer - must not be called while
+	 * holding the outbound lock, the queue takes it while flushing
+	 */
+	private void flushQueue(long now) throws IOException {
+		if (!queue.isReady(now))
+			return;
+		int room;
+		synchronized (outbound) {
+			if (closed)
+				return;
+			room=outbound.remaining();
+		}
+		queue.flush(out,now,room);
+	}
+
+	private void flushOutbound() throws IOException {
+		if (!connected)
+			return;
+		outbound.flip();
+		try {
+			channel.write(outbound);
+		} finally {
+			outbound.compact();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkLinkListener.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      callbacks of the UAVTalkTransport for all of its links
+ *
+ * The callbacks run on the selector thread of the link - they must not block.
+ * A consumer which can not keep up calls UAVTalkLink.pauseReading().
+ *
+ ****************************************************************************
+*/
+public interface UAVTalkLinkListener {
+
+	/**
+	 * a frame was received and already handled by the session of the link
+	 *
+	 * @param link - the link the frame was received on
+	 * @param frame - the frame - only valid during the call
+	 */
+	public void frameReceived(UAVTalkLink link,UAVTalkFrame frame);
+
+	/**
+	 * @param link - the link which was closed
+	 * @param cause - the error which closed the link - null if it was closed by close() or the other side
+	 */
+	public void linkClosed(UAVTalkLink link,IOException cause);
+
+}
@@ -0,0 +1,280 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkLogIndex.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      sparse index of a flight-log by time and object ID
+ *
+ * The log is split into blocks of about blockSize bytes. For every block the
+ * position and time of its first record is stored, and for every object ID
+ * the list of blocks which contain at least one frame of it. Seeking is a
+ * binary search over the blocks, and filtering by object only has to scan
+ * the blocks of its list.
+ *
+ ****************************************************************************
+*/
+final class UAVTalkLogIndex {
+
+	private final static int MAGIC=0x55415649; // "UAVI"
+	private final static int VERSION=1;
+
+	/*
+	 * segment files start with a header ( magic, version, end of data ) and
+	 * hold records of a little endian 64 bit timestamp in ms followed by the
+	 * raw frame as it was on the wire
+	 */
+	final static int SEGMENT_MAGIC=0x5541564C; // "UAVL"
+	final static int SEGMENT_VERSION=1;
+	final static int SEGMENT_DATA_END=8;
+	final static int SEGMENT_HEADER=16;
+	final static int RECORD_HEADER=8;
+
+	static File segmentFile(File base,int segment) {
+		return new File(base.getPath()+"."+String.format("%04d",segment)+".uavlog");
+	}
+
+	static File indexFile(File base) {
+		return new File(base.getPath()+".uavidx");
+	}
+
+	final int blockSize;
+
+	int numSegments;
+
+	int numBlocks;
+	int[] blockSegment=new int[64];
+	int[] blockOffset=new int[64];
+	long[] blockTime=new long[64];
+
+	/**
+	 * open addressing by object ID - a slot is used when postingCount>0. Not an
+	 * ObjectIdTable: only the recording thread fills it and the postings grow
+	 * in place for every block, so copying the table per object gains nothing
+	 */
+	int[] objIds=new int[64];
+	int[][] postings=new int[64][];
+	int[] postingCount=new int[64];
+	private int numObjects;
+
+	UAVTalkLogIndex(int blockSize) {
+		this.blockSize=blockSize;
+	}
+
+	/**
+	 * add a record - starts a new block if the current one is full
+	 */
+	void add(int segment,int offset,long time,int objId) {
+		int last=numBlocks-1;
+		if (last<0 || blockSegment[last]!=segment || offset-blockOffset[last]>=blockSize) {
+			if (numBlocks==blockOffset.length) {
+				int n=numBlocks*2;
+				blockSegment=copyOf(blockSegment,n);
+				blockOffset=copyOf(blockOffset,n);
+				long[] t=new long[n];
+				System.arraycopy(blockTime,0,t,0,numBlocks);
+				blockTime=t;
+			}
+			blockSegment[numBlocks]=segment;
+			blockOffset[numBlocks]=offset;
+			// block times have to be ascending for the binary search
+			blockTime[numBlocks]=last<0?time:Math.max(time,blockTime[last]);
+			numBlocks++;
+		}
+
+		int slot=slot(objId);
+		if (postingCount[slot]==0) {
+			if ((numObjects+1)*2>objIds.length) {
+				rehash();
+				slot=slot(objId);
+			}
+			numObjects++;
+			objIds[slot]=objId;
+			postings[slot]=new int[8];
+		}
+		int n=postingCount[slot];
+		int[] p=postings[slot];
+		if (n>0 && p[n-1]==numBlocks-1)
+			return;
+		if (n==p.length)
+			postings[slot]=p=copyOf(p,n*2);
+		p[n]=numBlocks-1;
+		postingCount[slot]=n+1;
+	}
+
+	/**
+	 * @return - the slot of the object ID - postingCount[slot] is 0 if the object is not in the log
+	 */
+	int slot(int objId) {
+		int mask=objIds.length-1;
+		int i=ObjectIdTable.mix(objId)&mask;
+		while (postingCount[i]>0 && objIds[i]!=objId)
+			i=(i+1)&mask;
+		return i;
+	}
+
+	/**
+	 * @return - the last block starting at or before the time - 0 if the time is before the log
+	 */
+	int findBlock(long time) {
+		int lo=0;
+		int hi=numBlocks-1;
+		while (lo<hi) {
+			int mid=(lo+hi+1)>>>1;
+			if (blockTime[mid]<=time)
+				lo=mid;
+			else
+				hi=mid-1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return - the position in the posting list of the first block >= block
+	 */
+	static int findPosting(int[] p,int n,int block) {
+		int lo=0;
+		int hi=n;
+		while (lo<hi) {
+			int mid=(lo+hi)>>>1;
+			if (p[mid]<block)
+				lo=mid+1;
+			else
+				hi=mid;
+		}
+		return lo;
+	}
+
+	int[] getObjectIDs() {
+		int[] res=new int[numObjects];
+		int n=0;
+		for (int i=0;i<objIds.length;i++)
+			if (postingCount[i]>0)
+				res[n++]=objIds[i];
+		return res;
+	}
+
+	void write(File file) throws IOException {
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockSize);
+			out.writeInt(numSegments);
+			out.writeInt(numBlocks);
+			for (int i=0;i<numBlocks;i++) {
+				out.writeInt(blockSegment[i]);
+				out.writeInt(blockOffset[i]);
+				out.writeLong(blockTime[i]);
+			}
+			out.writeInt(numObjects);
+			for (int i=0;i<objIds.length;i++) {
+				if (postingCount[i]==0)
+					continue;
+				out.writeInt(objIds[i]);
+				out.writeInt(postingCount[i]);
+				for (int j=0;j<postingCount[i];j++)
+					out.writeInt(postings[i][j]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return - the index or null if the file is missing or not an index
+	 */
+	static UAVTalkLogIndex read(File file) throws IOException {
+		if (!file.exists())
+			return null;
+		DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt()!=MAGIC || in.readInt()!=VERSION)
+				return null;
+			UAVTalkLogIndex res=new UAVTalkLogIndex(in.readInt());
+			res.numSegments=in.readInt();
+			int n=in.readInt();
+			res.numBlocks=n;
+			res.blockSegment=new int[Math.max(n,1)];
+			res.blockOffset=new int[Math.max(n,1)];
+			res.blockTime=new long[Math.max(n,1)];
+			for (int i=0;i<n;i++) {
+				res.blockSegment[i]=in.readInt();
+				res.blockOffset[i]=in.readInt();
+				res.blockTime[i]=in.readLong();
+			}
+			int objs=in.readInt();
+			int size=64;
+			while (size<objs*2+2)
+				size<<=1;
+			res.objIds=new int[size];
+			res.postings=new int[size][];
+			res.postingCount=new int[size];
+			for (int i=0;i<objs;i++) {
+				int objId=in.readInt();
+				int count=in.readInt();
+				int[] p=new int[count];
+				for (int j=0;j<count;j++)
+					p[j]=in.readInt();
+				int slot=res.slot(objId);
+				res.objIds[slot]=objId;
+				res.postings[slot]=p;
+				res.postingCount[slot]=count;
+			}
+			res.numObjects=objs;
+			return res;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void rehash() {
+		int[] oldIds=objIds;
+		int[][] oldPostings=postings;
+		int[] oldCount=postingCount;
+		int n=oldIds.length*2;
+		objIds=new int[n];
+		postings=new int[n][];
+		postingCount=new int[n];
+		for (int i=0;i<oldIds.length;i++) {
+			if (oldCount[i]==0)
+				continue;
+			int slot=slot(oldIds[i]);
+			objIds[slot]=oldIds[i];
+			postings[slot]=oldPostings[i];
+			postingCount[slot]=oldCount[i];
+		}
+	}
+
+	private static int[] copyOf(int[] a,int n) {
+		int[] res=new int[n];
+		System.arraycopy(a,0,res,0,Math.min(a.length,n));
+		return res;
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkLogReader.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      indexed replay of logs written by UAVTalkLogWriter
+ *
+ * The segments are mapped read only and the recorded frames are fed into a
+ * UAVTalkFrameDecoder - the same path frames of a live link take. Replay
+ * starts at the index block of the requested time, and replaying a single
+ * object only visits the blocks which contain it. If the index is missing
+ * ( the recorder was not closed ) it is rebuilt by scanning the segments once.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkLogReader {
+
+	/** replay as fast as possible */
+	public final static double SPEED_MAX=0;
+	public final static double SPEED_REALTIME=1;
+
+	private final MappedByteBuffer[] segments;
+	private final int[] dataEnd;
+	private final UAVTalkLogIndex index;
+	private final long endTime;
+
+	private volatile boolean stopped;
+	private long replayTime;
+
+	/**
+	 * @param base - path of the log without extension
+	 */
+	public UAVTalkLogReader(File base) throws IOException {
+		ArrayList<MappedByteBuffer> maps=new ArrayList<MappedByteBuffer>();
+		for (int i=0;UAVTalkLogIndex.segmentFile(base,i).exists();i++) {
+			RandomAccessFile file=new RandomAccessFile(UAVTalkLogIndex.segmentFile(base,i),"r");
+			try {
+				FileChannel channel=file.getChannel();
+				MappedByteBuffer map=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+				map.order(ByteOrder.LITTLE_ENDIAN);
+				if (map.capacity()<UAVTalkLogIndex.SEGMENT_HEADER || map.getInt(0)!=UAVTalkLogIndex.SEGMENT_MAGIC)
+					throw new IOException("not a log segment: "+UAVTalkLogIndex.segmentFile(base,i));
+				maps.add(map);
+			} finally {
+				// the mapping stays valid after closing
+				file.close();
+			}
+		}
+		if (maps.isEmpty())
+			throw new IOException("no log segments for "+base);
+
+		segments=maps.toArray(new MappedByteBuffer[maps.size()]);
+		dataEnd=new int[segments.length];
+		for (int i=0;i<segments.length;i++)
+			dataEnd[i]=Math.min(segments[i].getInt(UAVTalkLogIndex.SEGMENT_DATA_END),segments[i].capacity());
+
+		UAVTalkLogIndex idx=UAVTalkLogIndex.read(UAVTalkLogIndex.indexFile(base));
+		if (idx==null || idx.numSegments!=segments.length)
+			idx=rebuildIndex();
+		index=idx;
+
+		long end=0;
+		if (index.numBlocks>0) {
+			int b=index.numBlocks-1;
+			int seg=index.blockSegment[b];
+			int off=index.blockOffset[b];
+			if (isRecord(seg,off,dataEnd[seg]))
+				for (;off>=0;off=nextRecord(seg,off,dataEnd[seg]))
+					end=Math.max(end,segments[seg].getLong(off));
+		}
+		endTime=end;
+	}
+
+	/**
+	 * @return - time of the first record in ms
+	 */
+	public long getStartTime() {
+		return index.numBlocks>0?index.blockTime[0]:0;
+	}
+
+	/**
+	 * @return - time of the last record in ms
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return - all object IDs in the log
+	 */
+	public int[] getObjectIDs() {
+		return index.getObjectIDs();
+	}
+
+	/**
+	 * replay all frames of a time range
+	 *
+	 * @param decoder - gets the raw frames
+	 * @param from - start time in ms
+	 * @param to - end time in ms ( inclusive )
+	 * @param speed - 1 for real time, N for N times faster, SPEED_MAX for no delays
+	 * @return - number of frames replayed
+	 */
+	public long replay(UAVTalkFrameDecoder decoder,long from,long to,double speed) {
+		return replay(decoder,from,to,speed,false,0);
+	}
+
+	/**
+	 * replay the frames of one object in a time range
+	 *
+	 * @param decoder - gets the raw frames
+	 * @param from - start time in ms
+	 * @param to - end time in ms ( inclusive )
+	 * @param speed - 1 for real time, N for N times faster, SPEED_MAX for no delays
+	 * @param objId - the object to replay
+	 * @return - number of frames replayed
+	 */
+	public long replay(UAVTalkFrameDecoder decoder,long from,long to,double speed,int objId) {
+		return replay(decoder,from,to,speed,true,objId);
+	}
+
+	/**
+	 * @return - recorded time of the frame which is currently passed to the decoder
+	 */
+	public long getReplayTime() {
+		return replayTime;
+	}
+
+	/**
+	 * abort a running replay - may be called from any thread. If no replay is
+	 * running the next one returns at once
+	 */
+	public void stop() {
+		stopped=true;
+	}
+
+	private long replay(UAVTalkFrameDecoder decoder,long from,long to,double speed,boolean filter,int objId) {
+		try {
+			return replayBlocks(decoder,from,to,speed,filter,objId);
+		} finally {
+			// the stop is consumed by the replay it aborted
+			stopped=false;
+		}
+	}
+
+	private long replayBlocks(UAVTalkFrameDecoder decoder,long from,long to,double speed,boolean filter,int objId) {
+		if (index.numBlocks==0)
+			return 0;
+
+		ByteBuffer[] views=new ByteBuffer[segments.length];
+		for (int i=0;i<segments.length;i++)
+			views[i]=segments[i].duplicate();
+
+		int block=index.findBlock(from);
+		int[] postings=null;
+		int numPostings=0;
+		int posting=0;
+		if (filter) {
+			int slot=index.slot(objId);
+			numPostings=index.postingCount[slot];
+			postings=index.postings[slot];
+			posting=UAVTalkLogIndex.findPosting(postings,numPostings,block);
+		}
+
+		long frames=0;
+		long firstTime=0;
+		long startNanos=0;
+
+		while (!stopped) {
+			int b;
+			if (filter) {
+				if (posting>=numPostings)
+					break;
+				b=postings[posting++];
+			} else {
+				if (block>=index.numBlocks)
+					break;
+				b=block++;
+			}
+			if (index.blockTime[b]>to)
+				break;
+
+			int seg=index.blockSegment[b];
+			int end=(b+1<index.numBlocks && index.blockSegment[b+1]==seg)?index.blockOffset[b+1]:dataEnd[seg];
+			MappedByteBuffer map=segments[seg];
+			int off=index.blockOffset[b];
+			if (!isRecord(seg,off,end))
+				continue;
+
+			for (;off>=0 && !stopped;off=nextRecord(seg,off,end)) {
+				long time=map.getLong(off);
+				if (time>to)
+					return frames;
+				if (time<from || (filter && map.getInt(off+UAVTalkLogIndex.RECORD_HEADER+4)!=objId))
+					continue;
+
+				if (speed>0) {
+					if (frames==0) {
+						firstTime=time;
+						startNanos=System.nanoTime();
+					}
+					long due=startNanos+(long)((time-firstTime)*1000000L/speed);
+					long wait;
+					while ((wait=due-System.nanoTime())>0 && !stopped)
+						LockSupport.parkNanos(wait);
+				}
+
+				int frame=off+UAVTalkLogIndex.RECORD_HEADER;
+				ByteBuffer view=views[seg];
+				view.clear();
+				view.position(frame);
+				view.limit(frame+frameLength(map,frame));
+				replayTime=time;
+				decoder.decode(view);
+				frames++;
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return - true if a complete frame is recorded at off
+	 */
+	private boolean isRecord(int seg,int off,int end) {
+		MappedByteBuffer map=segments[seg];
+		int frame=off+UAVTalkLogIndex.RECORD_HEADER;
+		return frame+UAVTalkHelper.HEADER_LENGTH<=end
+				&& map.get(frame)==UAVTalkDefinitions.SYNC_VAL
+				&& frame+frameLength(map,frame)<=end;
+	}
+
+	/**
+	 * @return - offset of the record after the one at off - -1 at the end or if the data is broken
+	 */
+	private int nextRecord(int seg,int off,int end) {
+		int frame=off+UAVTalkLogIndex.RECORD_HEADER;
+		int next=frame+frameLength(segments[seg],frame);
+		return isRecord(seg,next,end)?next:-1;
+	}
+
+	private static int frameLength(ByteBuffer map,int frame) {
+		return (map.getShort(frame+2)&0xFFFF)+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+	}
+
+	private UAVTalkLogIndex rebuildIndex() {
+		UAVTalkLogIndex idx=new UAVTalkLogIndex(UAVTalkLogWriter.DEFAULT_BLOCK_SIZE);
+		idx.numSegments=segments.length;
+		for (int seg=0;seg<segments.length;seg++) {
+			int end=dataEnd[seg];
+			int off=UAVTalkLogIndex.SEGMENT_HEADER;
+			if (!isRecord(seg,off,end))
+				continue;
+			for (;off>=0;off=nextRecord(seg,off,end))
+				idx.add(seg,off,segments[seg].getLong(off),segments[seg].getInt(off+UAVTalkLogIndex.RECORD_HEADER+4));
+		}
+		return idx;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkLogWriter.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      records UAVTalk frames into memory-mapped segment files
+ *
+ * A log named base consists of the segments base.0000.uavlog, base.0001.uavlog ...
+ * and the index base.uavidx which is written on close(). Frames are written
+ * directly into the mapped segment, so recording does not allocate. The end
+ * of data is updated in the segment header with every record, so a log of a
+ * crashed recorder can still be read - the index is then rebuilt by the reader.
+ *
+ * Objects of the manager are recorded according to their loggingUpdateMode:
+ * never - not recorded, periodic / throttled - at most once per
+ * loggingUpdatePeriod, otherwise every frame. last_log is updated.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkLogWriter implements UAVObjectLogger, UAVTalkFrameListener {
+
+	public final static int DEFAULT_SEGMENT_SIZE=64*1024*1024;
+	public final static int DEFAULT_BLOCK_SIZE=64*1024;
+
+	private final File base;
+	private final UAVObjectManager objMngr;
+	private final int segmentSize;
+	private final UAVTalkLogIndex index;
+
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int segment=-1;
+	private int offset;
+
+	private long records;
+	private long bytes;
+	private long writeErrors;
+
+	/**
+	 * @param base - path of the log without extension
+	 * @param objMngr - objects whose logging metadata is honored - may be null
+	 */
+	public UAVTalkLogWriter(File base,UAVObjectManager objMngr) throws IOException {
+		this(base,objMngr,DEFAULT_SEGMENT_SIZE,DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param base - path of the log without extension
+	 * @param objMngr - objects whose logging metadata is honored - may be null
+	 * @param segmentSize - size of a segment file in bytes
+	 * @param blockSize - bytes per index block - smaller blocks seek faster but make the index bigger
+	 */
+	public UAVTalkLogWriter(File base,UAVObjectManager objMngr,int segmentSize,int blockSize) throws IOException {
+		this.base=base;
+		this.objMngr=objMngr;
+		this.segmentSize=segmentSize;
+		index=new UAVTalkLogIndex(blockSize);
+		nextSegment();
+	}
+
+	/**
+	 * record the current data of an object - called by the UAVObjectScheduler
+	 * which already applied the logging period, so only UPDATEMODE_NEVER is checked
+	 */
+	public synchronized void logObject(UAVObject obj,long time) throws IOException {
+		UAVObjectMetaData meta=obj.getMetaData();
+		if (meta.loggingUpdateMode==UAVObjectMetaData.UPDATEMODE_NEVER)
+			return;
+		meta.last_log=time;
+
+		int start=reserve(UAVTalkLogIndex.RECORD_HEADER+UAVTalkHelper.MIN_PACKAGE_SIZE+obj.getDataLength());
+		map.putLong(start,time);
+		map.position(start+UAVTalkLogIndex.RECORD_HEADER);
+		UAVTalkHelper.writeUAVTalkPackage(map,UAVTalkDefinitions.TYPE_OBJ,obj);
+		commit(start,time,obj.getObjID());
+	}
+
+	/**
+	 * record a frame received from a link with the current time
+	 * write errors are counted - see getWriteErrors()
+	 */
+	public void onFrame(UAVTalkFrame frame) {
+		try {
+			recordFrame(frame,System.currentTimeMillis());
+		} catch (IOException e) {
+			synchronized (this) {
+				writeErrors++;
+			}
+		}
+	}
+
+	/**
+	 * record a frame as it was received
+	 *
+	 * @param frame - the frame
+	 * @param time - receive time in ms
+	 * @return - false if the frame was skipped because of the logging metadata
+	 */
+	public synchronized boolean recordFrame(UAVTalkFrame frame,long time) throws IOException {
+		byte type=frame.getType();
+		if (objMngr!=null && (type==UAVTalkDefinitions.TYPE_OBJ || type==UAVTalkDefinitions.TYPE_OBJ_ACK)) {
+			UAVObject obj=objMngr.getObject(frame.getObjID());
+			if (obj!=null) {
+				UAVObjectMetaData meta=obj.getMetaData();
+				byte mode=meta.loggingUpdateMode;
+				if (mode==UAVObjectMetaData.UPDATEMODE_NEVER)
+					return false;
+				if ((mode==UAVObjectMetaData.UPDATEMODE_PERIODIC || mode==UAVObjectMetaData.UPDATEMODE_THROTTLED)
+						&& meta.loggingUpdatePeriod>0 && time-meta.last_log<meta.loggingUpdatePeriod)
+					return false;
+				meta.last_log=time;
+			}
+		}
+
+		int start=reserve(UAVTalkLogIndex.RECORD_HEADER+frame.getFrameLength());
+		map.putLong(start,time);
+		map.position(start+UAVTalkLogIndex.RECORD_HEADER);
+		frame.writeTo(map);
+		commit(start,time,frame.getObjID());
+		return true;
+	}
+
+	/**
+	 * write the recorded data to disk - the index is only written by close()
+	 */
+	public synchronized void flush() {
+		if (map!=null)
+			map.force();
+	}
+
+	/**
+	 * finish the last segment and write the index
+	 */
+	public synchronized void close() throws IOException {
+		if (map==null)
+			return;
+		finishSegment();
+		index.write(UAVTalkLogIndex.indexFile(base));
+	}
+
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return - bytes written including segment and record headers
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getWriteErrors() {
+		return writeErrors;
+	}
+
+	/**
+	 * @return - start of a record of the given length in the current segment
+	 */
+	private int reserve(int length) throws IOException {
+		if (map==null)
+			throw new IOException("log is closed");
+		if (length>segmentSize-UAVTalkLogIndex.SEGMENT_HEADER)
+			throw new IllegalArgumentException("record bigger than a segment");
+		if (segmentSize-offset<length)
+			nextSegment();
+		return offset;
+	}
+
+	private void commit(int start,long time,int objId) {
+		int end=map.position();
+		index.add(segment,start,time,objId);
+		bytes+=end-offset;
+		offset=end;
+		records++;
+		map.putInt(UAVTalkLogIndex.SEGMENT_DATA_END,offset);
+	}
+
+	private void nextSegment() throws IOException {
+		if (map!=null)
+			finishSegment();
+		segment++;
+		RandomAccessFile file=new RandomAccessFile(UAVTalkLogIndex.segmentFile(base,segment),"rw");
+		channel=file.getChannel();
+		map=channel.map(FileChannel.MapMode.READ_WRITE,0,segmentSize);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		map.putInt(0,UAVTalkLogIndex.SEGMENT_MAGIC);
+		map.putInt(4,UAVTalkLogIndex.SEGMENT_VERSION);
+		offset=UAVTalkLogIndex.SEGMENT_HEADER;
+		map.putInt(UAVTalkLogIndex.SEGMENT_DATA_END,offset);
+		bytes+=offset;
+		index.numSegments=segment+1;
+	}
+
+	private void finishSegment() throws IOException {
+		map.force();
+		map=null;
+		try {
+			channel.truncate(offset);
+		} catch (IOException e) {
+			// a mapped file can not be truncated on every platform - the
+			// end of data in the header is what counts for the reader
+		}
+		channel.close();
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkMetrics.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      per-object and per-link telemetry counters
+ *
+ * A session with metrics ( UAVTalkSession.setMetrics() - every UAVTalkLink has
+ * them ) reports every received and sent frame and every finished transaction.
+ * Counters are striped ( LongAdder ) so sending threads do not contend, and
+ * latencies go into fixed-bucket histograms. For every object the observed
+ * update period is tracked next to the period configured in its metadata, so
+ * objects which saturate a link can be found.
+ *
+ * The counters can be read through getters, as text ( writeText() ) or JMX
+ * ( registerMBean() ).
+ *
+ ****************************************************************************
+*/
+public class UAVTalkMetrics implements UAVTalkMetricsMBean {
+
+	/**
+	 * counters of one object
+	 */
+	public final static class ObjectMetrics {
+		private final int objId;
+		private final LongAdder rxFrames=new LongAdder();
+		private final LongAdder rxBytes=new LongAdder();
+		private final LongAdder txFrames=new LongAdder();
+		private final LongAdder txBytes=new LongAdder();
+		private final LongAdder transactionFailures=new LongAdder();
+		private final UAVTalkHistogram ackLatency=new UAVTalkHistogram();
+
+		/* written by the receiving thread only */
+		private long lastRx;
+		private volatile double period;
+
+		/* rates of the last rate update */
+		private long rateTime;
+		private long rateRxBytes;
+		private long rateTxBytes;
+		private volatile double rxRate;
+		private volatile double txRate;
+
+		ObjectMetrics(int objId) {
+			this.objId=objId;
+		}
+
+		public int getObjID() {
+			return objId;
+		}
+
+		public long getRxFrames() {
+			return rxFrames.sum();
+		}
+
+		public long getRxBytes() {
+			return rxBytes.sum();
+		}
+
+		public long getTxFrames() {
+			return txFrames.sum();
+		}
+
+		public long getTxBytes() {
+			return txBytes.sum();
+		}
+
+		public long getTransactionFailures() {
+			return transactionFailures.sum();
+		}
+
+		/**
+		 * @return - round trip of acked sends and requests in microseconds
+		 */
+		public UAVTalkHistogram getAckLatency() {
+			return ackLatency;
+		}
+
+		/**
+		 * @return - smoothed time between two received updates in ms - 0 before the second one
+		 */
+		public double getObservedPeriod() {
+			return period;
+		}
+
+		/**
+		 * @return - received bytes per second since the previous call of updateRates()
+		 */
+		public double getRxRate() {
+			return rxRate;
+		}
+
+		/**
+		 * @return - sent bytes per second since the previous call of updateRates()
+		 */
+		public double getTxRate() {
+			return txRate;
+		}
+
+		void received(int bytes,long now) {
+			rxFrames.increment();
+			rxBytes.add(bytes);
+			if (lastRx!=0) {
+				double p=period;
+				double dt=(now-lastRx)/1000000.0;
+				period=p==0?dt:p+(dt-p)/8;
+			}
+			lastRx=now;
+		}
+
+		synchronized void updateRates(long now) {
+			long rx=getRxBytes();
+			long tx=getTxBytes();
+			if (rateTime!=0 && now>rateTime) {
+				rxRate=(rx-rateRxBytes)*1e9/(now-rateTime);
+				txRate=(tx-rateTxBytes)*1e9/(now-rateTime);
+			}
+			rateRxBytes=rx;
+			rateTxBytes=tx;
+			rateTime=now;
+		}
+	}
+
+	private final static int MIN_CAPACITY=64;
+
+	private final UAVObjectManager objMngr;
+
+	private final LongAdder rxFrames=new LongAdder();
+	private final LongAdder rxBytes=new LongAdder();
+	private final LongAdder txFrames=new LongAdder();
+	private final LongAdder txBytes=new LongAdder();
+	private final LongAdder transactions=new LongAdder();
+	private final LongAdder transactionFailures=new LongAdder();
+	private final UAVTalkHistogram ackLatency=new UAVTalkHistogram();
+
+	/* copy-on-write table objId -> ObjectMetrics */
+	private volatile ObjectIdTable<ObjectMetrics> table=new ObjectIdTable<ObjectMetrics>(MIN_CAPACITY);
+
+	private UAVTalkLink link;
+
+	/**
+	 * @param objMngr - used for the names and configured periods of the objects - may be null
+	 */
+	public UAVTalkMetrics(UAVObjectManager objMngr) {
+		this.objMngr=objMngr;
+	}
+
+	/**
+	 * count a received frame
+	 *
+	 * @param objId - object ID of the frame
+	 * @param bytes - length of the frame on the wire
+	 * @param now - System.nanoTime()
+	 */
+	public void frameReceived(int objId,int bytes,long now) {
+		rxFrames.increment();
+		rxBytes.add(bytes);
+		get(objId).received(bytes,now);
+	}
+
+	/**
+	 * count a sent frame
+	 *
+	 * @param objId - object ID of the frame
+	 * @param bytes - length of the frame on the wire
+	 */
+	public void frameSent(int objId,int bytes) {
+		txFrames.increment();
+		txBytes.add(bytes);
+		ObjectMetrics m=get(objId);
+		m.txFrames.increment();
+		m.txBytes.add(bytes);
+	}
+
+	/**
+	 * count a finished acked send or request
+	 *
+	 * @param objId - the object
+	 * @param roundTrip - ns from the last send to the answer
+	 * @param success - false if it failed
+	 */
+	public void transactionCompleted(int objId,long roundTrip,boolean success) {
+		transactions.increment();
+		ObjectMetrics m=get(objId);
+		if (success) {
+			long us=roundTrip/1000;
+			ackLatency.record(us);
+			m.ackLatency.record(us);
+		} else {
+			transactionFailures.increment();
+			m.transactionFailures.increment();
+		}
+	}
+
+	/**
+	 * @return - the counters of an object - created on first use
+	 */
+	public ObjectMetrics getObjectMetrics(int objId) {
+		return get(objId);
+	}
+
+	/**
+	 * @return - the counters of all objects seen so far
+	 */
+	public ObjectMetrics[] getAllObjectMetrics() {
+		ObjectIdTable<ObjectMetrics> t=table;
+		ObjectMetrics[] res=new ObjectMetrics[t.size()];
+		int n=0;
+		for (int i=0;i<t.capacity();i++)
+			if (t.valueAt(i)!=null)
+				res[n++]=t.valueAt(i);
+		return res;
+	}
+
+	/**
+	 * compute the byte rates of all objects since the previous call
+	 */
+	public void updateRates() {
+		long now=System.nanoTime();
+		ObjectIdTable<ObjectMetrics> t=table;
+		for (int i=0;i<t.capacity();i++)
+			if (t.valueAt(i)!=null)
+				t.valueAt(i).updateRates(now);
+	}
+
+	public long getRxFrames() {
+		return rxFrames.sum();
+	}
+
+	public long getRxBytes() {
+		return rxBytes.sum();
+	}
+
+	public long getTxFrames() {
+		return txFrames.sum();
+	}
+
+	public long getTxBytes() {
+		return txBytes.sum();
+	}
+
+	public long getTransactions() {
+		return transactions.sum();
+	}
+
+	public long getTransactionFailures() {
+		return transactionFailures.sum();
+	}
+
+	public UAVTalkHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	public double getAckLatencyMean() {
+		return ackLatency.getMean();
+	}
+
+	public long getAckLatencyP99() {
+		return ackLatency.getValueAtPercentile(99);
+	}
+
+	public long getAckLatencyMax() {
+		return ackLatency.getMax();
+	}
+
+	public String getText() {
+		StringBuilder res=new StringBuilder();
+		try {
+			writeText(res);
+		} catch (IOException e) {
+			// a StringBuilder does not throw
+		}
+		return res.toString();
+	}
+
+	/**
+	 * write all counters as "name{labels} value" lines - the rates are updated first
+	 *
+	 * @param out - where to write to
+	 */
+	public void writeText(Appendable out) throws IOException {
+		updateRates();
+		UAVTalkLink l=link;
+		if (l!=null) {
+			line(out,"uavtalk_rx_sync_errors",null,l.getRxSyncErrors());
+			line(out,"uavtalk_rx_crc_errors",null,l.getRxCrcErrors());
+			line(out,"uavtalk_rx_failures",null,l.getRxFailures());
+			line(out,"uavtalk_tx_retries",null,l.getTxRetries());
+			line(out,"uavtalk_tx_failures",null,l.getTxFailures());
+			line(out,"uavtalk_tx_dropped",null,l.getTxDropped());
+			line(out,"uavtalk_rx_data_rate",null,l.getRxDataRate());
+			line(out,"uavtalk_tx_data_rate",null,l.getTxDataRate());
+			line(out,"uavtalk_outbound_bytes",null,l.getOutboundBytes());
+			line(out,"uavtalk_in_flight",null,l.getSession().getNumInFlight());
+			line(out,"uavtalk_pending",null,l.getSession().getNumPending());
+		}
+		line(out,"uavtalk_rx_frames",null,getRxFrames());
+		line(out,"uavtalk_rx_bytes",null,getRxBytes());
+		line(out,"uavtalk_tx_frames",null,getTxFrames());
+		line(out,"uavtalk_tx_bytes",null,getTxBytes());
+		line(out,"uavtalk_transactions",null,getTransactions());
+		line(out,"uavtalk_transaction_failures",null,getTransactionFailures());
+		line(out,"uavtalk_ack_latency_us_mean",null,(long)ackLatency.getMean());
+		line(out,"uavtalk_ack_latency_us_p99",null,ackLatency.getValueAtPercentile(99));
+		line(out,"uavtalk_ack_latency_us_max",null,ackLatency.getMax());
+
+		ObjectMetrics[] all=getAllObjectMetrics();
+		for (int i=0;i<all.length;i++) {
+			ObjectMetrics m=all[i];
+			String label=label(m.objId);
+			line(out,"uavtalk_object_rx_frames",label,m.getRxFrames());
+			line(out,"uavtalk_object_tx_frames",label,m.getTxFrames());
+			line(out,"uavtalk_object_rx_rate",label,(long)m.getRxRate());
+			line(out,"uavtalk_object_tx_rate",label,(long)m.getTxRate());
+			line(out,"uavtalk_object_period_observed_ms",label,(long)m.getObservedPeriod());
+			UAVObject obj=objMngr==null?null:objMngr.getObject(m.objId);
+			if (obj!=null)
+				line(out,"uavtalk_object_period_configured_ms",label,obj.getMetaData().flightTelemetryUpdatePeriod);
+			if (m.ackLatency.getCount()>0) {
+				line(out,"uavtalk_object_ack_latency_us_p99",label,m.ackLatency.getValueAtPercentile(99));
+				line(out,"uavtalk_object_transaction_failures",label,m.getTransactionFailures());
+			}
+		}
+	}
+
+	/**
+	 * register the metrics as MBean org.openpilot.uavtalk:type=UAVTalkMetrics,name=<name>
+	 *
+	 * @param name - name of the link
+	 */
+	public void registerMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,objectName(name));
+	}
+
+	public void unregisterMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+	}
+
+	void setLink(UAVTalkLink link) {
+		this.link=link;
+	}
+
+	private ObjectMetrics get(int objId) {
+		ObjectMetrics m=table.get(objId);
+		return (m!=null)?m:add(objId);
+	}
+
+	private synchronized ObjectMetrics add(int objId) {
+		ObjectMetrics m=table.get(objId);
+		if (m!=null)
+			return m;
+		m=new ObjectMetrics(objId);
+		table=table.put(objId,m);
+		return m;
+	}
+
+	private String label(int objId) {
+		UAVObject obj=objMngr==null?null:objMngr.getObject(objId);
+		if (obj!=null)
+			return "object=\""+obj.getObjName()+"\"";
+		return "objid=\"0x"+Integer.toHexString(objId).toUpperCase()+"\"";
+	}
+
+	private static void line(Appendable out,String name,String label,long value) throws IOException {
+		out.append(name);
+		if (label!=null)
+			out.append('{').append(label).append('}');
+		out.append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("org.openpilot.uavtalk:type=UAVTalkMetrics,name="+ObjectName.quote(name));
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkMetricsMBean.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      JMX view of the UAVTalkMetrics of a link
+ *
+ ****************************************************************************
+*/
+public interface UAVTalkMetricsMBean {
+
+	public long getRxFrames();
+	public long getRxBytes();
+	public long getTxFrames();
+	public long getTxBytes();
+	public long getTransactions();
+	public long getTransactionFailures();
+
+	/** ack and request round trip in microseconds */
+	public double getAckLatencyMean();
+	public long getAckLatencyP99();
+	public long getAckLatencyMax();
+
+	/** all counters as text - see UAVTalkMetrics.writeText() */
+	public String getText();
+
+}
@@ -0,0 +1,403 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.IdentityHashMap;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkOutboundQueue.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      prioritized queue of outgoing frames with batched writes
+ *
+ * Frames wait in one of three lanes until flush() is called:
+ *
+ *  LANE_CONTROL - ACK, NACK, requests and priority objects
+ *  LANE_NORMAL  - all other objects
+ *  LANE_BULK    - settings objects
+ *
+ * flush() encodes the frames lane by lane into one buffer and writes it with
+ * one write() call. Objects are serialized when they are flushed, so an
+ * update of an object which is still queued only replaces the value to be
+ * sent - the frame keeps its place in the lane and is sent once. This also
+ * holds for re-sends of TYPE_OBJ_ACK frames, and a TYPE_OBJ_ACK update turns
+ * a queued TYPE_OBJ frame into a TYPE_OBJ_ACK frame.
+ *
+ * The bytes waiting in the queue are limited - add() throws an IOException
+ * when a frame does not fit anymore, like a write to a full channel.
+ *
+ * An optional rate limit ( token bucket ) holds back normal and bulk frames
+ * once the byte budget of the link is used up. Control frames are never held
+ * back but are charged against the budget, so bulk traffic backs off instead.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkOutboundQueue {
+
+	public final static int LANE_CONTROL=0;
+	public final static int LANE_NORMAL=1;
+	public final static int LANE_BULK=2;
+	public final static int NUM_LANES=3;
+
+	public final static int DEFAULT_BATCH_SIZE=16*1024;
+	public final static int DEFAULT_MAX_QUEUED=256*1024;
+
+	/** the largest frame - the rate limit burst has to allow at least one */
+	private final static int MAX_FRAME_LENGTH=UAVTalkHelper.MIN_PACKAGE_SIZE+UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH;
+
+	private final static class Entry {
+		byte type;
+		int objId;
+		UAVObject obj;
+		int length;
+		Entry next;
+	}
+
+	private final Entry[] heads=new Entry[NUM_LANES];
+	private final Entry[] tails=new Entry[NUM_LANES];
+	private final int[] counts=new int[NUM_LANES];
+	private Entry free;
+
+	/** queued TYPE_OBJ and TYPE_OBJ_ACK frames by object - IdentityHashMap does not allocate per entry */
+	private final IdentityHashMap<UAVObject,Entry> queuedObjects=new IdentityHashMap<UAVObject,Entry>();
+
+	private final ByteBuffer batch;
+
+	private int maxQueued=DEFAULT_MAX_QUEUED;
+	private int queuedBytes;
+
+	private int rate;
+	private int burst;
+	private long tokens;
+	/** budget earned since the last whole byte - in byte*ms, below 1000 */
+	private long tokenRemainder;
+	private long tokenTime;
+
+	private long frames;
+	private long bytes;
+	private long batches;
+	private long coalesced;
+	private long throttled;
+	private long rejected;
+
+	public UAVTalkOutboundQueue() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize - maximum number of bytes written by one write() call
+	 */
+	public UAVTalkOutboundQueue(int batchSize) {
+		batch=ByteBuffer.allocateDirect(Math.max(batchSize,MAX_FRAME_LENGTH));
+		batch.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * limit the bytes per second sent by flush()
+	 *
+	 * @param bytesPerSecond - the budget - 0 for no limit
+	 * @param burst - bytes which may be sent at once after an idle period -
+	 *                raised to the largest frame, smaller would stall the queue
+	 */
+	public synchronized void setRateLimit(int bytesPerSecond,int burst) {
+		this.rate=bytesPerSecond;
+		this.burst=(bytesPerSecond>0)?Math.max(burst,MAX_FRAME_LENGTH):burst;
+		tokens=this.burst;
+		tokenRemainder=0;
+		tokenTime=0;
+	}
+
+	/**
+	 * @param maxBytes - maximum number of bytes waiting in the queue
+	 */
+	public synchronized void setMaxQueued(int maxBytes) {
+		maxQueued=maxBytes;
+	}
+
+	/**
+	 * @param type - the frame type
+	 * @param obj - the object - null for frames without object
+	 * @return - the lane a frame is queued in
+	 */
+	public static int laneOf(byte type,UAVObject obj) {
+		if (type!=UAVTalkDefinitions.TYPE_OBJ && type!=UAVTalkDefinitions.TYPE_OBJ_ACK)
+			return LANE_CONTROL;
+		if (obj instanceof UAVDataObject) {
+			UAVDataObject o=(UAVDataObject)obj;
+			if (o.isPriority())
+				return LANE_CONTROL;
+			if (o.isSettings())
+				return LANE_BULK;
+		}
+		return LANE_NORMAL;
+	}
+
+	/**
+	 * queue a frame for an object - a TYPE_OBJ or TYPE_OBJ_ACK frame for an
+	 * object which is still queued is merged into the queued one
+	 *
+	 * @param type - the frame type
+	 * @param obj - the object - serialized when the frame is flushed
+	 * @return - length of the queued frame - 0 if it was merged
+	 * @throws IOException - if the queue is full
+	 */
+	public synchronized int add(byte type,UAVObject obj) throws IOException {
+		boolean data=(type==UAVTalkDefinitions.TYPE_OBJ || type==UAVTalkDefinitions.TYPE_OBJ_ACK);
+		if (data) {
+			Entry e=queuedObjects.get(obj);
+			if (e!=null) {
+				if (type==UAVTalkDefinitions.TYPE_OBJ_ACK)
+					e.type=type;
+				coalesced++;
+				return 0;
+			}
+		}
+		int length=UAVTalkHelper.MIN_PACKAGE_SIZE;
+		if (data)
+			length+=obj.getDataLength();
+		Entry e=add(laneOf(type,obj),type,obj.getObjID(),obj,length);
+		if (data)
+			queuedObjects.put(obj,e);
+		return length;
+	}
+
+	/**
+	 * queue a frame without payload - ACK, NACK or request
+	 *
+	 * @param type - the frame type
+	 * @param objId - the object ID
+	 * @return - length of the queued frame
+	 * @throws IOException - if the queue is full
+	 */
+	public synchronized int add(byte type,int objId) throws IOException {
+		add(LANE_CONTROL,type,objId,null,UAVTalkHelper.MIN_PACKAGE_SIZE);
+		return UAVTalkHelper.MIN_PACKAGE_SIZE;
+	}
+
+	/**
+	 * write queued frames without limit of the size
+	 */
+	public int flush(WritableByteChannel out) throws IOException {
+		return flush(out,System.currentTimeMillis(),Integer.MAX_VALUE);
+	}
+
+	/**
+	 * write queued frames - highest lane first - as far as the rate limit and
+	 * maxBytes allow. Frames which are not written stay queued.
+	 *
+	 * @param out - the channel - written with one write() per batch
+	 * @param now - the current time in ms
+	 * @param maxBytes - maximum number of bytes to write
+	 * @return - number of bytes written
+	 */
+	public synchronized int flush(WritableByteChannel out,long now,int maxBytes) throws IOException {
+		refill(now);
+		int res=0;
+		boolean more=true;
+		while (more && res<maxBytes) {
+			batch.clear();
+			batch.limit(Math.min(batch.capacity(),maxBytes-res));
+			more=fill();
+			if (batch.position()==0)
+				break;
+			batch.flip();
+			int n=batch.remaining();
+			while (batch.hasRemaining())
+				out.write(batch);
+			res+=n;
+			bytes+=n;
+			batches++;
+		}
+		return res;
+	}
+
+	/**
+	 * @return - true if no frame is queued
+	 */
+	public synchronized boolean isEmpty() {
+		return counts[LANE_CONTROL]+counts[LANE_NORMAL]+counts[LANE_BULK]==0;
+	}
+
+	/**
+	 * @return - true if flush() would write something now - frames are queued
+	 *           and the rate limit allows at least the next control frame
+	 */
+	public synchronized boolean isReady(long now) {
+		if (counts[LANE_CONTROL]>0)
+			return true;
+		if (isEmpty())
+			return false;
+		refill(now);
+		return rate<=0 || tokens>0;
+	}
+
+	public synchronized int getQueuedFrames(int lane) {
+		return counts[lane];
+	}
+
+	/**
+	 * @return - bytes of all queued frames
+	 */
+	public synchronized int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return - frames written
+	 */
+	public synchronized long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return - bytes written
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return - number of write() calls
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return - updates merged into an already queued frame of the same object
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * @return - flushes which left frames queued because of the rate limit
+	 */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * @return - frames not queued because the queue was full
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public synchronized void clear() {
+		for (int lane=0;lane<NUM_LANES;lane++) {
+			while (heads[lane]!=null)
+				release(remove(lane));
+		}
+		queuedObjects.clear();
+	}
+
+	private Entry add(int lane,byte type,int objId,UAVObject obj,int length) throws IOException {
+		if (queuedBytes+length>maxQueued) {
+			rejected++;
+			throw new IOException("outbound queue full");
+		}
+		Entry e=free;
+		if (e!=null)
+			free=e.next;
+		else
+			e=new Entry();
+		e.type=type;
+		e.objId=objId;
+		e.obj=obj;
+		e.length=length;
+		e.next=null;
+		if (tails[lane]!=null)
+			tails[lane].next=e;
+		else
+			heads[lane]=e;
+		tails[lane]=e;
+		counts[lane]++;
+		queuedBytes+=length;
+		return e;
+	}
+
+	/**
+	 * encode frames into the batch buffer
+	 *
+	 * @return - false if the queue is empty or the budget is used up
+	 */
+	private boolean fill() {
+		for (int lane=0;lane<NUM_LANES;lane++) {
+			Entry e;
+			while ((e=heads[lane])!=null) {
+				if (batch.remaining()<e.length)
+					return true;
+				if (lane!=LANE_CONTROL && rate>0 && tokens<e.length) {
+					throttled++;
+					return false;
+				}
+				remove(lane);
+				if (e.obj!=null)
+					UAVTalkHelper.writeUAVTalkPackage(batch,e.type,e.obj);
+				else
+					UAVTalkHelper.writeUAVTalkPackage(batch,e.type,e.objId);
+				if (e.type==UAVTalkDefinitions.TYPE_OBJ || e.type==UAVTalkDefinitions.TYPE_OBJ_ACK)
+					queuedObjects.remove(e.obj);
+				tokens-=e.length;
+				frames++;
+				release(e);
+			}
+		}
+		return false;
+	}
+
+	private Entry remove(int lane) {
+		Entry e=heads[lane];
+		heads[lane]=e.next;
+		if (heads[lane]==null)
+			tails[lane]=null;
+		counts[lane]--;
+		queuedBytes-=e.length;
+		return e;
+	}
+
+	private void release(Entry e) {
+		e.obj=null;
+		e.next=free;
+		free=e;
+	}
+
+	private void refill(long now) {
+		if (rate<=0)
+			return;
+		if (tokenTime==0)
+			tokenTime=now;
+		long elapsed=now-tokenTime;
+		if (elapsed<=0)
+			return;
+		// keep the fraction of a byte - slow rates earn less than a byte per tick
+		long earned=elapsed*rate+tokenRemainder;
+		tokens+=earned/1000;
+		tokenRemainder=earned%1000;
+		if (tokens>=burst) {
+			tokens=burst;
+			tokenRemainder=0;
+		}
+		tokenTime=now;
+	}
+}
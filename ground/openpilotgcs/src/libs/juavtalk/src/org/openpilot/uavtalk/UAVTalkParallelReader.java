@@ -0,0 +1,403 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkParallelReader.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      decodes a raw UAVTalk capture on all cores
+ *
+ * The capture is split into chunks which are decoded in parallel on a
+ * ForkJoinPool - every chunk by its own listener, created by a factory. A
+ * chunk starts with the first frame at or after its nominal start which has
+ * a valid header and CRC, and owns all frames starting before the nominal
+ * start of the next chunk, so a frame crossing the boundary is read from the
+ * following data.
+ *
+ * The chunks are then checked in file order: where the last frame of a chunk
+ * ends behind the first frame found by the next chunk ( that one was a false
+ * sync inside of data ), the next chunk is decoded again from the right
+ * position. The frames and error counts are therefore exactly those of
+ * decoding the whole capture with one UAVTalkFrameDecoder.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkParallelReader {
+
+	public final static int DEFAULT_CHUNK_SIZE=4*1024*1024;
+
+	/**
+	 * creates the listener of a chunk - called by the threads of the pool
+	 */
+	public interface ListenerFactory<T extends UAVTalkFrameListener> {
+
+		/**
+		 * @param chunk - the chunk the listener gets the frames of
+		 */
+		public T create(Chunk chunk);
+
+	}
+
+	/**
+	 * one part of the capture and what was found in it
+	 */
+	public final static class Chunk {
+		private final int index;
+		private final long start;
+		private final long limit;
+
+		/* the mapped data - from start up to one frame behind limit */
+		private ByteBuffer region;
+		private final UAVTalkFrame frame=new UAVTalkFrame();
+		private UAVTalkFrameListener listener;
+
+		private long first;
+		private long end;
+		private long frames;
+		private long bytes;
+		private long syncErrors;
+		private long crcErrors;
+		private int redone;
+
+		Chunk(int index,long start,long limit) {
+			this.index=index;
+			this.start=start;
+			this.limit=limit;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return - file offset of the first frame of the chunk
+		 */
+		public long getStart() {
+			return first;
+		}
+
+		/**
+		 * @return - file offset behind the last frame of the chunk
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		public long getFrames() {
+			return frames;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return - bytes skipped while searching for a frame start
+		 */
+		public long getSyncErrors() {
+			return syncErrors;
+		}
+
+		/**
+		 * @return - frame starts dropped because of a wrong checksum
+		 */
+		public long getCrcErrors() {
+			return crcErrors;
+		}
+
+		/**
+		 * @return - true if the chunk had to be decoded a second time because
+		 *           its first frame was inside of the last frame of the chunk before
+		 */
+		public boolean wasRedone() {
+			return redone>0;
+		}
+
+		private void reset() {
+			frames=0;
+			bytes=0;
+			syncErrors=0;
+			crcErrors=0;
+		}
+	}
+
+	/**
+	 * decodes a range of chunks - split in halves until one chunk is left
+	 */
+	@SuppressWarnings("serial")
+	private final class ChunkTask extends RecursiveAction {
+		private final Chunk[] chunks;
+		private final int from;
+		private final int to;
+		private final ListenerFactory<?> factory;
+
+		ChunkTask(Chunk[] chunks,int from,int to,ListenerFactory<?> factory) {
+			this.chunks=chunks;
+			this.from=from;
+			this.to=to;
+			this.factory=factory;
+		}
+
+		protected void compute() {
+			if (to-from>1) {
+				int mid=(from+to)>>>1;
+				invokeAll(new ChunkTask(chunks,from,mid,factory),new ChunkTask(chunks,mid,to,factory));
+				return;
+			}
+			Chunk c=chunks[from];
+			try {
+				c.region=map(c.start,Math.min(c.limit+UAVTalkHelper.MIN_PACKAGE_SIZE+maxPayloadLength,size));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			// errors up to the first frame - corrected when the chunks are merged
+			int pos=resync(c,0,(int)(c.limit-c.start));
+			c.first=c.start+pos;
+			c.listener=factory.create(c);
+			c.end=c.start+scan(c,pos,(int)(c.limit-c.start));
+		}
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer data;
+	private final long size;
+	private final int chunkSize;
+	private final int maxPayloadLength;
+
+	private Chunk[] chunks=new Chunk[0];
+
+	public UAVTalkParallelReader(File file) throws IOException {
+		this(file,DEFAULT_CHUNK_SIZE,UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH);
+	}
+
+	/**
+	 * @param file - the capture - raw frames as received from a link
+	 * @param chunkSize - bytes per chunk
+	 * @param maxPayloadLength - frames announcing a bigger payload are treated as sync errors
+	 */
+	public UAVTalkParallelReader(File file,int chunkSize,int maxPayloadLength) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(file,"r");
+		channel=raf.getChannel();
+		data=null;
+		size=channel.size();
+		this.chunkSize=chunkSize;
+		this.maxPayloadLength=maxPayloadLength;
+	}
+
+	/**
+	 * @param data - the capture between position and limit
+	 * @param chunkSize - bytes per chunk
+	 * @param maxPayloadLength - frames announcing a bigger payload are treated as sync errors
+	 */
+	public UAVTalkParallelReader(ByteBuffer data,int chunkSize,int maxPayloadLength) {
+		channel=null;
+		this.data=data.slice();
+		size=this.data.remaining();
+		this.chunkSize=chunkSize;
+		this.maxPayloadLength=maxPayloadLength;
+	}
+
+	/**
+	 * decode the capture on the common pool
+	 */
+	public <T extends UAVTalkFrameListener> List<T> decode(ListenerFactory<T> factory) throws IOException {
+		return decode(factory,ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * decode the capture - every chunk is decoded by its own listener, which
+	 * gets the frames of the chunk in order. If a chunk has to be decoded a
+	 * second time a new listener is created and the first one is dropped.
+	 *
+	 * @param factory - creates the listeners - must be thread safe
+	 * @param pool - the pool to decode on
+	 * @return - the listeners of all chunks in file order
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends UAVTalkFrameListener> List<T> decode(ListenerFactory<T> factory,ForkJoinPool pool) throws IOException {
+		int n=(int)Math.max(1,(size+chunkSize-1)/chunkSize);
+		Chunk[] res=new Chunk[n];
+		for (int i=0;i<n;i++)
+			res[i]=new Chunk(i,(long)i*chunkSize,Math.min((long)(i+1)*chunkSize,size));
+
+		try {
+			pool.invoke(new ChunkTask(res,0,n,factory));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		ArrayList<T> listeners=new ArrayList<T>(n);
+		long prevEnd=0;
+		for (int i=0;i<n;i++) {
+			Chunk c=res[i];
+			if (c.first<prevEnd) {
+				// the first frame found was inside of the last frame of the chunk before
+				c.reset();
+				c.redone++;
+				int pos=(int)(prevEnd-c.start);
+				c.first=prevEnd;
+				c.listener=factory.create(c);
+				c.end=c.start+scan(c,pos,(int)(c.limit-c.start));
+			} else if (prevEnd>c.start) {
+				// the resync counted errors inside of the last frame of the chunk before
+				Chunk overlap=new Chunk(i,c.start,c.limit);
+				overlap.region=c.region;
+				resync(overlap,0,(int)(prevEnd-c.start));
+				c.syncErrors-=overlap.syncErrors;
+				c.crcErrors-=overlap.crcErrors;
+			}
+			listeners.add((T)c.listener);
+			c.listener=null;
+			c.region=null;
+			prevEnd=c.end;
+		}
+		chunks=res;
+		return listeners;
+	}
+
+	/**
+	 * @return - the chunks of the last decode() in file order
+	 */
+	public Chunk[] getChunks() {
+		return chunks.clone();
+	}
+
+	public long getFrames() {
+		long res=0;
+		for (int i=0;i<chunks.length;i++)
+			res+=chunks[i].frames;
+		return res;
+	}
+
+	public long getSyncErrors() {
+		long res=0;
+		for (int i=0;i<chunks.length;i++)
+			res+=chunks[i].syncErrors;
+		return res;
+	}
+
+	public long getCrcErrors() {
+		long res=0;
+		for (int i=0;i<chunks.length;i++)
+			res+=chunks[i].crcErrors;
+		return res;
+	}
+
+	public void close() throws IOException {
+		if (channel!=null)
+			channel.close();
+	}
+
+	private ByteBuffer map(long from,long to) throws IOException {
+		ByteBuffer res;
+		if (channel!=null) {
+			res=channel.map(FileChannel.MapMode.READ_ONLY,from,to-from);
+		} else {
+			res=data.duplicate();
+			res.limit((int)to);
+			res.position((int)from);
+			res=res.slice();
+		}
+		res.order(ByteOrder.LITTLE_ENDIAN);
+		return res;
+	}
+
+	/**
+	 * skip to the first valid frame
+	 *
+	 * @return - its position - limit if there is none before limit
+	 */
+	private int resync(Chunk c,int pos,int limit) {
+		while (pos<limit) {
+			int length=check(c,pos);
+			if (length>=0)
+				break;
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * decode all frames starting before limit
+	 *
+	 * @return - the position behind the last frame
+	 */
+	private int scan(Chunk c,int pos,int limit) {
+		ByteBuffer buf=c.region;
+		while (pos<limit) {
+			int length=check(c,pos);
+			if (length<0) {
+				pos++;
+				continue;
+			}
+			if (length==0)
+				break;
+			c.frames++;
+			c.bytes+=length+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+			c.frame.set(buf,pos,length);
+			c.listener.onFrame(c.frame);
+			pos+=length+UAVTalkHelper.PACKAGE_LENGTH_CRC;
+		}
+		return pos;
+	}
+
+	/**
+	 * check for a frame like UAVTalkFrameDecoder and count the errors
+	 *
+	 * @return - the length field of the frame - 0 if the capture ends before
+	 *           the frame does - -1 if there is no frame at pos
+	 */
+	private int check(Chunk c,int pos) {
+		ByteBuffer buf=c.region;
+		int end=buf.limit();
+		if (buf.get(pos)!=UAVTalkDefinitions.SYNC_VAL) {
+			c.syncErrors++;
+			return -1;
+		}
+		if (end-pos<UAVTalkHelper.HEADER_LENGTH)
+			return 0;
+		byte type=buf.get(pos+1);
+		int length=(buf.get(pos+2)&0xFF) | ((buf.get(pos+3)&0xFF)<<8);
+		if (!UAVTalkDefinitions.isValidType(type)
+				|| length<UAVTalkHelper.HEADER_LENGTH
+				|| length-UAVTalkHelper.HEADER_LENGTH>maxPayloadLength) {
+			c.syncErrors++;
+			return -1;
+		}
+		if (end-pos<length+UAVTalkHelper.PACKAGE_LENGTH_CRC)
+			return 0;
+		if (CRC8.bufferUpdate((byte)0,buf,pos,length)!=buf.get(pos+length)) {
+			c.crcErrors++;
+			return -1;
+		}
+		return length;
+	}
+}
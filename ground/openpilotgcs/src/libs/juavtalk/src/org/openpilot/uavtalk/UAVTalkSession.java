@@ -0,0 +1,552 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkSession.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      request/ack state machine for one UAVTalk link
+ *
+ * Acked sends ( TYPE_OBJ_ACK ) and object requests ( TYPE_OBJ_REQ ) are
+ * queued and sent as long as fewer than maxInFlight of them wait for an answer,
+ * so a batch of settings is pipelined instead of waiting for every single ack.
+ * Retries are driven by one TimerWheel with exponential backoff - the owner of
+ * the session calls tick() regularly, e.g. from the thread reading the link.
+ *
+ * Incoming frames are passed in through onFrame(), so the session can be used
+ * directly as the listener of a UAVTalkFrameDecoder.
+ * Write errors while answering frames or retrying are counted as TxFailures.
+ *
+ * The transaction listener is called after the session lock is released, in
+ * the order the transactions completed, so a listener may send objects again -
+ * e.g. through a UAVObjectScheduler which calls the session under its own lock.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkSession implements UAVTalkFrameListener {
+
+	public final static int DEFAULT_MAX_IN_FLIGHT=8;
+	public final static int DEFAULT_TIMEOUT=250;
+	public final static int DEFAULT_MAX_RETRIES=3;
+
+	/** the timeout is doubled per retry up to this many times */
+	private final static int MAX_BACKOFF_SHIFT=4;
+
+	private final static int WHEEL_TICK=10;
+	private final static int WHEEL_SLOTS=256;
+
+	private final class Transaction extends TimerWheel.Timeout {
+		UAVObject obj;
+		byte type;
+		int retries;
+		long sendTime;
+		boolean success;
+		Transaction nextPending;
+
+		protected void expired(long now) {
+			retry(this,now);
+		}
+	}
+
+	private final UAVObjectManager objMngr;
+	private final WritableByteChannel out;
+	private final UAVTalkFrameEncoder encoder=new UAVTalkFrameEncoder();
+	private final TimerWheel wheel;
+
+	private final int timeout;
+	private final int maxRetries;
+
+	private final Transaction[] inFlight;
+	private int numInFlight;
+
+	private Transaction pendingHead;
+	private Transaction pendingTail;
+	private Transaction free;
+	/** completed transactions waiting for the listener - linked by nextPending */
+	private Transaction completedHead;
+	private Transaction completedTail;
+	/** a thread is calling the listener - others leave their completions to it */
+	private boolean notifying;
+
+	private UAVTalkTransactionListener listener;
+	private UAVObjectEventBus eventBus;
+	private UAVObjectHistory history;
+	private UAVTalkMetrics metrics;
+	private UAVTalkOutboundQueue queue;
+
+	private long txBytes;
+	private long txObjects;
+	private long txRetries;
+	private long txFailures;
+	private long rxFailures;
+
+	public UAVTalkSession(UAVObjectManager objMngr,WritableByteChannel out) {
+		this(objMngr,out,DEFAULT_MAX_IN_FLIGHT,DEFAULT_TIMEOUT,DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * @param objMngr - the objects of this link
+	 * @param out - where frames are written to
+	 * @param maxInFlight - number of acked sends and requests waiting for an answer at the same time
+	 * @param timeout - ms to wait for the first answer
+	 * @param maxRetries - retries before a transaction fails
+	 */
+	public UAVTalkSession(UAVObjectManager objMngr,WritableByteChannel out,int maxInFlight,int timeout,int maxRetries) {
+		this.objMngr=objMngr;
+		this.out=out;
+		this.timeout=timeout;
+		this.maxRetries=maxRetries;
+		inFlight=new Transaction[maxInFlight];
+		wheel=new TimerWheel(WHEEL_TICK,WHEEL_SLOTS,System.currentTimeMillis());
+	}
+
+	public synchronized void setTransactionListener(UAVTalkTransactionListener listener) {
+		this.listener=listener;
+	}
+
+	/**
+	 * publish every received object update on a bus - the thread calling
+	 * onFrame() becomes the single producer of the bus
+	 *
+	 * @param eventBus - the bus or null
+	 */
+	public synchronized void setEventBus(UAVObjectEventBus eventBus) {
+		this.eventBus=eventBus;
+	}
+
+	/**
+	 * record every received update of the objects tracked by a history
+	 *
+	 * @param history - the history or null
+	 */
+	public synchronized void setHistory(UAVObjectHistory history) {
+		this.history=history;
+	}
+
+	/**
+	 * count all frames and transactions of the session
+	 *
+	 * @param metrics - the metrics or null
+	 */
+	public synchronized void setMetrics(UAVTalkMetrics metrics) {
+		this.metrics=metrics;
+	}
+
+	public synchronized UAVTalkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * queue frames instead of writing them to the channel at once - the owner
+	 * of the queue flushes it into the channel
+	 *
+	 * @param queue - the queue or null to write every frame directly
+	 */
+	public synchronized void setOutboundQueue(UAVTalkOutboundQueue queue) {
+		this.queue=queue;
+	}
+
+	public synchronized UAVTalkOutboundQueue getOutboundQueue() {
+		return queue;
+	}
+
+	/**
+	 * send an object without waiting for an ack
+	 *
+	 * @param obj - the object to send
+	 */
+	public synchronized void sendObject(UAVObject obj) throws IOException {
+		send(UAVTalkDefinitions.TYPE_OBJ,obj);
+	}
+
+	/**
+	 * queue an object to be sent with TYPE_OBJ_ACK - the object is serialized
+	 * when it is actually sent, so queueing it again before that only sends it once
+	 *
+	 * @param obj - the object to send
+	 */
+	public synchronized void sendObjectAcked(UAVObject obj) throws IOException {
+		obj.getMetaData().ack_pending=true;
+		enqueue(UAVTalkDefinitions.TYPE_OBJ_ACK,obj);
+	}
+
+	/**
+	 * queue a request for the current value of an object
+	 *
+	 * @param obj - the object to request
+	 */
+	public synchronized void requestObject(UAVObject obj) throws IOException {
+		obj.getMetaData().req_pending=true;
+		enqueue(UAVTalkDefinitions.TYPE_OBJ_REQ,obj);
+	}
+
+	/**
+	 * handle a received frame
+	 */
+	public void onFrame(UAVTalkFrame frame) {
+		receive(frame);
+		notifyCompleted();
+	}
+
+	private synchronized void receive(UAVTalkFrame frame) {
+		int objId=frame.getObjID();
+		Transaction t;
+
+		if (metrics!=null)
+			metrics.frameReceived(objId,frame.getFrameLength(),System.nanoTime());
+
+		try {
+			switch (frame.getType()) {
+			case UAVTalkDefinitions.TYPE_ACK:
+				t=findInFlight(objId,UAVTalkDefinitions.TYPE_OBJ_ACK);
+				if (t!=null) {
+					t.obj.getMetaData().gcs_flight_was_acked=true;
+					complete(t,true);
+				}
+				break;
+
+			case UAVTalkDefinitions.TYPE_NACK:
+				t=findInFlight(objId,UAVTalkDefinitions.TYPE_OBJ_REQ);
+				if (t==null)
+					t=findInFlight(objId,UAVTalkDefinitions.TYPE_OBJ_ACK);
+				if (t!=null) {
+					txFailures++;
+					complete(t,false);
+				}
+				break;
+
+			case UAVTalkDefinitions.TYPE_OBJ:
+			case UAVTalkDefinitions.TYPE_OBJ_ACK:
+				UAVObject obj=objMngr.getObject(objId);
+				if (obj==null || !frame.deserializeInto(obj)) {
+					rxFailures++;
+					if (frame.getType()==UAVTalkDefinitions.TYPE_OBJ_ACK)
+						send(UAVTalkDefinitions.TYPE_NACK,objId);
+					break;
+				}
+				if (eventBus!=null) {
+					long changed=UAVObjectEventBus.ALL_FIELDS;
+					if (obj instanceof UAVDataObject)
+						changed=((UAVDataObject)obj).getUpdatedFields();
+					eventBus.publish(obj,changed,System.currentTimeMillis());
+				}
+				if (history!=null)
+					history.record(frame,System.currentTimeMillis());
+				if (frame.getType()==UAVTalkDefinitions.TYPE_OBJ_ACK)
+					send(UAVTalkDefinitions.TYPE_ACK,objId);
+				t=findInFlight(objId,UAVTalkDefinitions.TYPE_OBJ_REQ);
+				if (t!=null)
+					complete(t,true);
+				break;
+
+			case UAVTalkDefinitions.TYPE_OBJ_REQ:
+				UAVObject req=objMngr.getObject(objId);
+				if (req!=null)
+					send(UAVTalkDefinitions.TYPE_OBJ,req);
+				else
+					send(UAVTalkDefinitions.TYPE_NACK,objId);
+				break;
+			}
+			drain(System.currentTimeMillis());
+		} catch (IOException e) {
+			txFailures++;
+		}
+	}
+
+	/**
+	 * retry or fail transactions which timed out
+	 */
+	public void tick() {
+		tick(System.currentTimeMillis());
+	}
+
+	/**
+	 * retry or fail transactions which timed out
+	 *
+	 * @param now - the current time in ms
+	 */
+	public void tick(long now) {
+		advance(now);
+		notifyCompleted();
+	}
+
+	private synchronized void advance(long now) {
+		wheel.advance(now);
+		try {
+			drain(now);
+		} catch (IOException e) {
+			txFailures++;
+		}
+	}
+
+	/**
+	 * @return - number of acked sends and requests waiting for an answer
+	 */
+	public synchronized int getNumInFlight() {
+		return numInFlight;
+	}
+
+	/**
+	 * @return - number of acked sends and requests waiting to be sent
+	 */
+	public synchronized int getNumPending() {
+		int res=0;
+		for (Transaction t=pendingHead;t!=null;t=t.nextPending)
+			res++;
+		return res;
+	}
+
+	public synchronized long getTxBytes() {
+		return txBytes;
+	}
+
+	public synchronized long getTxObjects() {
+		return txObjects;
+	}
+
+	/**
+	 * @return - frames sent again because no answer arrived in time ( TxRetries )
+	 */
+	public synchronized long getTxRetries() {
+		return txRetries;
+	}
+
+	/**
+	 * @return - transactions which failed and write errors ( TxFailures )
+	 */
+	public synchronized long getTxFailures() {
+		return txFailures;
+	}
+
+	/**
+	 * @return - received frames for unknown objects or with a wrong length ( RxFailures )
+	 */
+	public synchronized long getRxFailures() {
+		return rxFailures;
+	}
+
+	private boolean isPending(UAVObject obj,byte type) {
+		for (Transaction p=pendingHead;p!=null;p=p.nextPending)
+			if (p.obj==obj && p.type==type)
+				return true;
+		return false;
+	}
+
+	private void enqueue(byte type,UAVObject obj) throws IOException {
+		if (isPending(obj,type))
+			return;
+
+		Transaction t=free;
+		if (t!=null)
+			free=t.nextPending;
+		else
+			t=new Transaction();
+		t.obj=obj;
+		t.type=type;
+		t.retries=0;
+		t.nextPending=null;
+
+		if (pendingTail!=null)
+			pendingTail.nextPending=t;
+		else
+			pendingHead=t;
+		pendingTail=t;
+
+		drain(System.currentTimeMillis());
+	}
+
+	/**
+	 * send pending transactions while the window has room - an object which
+	 * is already in flight has to wait as answers only carry the object ID
+	 */
+	private void drain(long now) throws IOException {
+		Transaction prev=null;
+		Transaction t=pendingHead;
+		while (t!=null && numInFlight<inFlight.length) {
+			Transaction next=t.nextPending;
+			if (findInFlight(t.obj.getObjID(),(byte)0)==null) {
+				if (prev!=null)
+					prev.nextPending=next;
+				else
+					pendingHead=next;
+				if (pendingTail==t)
+					pendingTail=prev;
+				t.nextPending=null;
+
+				inFlight[numInFlight++]=t;
+				wheel.schedule(t,now+timeout);
+				t.obj.getMetaData().last_send_time=now;
+				t.sendTime=System.nanoTime();
+				send(t.type,t.obj);
+			} else {
+				prev=t;
+			}
+			t=next;
+		}
+	}
+
+	private void retry(Transaction t,long now) {
+		if (t.retries>=maxRetries) {
+			txFailures++;
+			complete(t,false);
+			return;
+		}
+		t.retries++;
+		txRetries++;
+		wheel.schedule(t,now+((long)timeout<<Math.min(t.retries,MAX_BACKOFF_SHIFT)));
+		try {
+			t.obj.getMetaData().last_send_time=now;
+			t.sendTime=System.nanoTime();
+			send(t.type,t.obj);
+		} catch (IOException e) {
+			txFailures++;
+		}
+	}
+
+	private void complete(Transaction t,boolean success) {
+		wheel.cancel(t);
+		for (int i=0;i<numInFlight;i++) {
+			if (inFlight[i]==t) {
+				inFlight[i]=inFlight[--numInFlight];
+				inFlight[numInFlight]=null;
+				break;
+			}
+		}
+
+		UAVObject obj=t.obj;
+		byte type=t.type;
+		if (!isPending(obj,type)) {
+			if (type==UAVTalkDefinitions.TYPE_OBJ_ACK)
+				obj.getMetaData().ack_pending=false;
+			else
+				obj.getMetaData().req_pending=false;
+		}
+
+		if (metrics!=null)
+			metrics.transactionCompleted(obj.getObjID(),System.nanoTime()-t.sendTime,success);
+
+		if (listener==null) {
+			release(t);
+			return;
+		}
+		t.success=success;
+		t.nextPending=null;
+		if (completedTail!=null)
+			completedTail.nextPending=t;
+		else
+			completedHead=t;
+		completedTail=t;
+	}
+
+	private void release(Transaction t) {
+		t.obj=null;
+		t.nextPending=free;
+		free=t;
+	}
+
+	/**
+	 * call the listener for completed transactions without holding the session
+	 * lock - only one thread calls it at a time, a thread which finds another
+	 * one calling it hands over its completions instead of waiting
+	 */
+	private void notifyCompleted() {
+		synchronized (this) {
+			if (notifying || completedHead==null)
+				return;
+			notifying=true;
+		}
+		Transaction head=null;
+		try {
+			while ((head=nextCompleted(head))!=null) {
+				UAVTalkTransactionListener l=getListener();
+				for (Transaction t=head;t!=null;t=t.nextPending) {
+					if (l!=null)
+						l.transactionCompleted(t.obj,t.type,t.success);
+				}
+			}
+		} finally {
+			if (head!=null) {
+				synchronized (this) {
+					releaseAll(head);
+					notifying=false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param done - the transactions the listener was called for or null
+	 * @return - the transactions completed since - null if there are none, then
+	 *           the calling thread stops notifying
+	 */
+	private synchronized Transaction nextCompleted(Transaction done) {
+		releaseAll(done);
+		Transaction head=completedHead;
+		completedHead=null;
+		completedTail=null;
+		if (head==null)
+			notifying=false;
+		return head;
+	}
+
+	private synchronized UAVTalkTransactionListener getListener() {
+		return listener;
+	}
+
+	private void releaseAll(Transaction t) {
+		while (t!=null) {
+			Transaction next=t.nextPending;
+			release(t);
+			t=next;
+		}
+	}
+
+	/**
+	 * @param type - the type of the transaction or 0 for any type
+	 */
+	private Transaction findInFlight(int objId,byte type) {
+		for (int i=0;i<numInFlight;i++) {
+			Transaction t=inFlight[i];
+			if (t.obj.getObjID()==objId && (type==0 || t.type==type))
+				return t;
+		}
+		return null;
+	}
+
+	private void send(byte type,UAVObject obj) throws IOException {
+		int n=queue!=null?queue.add(type,obj):encoder.send(out,type,obj);
+		if (n==0)
+			return;
+		txBytes+=n;
+		txObjects++;
+		if (metrics!=null)
+			metrics.frameSent(obj.getObjID(),n);
+	}
+
+	private void send(byte type,int objId) throws IOException {
+		int n=queue!=null?queue.add(type,objId):encoder.send(out,type,objId);
+		txBytes+=n;
+		txObjects++;
+		if (metrics!=null)
+			metrics.frameSent(objId,n);
+	}
+}
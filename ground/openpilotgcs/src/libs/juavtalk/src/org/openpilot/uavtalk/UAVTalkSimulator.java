@@ -0,0 +1,725 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkSimulator.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      simulated flight controllers for soak and throughput tests
+ *
+ * Every vehicle has its own objects ( created from the XML definitions ),
+ * decoder and session, and talks UAVTalk over a TCP connection, a UDP socket
+ * or a pipe. Like the flight side it
+ *
+ *  - sends every object with a periodic or throttled telemetryflight update
+ *    mode every flightTelemetryUpdatePeriod / rate multiplier ms - acked if
+ *    flightTelemetryAcked is set. The first update of each object is delayed
+ *    by a random part of its period, so vehicles do not send in lockstep
+ *  - answers TYPE_OBJ_REQ with the object and TYPE_OBJ_ACK with TYPE_ACK
+ *
+ * Faults can be injected into the frames a vehicle sends: corrupted CRCs,
+ * dropped bytes and a fixed latency. The vehicles are spread over a few
+ * selector threads like the links of a UAVTalkTransport, so hundreds of them
+ * can be simulated by one process.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkSimulator {
+
+	public final static int TICK=1;
+	public final static int DEFAULT_OUTPUT_SIZE=64*1024;
+
+	/** biggest UDP payload which is not fragmented on an ethernet link */
+	public final static int MAX_DATAGRAM=1472;
+
+	private final static int WHEEL_SLOTS=4096;
+
+	/**
+	 * one simulated flight controller
+	 */
+	public final class Vehicle implements UAVTalkFrameListener {
+
+		/**
+		 * the channel the session writes to - injects the faults and holds
+		 * frames until their latency passed and the channel accepts them
+		 */
+		private final class Output implements WritableByteChannel {
+			private final ByteBuffer buf=ByteBuffer.allocateDirect(outputSize);
+
+			/* end ( counted from the first byte ever written ) and release time of every frame in buf */
+			private final long[] ends;
+			private final long[] times;
+			private final int mask;
+			private int head;
+			private int count;
+			private long totalOut;
+
+			Output() {
+				// a dropped byte may shorten a frame below MIN_PACKAGE_SIZE
+				int n=1;
+				while (n<outputSize/(UAVTalkHelper.MIN_PACKAGE_SIZE-1)+1)
+					n<<=1;
+				ends=new long[n];
+				times=new long[n];
+				mask=n-1;
+			}
+
+			public int write(ByteBuffer src) throws IOException {
+				int len=src.remaining();
+				if (closed)
+					throw new IOException("vehicle closed");
+				if (buf.remaining()<len) {
+					txDropped++;
+					throw new IOException("output buffer full");
+				}
+				int start=buf.position();
+				buf.put(src);
+				SplittableRandom random=worker.random;
+				if (crcErrorRate>0 && random.nextDouble()<crcErrorRate) {
+					int crc=buf.position()-1;
+					buf.put(crc,(byte)(buf.get(crc)^(1+random.nextInt(255))));
+					crcErrors++;
+				}
+				if (dropRate>0 && random.nextDouble()<dropRate) {
+					int end=buf.position()-1;
+					for (int i=start+random.nextInt(len);i<end;i++)
+						buf.put(i,buf.get(i+1));
+					buf.position(end);
+					droppedBytes++;
+				}
+				int i=(head+count)&mask;
+				ends[i]=totalOut+buf.position();
+				times[i]=lastTick+latency;
+				count++;
+				return len;
+			}
+
+			public boolean isOpen() {
+				return !closed;
+			}
+
+			public void close() {
+			}
+
+			/**
+			 * write the frames whose latency passed - datagrams hold whole frames only
+			 */
+			void flush(long now) throws IOException {
+				int maxChunk=channel instanceof DatagramChannel?MAX_DATAGRAM:Integer.MAX_VALUE;
+				while (count>0 && times[head]<=now) {
+					long end=totalOut;
+					for (int n=0,i=head;n<count && times[i]<=now;n++,i=(i+1)&mask) {
+						if (ends[i]-totalOut>maxChunk && end>totalOut)
+							break;
+						end=ends[i];
+					}
+					buf.flip();
+					int limit=buf.limit();
+					buf.limit((int)(end-totalOut));
+					int written;
+					try {
+						written=out.write(buf);
+					} finally {
+						buf.limit(limit);
+						buf.compact();
+					}
+					totalOut+=written;
+					while (count>0 && ends[head]<=totalOut) {
+						head=(head+1)&mask;
+						count--;
+					}
+					if (totalOut<end)
+						return;
+				}
+			}
+		}
+
+		private final Worker worker;
+		private final ReadableByteChannel in;
+		private final WritableByteChannel out;
+		private final SelectableChannel channel;
+		private final ByteChannel groundChannel;
+		private final UAVObjectManager objMngr=new UAVObjectManager();
+		private final UAVTalkFrameDecoder decoder=new UAVTalkFrameDecoder(this,UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH,true);
+		private final Output output;
+		private final UAVTalkSession session;
+		private final ArrayList<Emission> emissions=new ArrayList<Emission>();
+		/* UDP only - a datagram is read as a whole, the decoder buffer holds one frame */
+		private final ByteBuffer datagram;
+
+		private SelectionKey key;
+		private boolean connected;
+		private volatile boolean closed;
+		private long lastTick;
+
+		private volatile long crcErrors;
+		private volatile long droppedBytes;
+		private volatile long txDropped;
+
+		Vehicle(Worker worker,ReadableByteChannel in,WritableByteChannel out,boolean connected,ByteChannel groundChannel) {
+			this.worker=worker;
+			this.in=in;
+			this.out=out;
+			this.channel=(SelectableChannel)in;
+			this.connected=connected;
+			datagram=(in instanceof DatagramChannel)?ByteBuffer.allocateDirect(UAVTalkLink.MAX_DATAGRAM_SIZE):null;
+			this.groundChannel=groundChannel;
+			UAVObjectSchemaLoader.register(objMngr,defs);
+			output=new Output();
+			session=new UAVTalkSession(objMngr,output);
+		}
+
+		public UAVObjectManager getObjectManager() {
+			return objMngr;
+		}
+
+		public UAVTalkSession getSession() {
+			return session;
+		}
+
+		/**
+		 * @return - the ground end of a pipe vehicle - null for TCP and UDP
+		 */
+		public ByteChannel getGroundChannel() {
+			return groundChannel;
+		}
+
+		/**
+		 * @return - false for a UDP vehicle which did not receive anything yet
+		 */
+		public boolean isConnected() {
+			return connected && !closed;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public void close() {
+			worker.close(this);
+		}
+
+		public long getTxObjects() {
+			return session.getTxObjects();
+		}
+
+		public long getTxBytes() {
+			return session.getTxBytes();
+		}
+
+		public long getRxObjects() {
+			return decoder.getRxObjects();
+		}
+
+		/**
+		 * @return - frames sent with a corrupted CRC
+		 */
+		public long getCrcErrors() {
+			return crcErrors;
+		}
+
+		/**
+		 * @return - frames sent with one byte missing
+		 */
+		public long getDroppedBytes() {
+			return droppedBytes;
+		}
+
+		/**
+		 * @return - frames dropped because the peer did not read fast enough
+		 */
+		public long getTxDropped() {
+			return txDropped;
+		}
+
+		public void onFrame(UAVTalkFrame frame) {
+			session.onFrame(frame);
+		}
+
+		void start(long now) {
+			UAVObject[] objs=objMngr.getUAVObjectArray();
+			for (int i=0;i<objs.length;i++) {
+				UAVObjectMetaData meta=objs[i].getMetaData();
+				byte mode=meta.flightTelemetryUpdateMode;
+				if ((mode!=UAVObjectMetaData.UPDATEMODE_PERIODIC && mode!=UAVObjectMetaData.UPDATEMODE_THROTTLED)
+						|| meta.flightTelemetryUpdatePeriod<=0)
+					continue;
+				Emission e=new Emission(this,objs[i],Math.max(TICK,(int)(meta.flightTelemetryUpdatePeriod/rateMultiplier)));
+				emissions.add(e);
+				worker.wheel.schedule(e,now+worker.random.nextInt(e.period));
+			}
+		}
+
+		void read() throws IOException {
+			if (!connected) {
+				// unconnected UDP - answer whoever sends the first datagram
+				datagram.clear();
+				SocketAddress from=((DatagramChannel)channel).receive(datagram);
+				if (from==null)
+					return;
+				((DatagramChannel)channel).connect(from);
+				connected=true;
+				datagram.flip();
+				decoder.decode(datagram);
+				return;
+			}
+			if (datagram!=null) {
+				datagram.clear();
+				if (in.read(datagram)<=0)
+					return;
+				datagram.flip();
+				decoder.decode(datagram);
+			} else if (decoder.read(in)<0)
+				throw new EOFException();
+		}
+
+		void tick(long now) throws IOException {
+			lastTick=now;
+			if (!connected)
+				return;
+			session.tick(now);
+			output.flush(now);
+		}
+
+		void send(Emission e,long now) {
+			if (!connected)
+				return;
+			try {
+				UAVObjectMetaData meta=e.obj.getMetaData();
+				meta.last_fligt_update=now;
+				if (meta.flightTelemetryAcked)
+					session.sendObjectAcked(e.obj);
+				else
+					session.sendObject(e.obj);
+				worker.emitted++;
+			} catch (IOException ex) {
+				// counted by the session - the next period tries again
+			}
+		}
+
+		void closeChannels() {
+			closed=true;
+			for (int i=0;i<emissions.size();i++)
+				worker.wheel.cancel(emissions.get(i));
+			if (key!=null)
+				key.cancel();
+			try {
+				in.close();
+				if (out!=in)
+					out.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+	}
+
+	private final static class Emission extends TimerWheel.Timeout {
+		final Vehicle vehicle;
+		final UAVObject obj;
+		final int period;
+
+		Emission(Vehicle vehicle,UAVObject obj,int period) {
+			this.vehicle=vehicle;
+			this.obj=obj;
+			this.period=period;
+		}
+
+		protected void expired(long now) {
+			// missed periods are skipped, not caught up
+			long next=getDeadline()+period;
+			if (next<=now)
+				next=now+period-(now-getDeadline())%period;
+			vehicle.worker.wheel.schedule(this,next);
+			vehicle.send(this,now);
+		}
+	}
+
+	/**
+	 * the two ends of a pipe vehicle as seen from the ground
+	 */
+	private final static class PipeChannel implements ByteChannel {
+		private final ReadableByteChannel source;
+		private final WritableByteChannel sink;
+
+		PipeChannel(ReadableByteChannel source,WritableByteChannel sink) {
+			this.source=source;
+			this.sink=sink;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			return source.read(dst);
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			return sink.write(src);
+		}
+
+		public boolean isOpen() {
+			return source.isOpen() && sink.isOpen();
+		}
+
+		public void close() throws IOException {
+			source.close();
+			sink.close();
+		}
+	}
+
+	final class Worker implements Runnable {
+		private final Selector selector;
+		private final TimerWheel wheel;
+		private final SplittableRandom random;
+		private final ConcurrentLinkedQueue<Vehicle> registrations=new ConcurrentLinkedQueue<Vehicle>();
+		private final ConcurrentLinkedQueue<Vehicle> closes=new ConcurrentLinkedQueue<Vehicle>();
+		private final ConcurrentLinkedQueue<ServerSocketChannel> servers=new ConcurrentLinkedQueue<ServerSocketChannel>();
+		private final ArrayList<Vehicle> workerVehicles=new ArrayList<Vehicle>();
+		private volatile long emitted;
+
+		Worker(long seed) throws IOException {
+			selector=Selector.open();
+			wheel=new TimerWheel(TICK,WHEEL_SLOTS,System.currentTimeMillis());
+			random=new SplittableRandom(seed);
+		}
+
+		void register(Vehicle v) {
+			registrations.add(v);
+			selector.wakeup();
+		}
+
+		void close(Vehicle v) {
+			closes.add(v);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select(TICK);
+					long now=System.currentTimeMillis();
+					applyQueues(now);
+
+					Iterator<SelectionKey> it=selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key=it.next();
+						it.remove();
+						handle(key);
+					}
+
+					wheel.advance(now);
+					for (int i=workerVehicles.size()-1;i>=0;i--) {
+						Vehicle v=workerVehicles.get(i);
+						try {
+							v.tick(now);
+						} catch (IOException e) {
+							closeVehicle(v);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// the selector itself failed - nothing can be simulated any more
+			} finally {
+				for (int i=workerVehicles.size()-1;i>=0;i--)
+					closeVehicle(workerVehicles.get(i));
+				Vehicle v;
+				while ((v=registrations.poll())!=null)
+					closeVehicle(v);
+				ServerSocketChannel server;
+				while ((server=servers.poll())!=null) {
+					try {
+						server.close();
+					} catch (IOException e) {
+						// shutting down anyway
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// shutting down anyway
+				}
+			}
+		}
+
+		private void applyQueues(long now) {
+			for (Iterator<ServerSocketChannel> it=servers.iterator();it.hasNext();) {
+				ServerSocketChannel server=it.next();
+				if (server.keyFor(selector)==null) {
+					try {
+						server.configureBlocking(false);
+						server.register(selector,SelectionKey.OP_ACCEPT,server);
+					} catch (IOException e) {
+						it.remove();
+					}
+				}
+			}
+			Vehicle v;
+			while ((v=registrations.poll())!=null) {
+				try {
+					v.channel.configureBlocking(false);
+					if (v.out!=v.in)
+						((SelectableChannel)v.out).configureBlocking(false);
+					v.key=v.channel.register(selector,SelectionKey.OP_READ,v);
+					workerVehicles.add(v);
+					v.start(now);
+				} catch (IOException e) {
+					closeVehicle(v);
+				}
+			}
+			while ((v=closes.poll())!=null)
+				closeVehicle(v);
+		}
+
+		private void handle(SelectionKey key) {
+			if (key.attachment() instanceof ServerSocketChannel) {
+				try {
+					SocketChannel channel=((ServerSocketChannel)key.attachment()).accept();
+					if (channel!=null) {
+						channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+						add(channel,channel,true,null);
+					}
+				} catch (IOException e) {
+					// the client gave up already
+				}
+				return;
+			}
+			Vehicle v=(Vehicle)key.attachment();
+			try {
+				if (key.isValid() && key.isReadable())
+					v.read();
+			} catch (IOException e) {
+				closeVehicle(v);
+			} catch (CancelledKeyException e) {
+				closeVehicle(v);
+			}
+		}
+
+		private void closeVehicle(Vehicle v) {
+			workerVehicles.remove(v);
+			vehicles.remove(v);
+			v.closeChannels();
+		}
+	}
+
+	private final UAVObjectDefinition[] defs;
+	private final Worker[] workers;
+	private final Thread[] threads;
+	private final CopyOnWriteArrayList<Vehicle> vehicles=new CopyOnWriteArrayList<Vehicle>();
+	private final int outputSize;
+
+	private volatile boolean running=true;
+	private volatile float rateMultiplier=1;
+	private volatile double crcErrorRate;
+	private volatile double dropRate;
+	private volatile int latency;
+	private int nextWorker;
+
+	public UAVTalkSimulator(UAVObjectDefinition[] defs) throws IOException {
+		this(defs,1,DEFAULT_OUTPUT_SIZE,System.nanoTime());
+	}
+
+	/**
+	 * @param defs - the objects of every vehicle - see UAVObjectSchemaLoader.load()
+	 * @param numThreads - number of selector threads
+	 * @param outputSize - bytes a vehicle buffers when the peer does not read
+	 * @param seed - seed for the start times and the fault injection
+	 */
+	public UAVTalkSimulator(UAVObjectDefinition[] defs,int numThreads,int outputSize,long seed) throws IOException {
+		this.defs=defs;
+		this.outputSize=outputSize;
+		workers=new Worker[numThreads];
+		threads=new Thread[numThreads];
+		for (int i=0;i<numThreads;i++) {
+			workers[i]=new Worker(seed+i);
+			threads[i]=new Thread(workers[i],"UAVTalkSimulator-"+i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * send all objects rateMultiplier times as often as their metadata says -
+	 * applies to vehicles added afterwards
+	 *
+	 * @param rateMultiplier - e.g. 10 to send a 100 ms object every 10 ms
+	 */
+	public void setRateMultiplier(float rateMultiplier) {
+		this.rateMultiplier=rateMultiplier;
+	}
+
+	/**
+	 * inject faults into the frames the vehicles send
+	 *
+	 * @param crcErrorRate - probability of a frame with a corrupted CRC
+	 * @param dropRate - probability of a frame with one byte missing
+	 * @param latency - ms a frame is held back before it is written
+	 */
+	public void setFaults(double crcErrorRate,double dropRate,int latency) {
+		this.crcErrorRate=crcErrorRate;
+		this.dropRate=dropRate;
+		this.latency=latency;
+	}
+
+	/**
+	 * accept TCP connections - every connection gets a new vehicle
+	 *
+	 * @param local - address to listen on - port 0 for any free port
+	 * @return - the address actually listened on
+	 */
+	public SocketAddress listenTcp(SocketAddress local) throws IOException {
+		ServerSocketChannel server=ServerSocketChannel.open();
+		server.bind(local);
+		workers[0].servers.add(server);
+		workers[0].selector.wakeup();
+		return server.getLocalAddress();
+	}
+
+	/**
+	 * connect a vehicle to a ground station listening on TCP
+	 *
+	 * @param remote - address of the ground station
+	 */
+	public Vehicle connectTcp(SocketAddress remote) throws IOException {
+		SocketChannel channel=SocketChannel.open(remote);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+		return add(channel,channel,true,null);
+	}
+
+	/**
+	 * open a UDP vehicle
+	 *
+	 * @param local - local address to bind to
+	 * @param remote - address of the ground station - null to answer whoever sends first
+	 */
+	public Vehicle openUdp(SocketAddress local,SocketAddress remote) throws IOException {
+		DatagramChannel channel=DatagramChannel.open();
+		channel.bind(local);
+		if (remote!=null)
+			channel.connect(remote);
+		return add(channel,channel,remote!=null,null);
+	}
+
+	/**
+	 * open a vehicle talking over a pair of pipes - the ground uses
+	 * Vehicle.getGroundChannel()
+	 */
+	public Vehicle openPipe() throws IOException {
+		Pipe up=Pipe.open();
+		Pipe down=Pipe.open();
+		return add(up.source(),down.sink(),true,new PipeChannel(down.source(),up.sink()));
+	}
+
+	/**
+	 * @return - all open vehicles
+	 */
+	public List<Vehicle> getVehicles() {
+		return new ArrayList<Vehicle>(vehicles);
+	}
+
+	/**
+	 * @return - periodic updates sent by all vehicles
+	 */
+	public long getEmitted() {
+		long res=0;
+		for (int i=0;i<workers.length;i++)
+			res+=workers[i].emitted;
+		return res;
+	}
+
+	/**
+	 * close all vehicles and stop the selector threads
+	 */
+	public void close() {
+		running=false;
+		for (int i=0;i<workers.length;i++)
+			workers[i].selector.wakeup();
+		for (int i=0;i<threads.length;i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private Vehicle add(ReadableByteChannel in,WritableByteChannel out,boolean connected,ByteChannel groundChannel) throws IOException {
+		if (!running) {
+			in.close();
+			out.close();
+			throw new IOException("simulator closed");
+		}
+		Worker worker;
+		synchronized (this) {
+			worker=workers[nextWorker];
+			nextWorker=(nextWorker+1)%workers.length;
+		}
+		Vehicle v=new Vehicle(worker,in,out,connected,groundChannel);
+		vehicles.add(v);
+		worker.register(v);
+		return v;
+	}
+
+	/**
+	 * listen on TCP and simulate a vehicle for every connection
+	 *
+	 * usage: UAVTalkSimulator definitiondir port [ratemultiplier] [threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length<2) {
+			System.err.println("usage: UAVTalkSimulator definitiondir port [ratemultiplier] [threads]");
+			System.exit(1);
+		}
+		UAVObjectDefinition[] defs=UAVObjectSchemaLoader.load(new File(args[0]));
+		int threads=args.length>3?Integer.parseInt(args[3]):1;
+		UAVTalkSimulator sim=new UAVTalkSimulator(defs,threads,DEFAULT_OUTPUT_SIZE,System.nanoTime());
+		if (args.length>2)
+			sim.setRateMultiplier(Float.parseFloat(args[2]));
+		System.out.println("listening on "+sim.listenTcp(new InetSocketAddress(Integer.parseInt(args[1]))));
+		long last=0;
+		while (true) {
+			Thread.sleep(1000);
+			long emitted=sim.getEmitted();
+			System.out.println(sim.getVehicles().size()+" vehicles "+(emitted-last)+" updates/s");
+			last=emitted;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkTransactionListener.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      callback for finished acked sends and object requests
+ *
+ ****************************************************************************
+*/
+public interface UAVTalkTransactionListener {
+
+	/**
+	 * @param obj - the object which was sent or requested
+	 * @param type - TYPE_OBJ_ACK for acked sends - TYPE_OBJ_REQ for requests
+	 * @param success - false if all retries timed out or the other side sent a NACK
+	 */
+	public void transactionCompleted(UAVObject obj,byte type,boolean success);
+
+}
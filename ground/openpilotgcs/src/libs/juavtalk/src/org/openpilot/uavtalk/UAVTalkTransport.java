@@ -0,0 +1,271 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+package org.openpilot.uavtalk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkTransport.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      multiplexes many UAVTalk links on a few selector threads
+ *
+ * Links are spread round robin over the selector threads. Each thread reads
+ * and decodes its links, writes their pending output and ticks their sessions
+ * every TICK ms, so a link costs no thread of its own. Changes requested from
+ * other threads ( pause, resume, pending output, close ) are queued and the
+ * selector is woken up to apply them.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkTransport {
+
+	public final static int TICK=10;
+
+	final class Worker implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<UAVTalkLink> registrations=new ConcurrentLinkedQueue<UAVTalkLink>();
+		private final ConcurrentLinkedQueue<UAVTalkLink> changes=new ConcurrentLinkedQueue<UAVTalkLink>();
+		private final ConcurrentLinkedQueue<UAVTalkLink> closes=new ConcurrentLinkedQueue<UAVTalkLink>();
+		private final ArrayList<UAVTalkLink> workerLinks=new ArrayList<UAVTalkLink>();
+		private volatile Thread thread;
+
+		Worker() throws IOException {
+			selector=Selector.open();
+		}
+
+		void register(UAVTalkLink link) {
+			registrations.add(link);
+			selector.wakeup();
+		}
+
+		void updateInterest(UAVTalkLink link) {
+			changes.add(link);
+			selector.wakeup();
+		}
+
+		void close(UAVTalkLink link,IOException cause) {
+			if (Thread.currentThread()==thread) {
+				closeLink(link,cause);
+			} else {
+				closes.add(link);
+				selector.wakeup();
+			}
+		}
+
+		public void run() {
+			thread=Thread.currentThread();
+			try {
+				while (running) {
+					selector.select(TICK);
+					applyQueues();
+
+					Iterator<SelectionKey> it=selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key=it.next();
+						it.remove();
+						handle(key);
+					}
+
+					long now=System.currentTimeMillis();
+					for (int i=0;i<workerLinks.size();i++)
+						workerLinks.get(i).tick(now);
+				}
+			} catch (IOException e) {
+				// the selector itself failed - nothing can be served any more
+			} finally {
+				for (int i=workerLinks.size()-1;i>=0;i--)
+					closeLink(workerLinks.get(i),null);
+				UAVTalkLink link;
+				while ((link=registrations.poll())!=null)
+					closeLink(link,null);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// shutting down anyway
+				}
+			}
+		}
+
+		private void applyQueues() {
+			UAVTalkLink link;
+			while ((link=registrations.poll())!=null) {
+				try {
+					link.getSelectableChannel().configureBlocking(false);
+					link.key=link.getSelectableChannel().register(selector,link.interestOps(),link);
+					workerLinks.add(link);
+				} catch (IOException e) {
+					closeLink(link,e);
+				}
+			}
+			while ((link=closes.poll())!=null)
+				closeLink(link,null);
+			while ((link=changes.poll())!=null)
+				setInterest(link);
+		}
+
+		private void handle(SelectionKey key) {
+			UAVTalkLink link=(UAVTalkLink)key.attachment();
+			try {
+				if (key.isConnectable())
+					link.finishConnect();
+				if (key.isValid() && key.isReadable())
+					link.read();
+				if (key.isValid() && key.isWritable())
+					link.write();
+				setInterest(link);
+			} catch (IOException e) {
+				closeLink(link,e instanceof EOFException?null:e);
+			} catch (CancelledKeyException e) {
+				closeLink(link,null);
+			}
+		}
+
+		private void setInterest(UAVTalkLink link) {
+			SelectionKey key=link.key;
+			if (key!=null && key.isValid())
+				key.interestOps(link.interestOps());
+		}
+
+		private void closeLink(UAVTalkLink link,IOException cause) {
+			if (link.key!=null)
+				link.key.cancel();
+			workerLinks.remove(link);
+			links.remove(link);
+			if (link.closeChannel() && link.getListener()!=null)
+				link.getListener().linkClosed(link,cause);
+		}
+	}
+
+	private final Worker[] workers;
+	private final Thread[] threads;
+	private final UAVTalkLinkListener listener;
+	private final CopyOnWriteArrayList<UAVTalkLink> links=new CopyOnWriteArrayList<UAVTalkLink>();
+
+	private volatile boolean running=true;
+	private int nextWorker;
+
+	/**
+	 * @param numThreads - number of selector threads
+	 * @param listener - gets the frames and close events of all links - may be null
+	 */
+	public UAVTalkTransport(int numThreads,UAVTalkLinkListener listener) throws IOException {
+		this.listener=listener;
+		workers=new Worker[numThreads];
+		threads=new Thread[numThreads];
+		for (int i=0;i<numThreads;i++) {
+			workers[i]=new Worker();
+			threads[i]=new Thread(workers[i],"UAVTalkTransport-"+i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * connect to a vehicle or bridge over TCP - the link is usable at once,
+	 * output is buffered until the connection is established
+	 *
+	 * @param remote - address to connect to
+	 * @param objMngr - the objects of the vehicle
+	 */
+	public UAVTalkLink connect(SocketAddress remote,UAVObjectManager objMngr) throws IOException {
+		SocketChannel channel=SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+		boolean connected=channel.connect(remote);
+		return add(channel,connected,objMngr);
+	}
+
+	/**
+	 * use an already connected TCP channel - e.g. one returned by a server socket
+	 *
+	 * @param channel - the connected channel
+	 * @param objMngr - the objects of the vehicle
+	 */
+	public UAVTalkLink attach(SocketChannel channel,UAVObjectManager objMngr) throws IOException {
+		return add(channel,true,objMngr);
+	}
+
+	/**
+	 * open a UDP link - every datagram holds one or more frames
+	 *
+	 * @param local - local address to bind to - null for any
+	 * @param remote - address of the vehicle or bridge
+	 * @param objMngr - the objects of the vehicle
+	 */
+	public UAVTalkLink openUdp(SocketAddress local,SocketAddress remote,UAVObjectManager objMngr) throws IOException {
+		DatagramChannel channel=DatagramChannel.open();
+		channel.bind(local);
+		channel.connect(remote);
+		return add(channel,true,objMngr);
+	}
+
+	/**
+	 * @return - all open links
+	 */
+	public List<UAVTalkLink> getLinks() {
+		return new ArrayList<UAVTalkLink>(links);
+	}
+
+	/**
+	 * close all links and stop the selector threads
+	 */
+	public void close() {
+		running=false;
+		for (int i=0;i<workers.length;i++)
+			workers[i].selector.wakeup();
+		for (int i=0;i<threads.length;i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private UAVTalkLink add(ByteChannel channel,boolean connected,UAVObjectManager objMngr) throws IOException {
+		if (!running) {
+			channel.close();
+			throw new IOException("transport closed");
+		}
+		Worker worker;
+		synchronized (this) {
+			worker=workers[nextWorker];
+			nextWorker=(nextWorker+1)%workers.length;
+		}
+		UAVTalkLink link=new UAVTalkLink(worker,channel,connected,objMngr,listener,UAVTalkLink.DEFAULT_OUTBOUND_SIZE);
+		links.add(link);
+		worker.register(link);
+		return link;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package org.openpilot.uavtalk;
+
+import java.io.File;
+
+/**
+ ******************************************************************************
+ *
+ * @file       AllTests.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      runs the checks of the library - started by "ant test"
+ *
+ * The checks need no test framework: a failed check throws an AssertionError,
+ * which ends the run with an exit code other than 0.
+ *
+ ****************************************************************************
+*/
+public class AllTests {
+
+	/**
+	 * @param args - the directory of the UAVObject XML definitions
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length!=1)
+			throw new IllegalArgumentException("usage: AllTests <uavobjectdefinition dir>");
+
+		CRC8Test.run();
+		System.out.println("CRC8Test ok");
+		UAVTalkFrameDecoderTest.run();
+		System.out.println("UAVTalkFrameDecoderTest ok");
+		UAVTalkFrameCodecTest.run(new File(args[0]));
+		System.out.println("UAVTalkFrameCodecTest ok");
+		UAVTalkParallelReaderTest.run();
+		System.out.println("UAVTalkParallelReaderTest ok");
+	}
+
+	/**
+	 * @param ok - the checked condition
+	 * @param message - describes the failure
+	 */
+	static void check(boolean ok,String message) {
+		if (!ok)
+			throw new AssertionError(message);
+	}
+}
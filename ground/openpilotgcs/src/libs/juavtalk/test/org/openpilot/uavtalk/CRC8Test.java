@@ -0,0 +1,142 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package org.openpilot.uavtalk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.openpilot.uavtalk.AllTests.check;
+
+/**
+ ******************************************************************************
+ *
+ * @file       CRC8Test.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      checks the CRC8 table and the sliced updates against a bitwise CRC
+ *
+ ****************************************************************************
+*/
+public class CRC8Test {
+
+	public static void run() {
+		checkTable();
+		checkKnownValue();
+		checkSlicedUpdates();
+		checkStreaming();
+	}
+
+	/**
+	 * CRC-8 with polynomial 0x07 computed bit by bit - independent of the tables
+	 */
+	private static byte bitwise(byte crc,byte[] data,int offset,int length) {
+		int c=crc&0xFF;
+		for (int i=offset;i<offset+length;i++) {
+			c^=data[i]&0xFF;
+			for (int bit=0;bit<8;bit++)
+				c=((c&0x80)!=0)?((c<<1)^0x07)&0xFF:(c<<1)&0xFF;
+		}
+		return (byte)c;
+	}
+
+	private static void checkTable() {
+		byte[] b=new byte[1];
+		for (int crc=0;crc<256;crc++) {
+			for (int v=0;v<256;v++) {
+				b[0]=(byte)v;
+				check(CRC8.byteUpdate((byte)crc,(byte)v)==bitwise((byte)crc,b,0,1),
+						"table differs for crc "+crc+" byte "+v);
+			}
+		}
+	}
+
+	private static void checkKnownValue() {
+		byte[] data="123456789".getBytes();
+		check(CRC8.arrayUpdate((byte)0,data,data.length)==(byte)0xF4,"CRC8 of \"123456789\" is not 0xF4");
+	}
+
+	/**
+	 * the sliced array and buffer updates against the bytewise update, for all
+	 * lengths around the slice size and unaligned offsets
+	 */
+	private static void checkSlicedUpdates() {
+		Random r=new Random(1);
+		byte[] data=new byte[300];
+		r.nextBytes(data);
+		ByteBuffer direct=ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+
+		for (int offset=0;offset<10;offset++) {
+			for (int length=0;length<=data.length-offset;length+=(length<40)?1:37) {
+				byte start=(byte)r.nextInt(256);
+				byte expected=start;
+				for (int i=offset;i<offset+length;i++)
+					expected=CRC8.byteUpdate(expected,data[i]);
+				String what=" differs at offset "+offset+" length "+length;
+
+				check(bitwise(start,data,offset,length)==expected,"bytewise update"+what);
+				check(CRC8.arrayUpdate(start,data,offset,length)==expected,"array update"+what);
+
+				// a slice has an array offset
+				ByteBuffer heap=ByteBuffer.wrap(data,offset,data.length-offset).slice();
+				check(CRC8.bufferUpdate(start,heap,0,length)==expected,"heap buffer update"+what);
+
+				direct.order(ByteOrder.LITTLE_ENDIAN);
+				check(CRC8.bufferUpdate(start,direct,offset,length)==expected,"direct little endian buffer update"+what);
+				direct.order(ByteOrder.BIG_ENDIAN);
+				check(CRC8.bufferUpdate(start,direct,offset,length)==expected,"direct big endian buffer update"+what);
+			}
+		}
+	}
+
+	/**
+	 * updates in pieces through the Checksum interface give the CRC of the whole
+	 */
+	private static void checkStreaming() {
+		Random r=new Random(2);
+		byte[] data=new byte[1000];
+		r.nextBytes(data);
+		byte expected=CRC8.arrayUpdate((byte)0,data,data.length);
+
+		CRC8 crc=new CRC8();
+		int pos=0;
+		while (pos<data.length) {
+			int n=Math.min(r.nextInt(20),data.length-pos);
+			switch (r.nextInt(3)) {
+			case 0:
+				for (int i=0;i<n;i++)
+					crc.update(data[pos+i]);
+				break;
+			case 1:
+				crc.update(data,pos,n);
+				break;
+			default:
+				ByteBuffer b=ByteBuffer.allocateDirect(n);
+				b.put(data,pos,n);
+				b.flip();
+				crc.update(b);
+				check(!b.hasRemaining(),"buffer update does not consume the buffer");
+			}
+			pos+=n;
+		}
+		check(crc.getCRC()==expected,"streamed CRC differs");
+		check(crc.getValue()==(expected&0xFF),"getValue() is not the unsigned CRC");
+		crc.reset();
+		check(crc.getValue()==0,"reset() does not clear the CRC");
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package org.openpilot.uavtalk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.openpilot.uavtalk.AllTests.check;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkFrameCodecTest.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      encode/decode round trips of all UAVObject definitions
+ *
+ * Every object of shared/uavobjectdefinition is filled with random data,
+ * encoded, decoded and deserialized into a second instance, which then has
+ * to serialize to the same bytes.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkFrameCodecTest {
+
+	public static void run(File definitionDir) throws Exception {
+		UAVObjectDefinition[] defs=UAVObjectSchemaLoader.load(definitionDir);
+		check(defs.length>0,"no definitions in "+definitionDir);
+
+		int maxLength=0;
+		for (int i=0;i<defs.length;i++)
+			maxLength=Math.max(maxLength,defs[i].getNumBytes());
+
+		Random r=new Random(1);
+		UAVTalkFrameEncoder encoder=new UAVTalkFrameEncoder(maxLength,false);
+		UAVTalkFrameEncoder directEncoder=new UAVTalkFrameEncoder(maxLength,true);
+		UAVTalkFrameDecoderTest.Recorder rec=new UAVTalkFrameDecoderTest.Recorder();
+		UAVTalkFrameDecoder decoder=new UAVTalkFrameDecoder(rec,maxLength,false);
+
+		for (int i=0;i<defs.length;i++) {
+			UAVDynamicObject obj=defs[i].newObject(0);
+			byte[] data=new byte[obj.getDataLength()];
+			r.nextBytes(data);
+			obj.deserialize(data,0);
+			check(Arrays.equals(obj.serialize(),data),obj.getObjName()+": serialize() differs from the deserialized data");
+
+			checkRoundTrip(obj,UAVTalkDefinitions.TYPE_OBJ,encoder,decoder,rec);
+			checkRoundTrip(obj,UAVTalkDefinitions.TYPE_OBJ_ACK,directEncoder,decoder,rec);
+			checkRoundTrip(obj,UAVTalkDefinitions.TYPE_OBJ_REQ,encoder,decoder,rec);
+		}
+		check(decoder.getRxSyncErrors()==0 && decoder.getRxCrcErrors()==0,"round trips counted errors");
+
+		checkLengthMismatch(defs);
+		checkPayloadLimit();
+	}
+
+	private static void checkRoundTrip(UAVDynamicObject obj,byte type,UAVTalkFrameEncoder encoder,
+			UAVTalkFrameDecoder decoder,UAVTalkFrameDecoderTest.Recorder rec) {
+		String what=obj.getObjName()+" "+UAVTalkDefinitions.getTypeString(type);
+		boolean data=(type!=UAVTalkDefinitions.TYPE_OBJ_REQ);
+
+		ByteBuffer buf=encoder.encode(type,obj);
+		byte[] encoded=new byte[buf.remaining()];
+		buf.get(encoded);
+		check(Arrays.equals(encoded,UAVTalkHelper.generateUAVTalkPackage(type,obj)),what+": encoder and helper differ");
+		check(encoded.length==UAVTalkHelper.MIN_PACKAGE_SIZE+(data?obj.getDataLength():0),what+": frame length is "+encoded.length);
+
+		final UAVDynamicObject copy=obj.getDefinition().newObject(0);
+		final UAVTalkFrame[] received=new UAVTalkFrame[1];
+		final boolean[] deserialized=new boolean[1];
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				received[0]=frame;
+				if (frame.getPayloadLength()>0)
+					deserialized[0]=frame.deserializeInto(copy);
+			}
+		},obj.getDataLength(),false);
+		d.decode(encoded,0,encoded.length);
+		check(received[0]!=null,what+": not decoded");
+		check(received[0].getType()==type && received[0].getObjID()==obj.getObjID(),what+": header differs");
+		check(received[0].getPayloadLength()==(data?obj.getDataLength():0),what+": payload length differs");
+		if (data && obj.getDataLength()>0) {
+			check(deserialized[0],what+": deserializeInto() failed");
+			check(Arrays.equals(copy.serialize(),obj.serialize()),what+": decoded object differs");
+		}
+
+		// the same frame through a decoder which is fed frame after frame
+		int before=rec.frames.size();
+		decoder.decode(encoded,0,encoded.length);
+		check(rec.frames.size()==before+1 && Arrays.equals(rec.frames.get(before),encoded),what+": stream decoder differs");
+	}
+
+	/**
+	 * a payload of the wrong length is not deserialized
+	 */
+	private static void checkLengthMismatch(UAVObjectDefinition[] defs) {
+		UAVDynamicObject small=null;
+		UAVDynamicObject big=null;
+		for (int i=0;i<defs.length;i++) {
+			if (small==null || defs[i].getNumBytes()<small.getDataLength())
+				small=defs[i].newObject(0);
+			if (big==null || defs[i].getNumBytes()>big.getDataLength())
+				big=defs[i].newObject(0);
+		}
+		check(small.getDataLength()<big.getDataLength(),"all definitions have the same length");
+
+		final UAVDynamicObject target=big;
+		final byte[] before=big.serialize();
+		final boolean[] res={true};
+		byte[] frame=UAVTalkHelper.generateUAVTalkPackage(UAVTalkDefinitions.TYPE_OBJ,small);
+		new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				res[0]=frame.deserializeInto(target);
+			}
+		},big.getDataLength(),false).decode(frame,0,frame.length);
+		check(!res[0],"deserializeInto() accepted a payload of the wrong length");
+		check(Arrays.equals(target.serialize(),before),"deserializeInto() changed the object on a length mismatch");
+	}
+
+	/**
+	 * the length field of the header limits the payload
+	 */
+	private static void checkPayloadLimit() {
+		byte[] max=UAVTalkHelper.generateUAVTalkPackage(UAVTalkDefinitions.TYPE_OBJ,1,new byte[UAVTalkHelper.MAX_PAYLOAD_LENGTH]);
+		check(max.length==UAVTalkHelper.MIN_PACKAGE_SIZE+UAVTalkHelper.MAX_PAYLOAD_LENGTH,"largest frame has the wrong length");
+		try {
+			UAVTalkHelper.generateUAVTalkPackage(UAVTalkDefinitions.TYPE_OBJ,1,new byte[UAVTalkHelper.MAX_PAYLOAD_LENGTH+1]);
+			check(false,"a payload over the length field was encoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package org.openpilot.uavtalk;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.openpilot.uavtalk.AllTests.check;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkFrameDecoderTest.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      checks framing, resync and error counting of UAVTalkFrameDecoder
+ *
+ ****************************************************************************
+*/
+public class UAVTalkFrameDecoderTest {
+
+	/**
+	 * keeps a copy of every received frame
+	 */
+	final static class Recorder implements UAVTalkFrameListener {
+		final ArrayList<byte[]> frames=new ArrayList<byte[]>();
+
+		public void onFrame(UAVTalkFrame frame) {
+			ByteBuffer b=ByteBuffer.allocate(frame.getFrameLength());
+			frame.writeTo(b);
+			frames.add(b.array());
+		}
+	}
+
+	public static void run() throws Exception {
+		Random r=new Random(1);
+		byte[] a=frame(UAVTalkDefinitions.TYPE_OBJ,0x12345678,payload(r,40));
+		byte[] b=frame(UAVTalkDefinitions.TYPE_OBJ_ACK,0x0BADF00D,payload(r,0));
+		byte[] c=frame(UAVTalkDefinitions.TYPE_OBJ,0x7F000001,payload(r,UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH));
+
+		checkWhole(a,b,c);
+		checkPieces(r,a,b,c);
+
+		// no sync byte after the start, so a damaged frame is skipped byte by byte
+		byte[] p=frame(UAVTalkDefinitions.TYPE_OBJ,0x01020304,new byte[20]);
+		byte[] q=frame(UAVTalkDefinitions.TYPE_OBJ_REQ,0x05060708,new byte[0]);
+		check(indexOf(p,UAVTalkDefinitions.SYNC_VAL,1)<0 && indexOf(q,UAVTalkDefinitions.SYNC_VAL,1)<0,"sync byte inside of the test frames");
+		checkGarbage(p,q);
+		checkBadCrc(p,q);
+		checkBadHeader(p,q);
+		checkReset(a,b);
+		checkChannel(r,a,b,c);
+	}
+
+	static byte[] payload(Random r,int length) {
+		byte[] res=new byte[length];
+		r.nextBytes(res);
+		// a sync byte inside of the payload must not confuse the decoder
+		if (length>0)
+			res[length/2]=UAVTalkDefinitions.SYNC_VAL;
+		return res;
+	}
+
+	static byte[] frame(byte type,int objId,byte[] payload) {
+		return UAVTalkHelper.generateUAVTalkPackage(type,objId,payload);
+	}
+
+	private static int indexOf(byte[] data,byte value,int from) {
+		for (int i=from;i<data.length;i++)
+			if (data[i]==value)
+				return i;
+		return -1;
+	}
+
+	static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		for (int i=0;i<parts.length;i++)
+			out.write(parts[i],0,parts[i].length);
+		return out.toByteArray();
+	}
+
+	private static void checkFrames(Recorder rec,String what,byte[]... expected) {
+		check(rec.frames.size()==expected.length,what+": "+rec.frames.size()+" frames instead of "+expected.length);
+		for (int i=0;i<expected.length;i++)
+			check(Arrays.equals(rec.frames.get(i),expected[i]),what+": frame "+i+" differs");
+	}
+
+	private static void checkWhole(byte[] a,byte[] b,byte[] c) {
+		Recorder rec=new Recorder();
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+		d.decode(concat(a,b,c),0,a.length+b.length+c.length);
+		checkFrames(rec,"whole buffer",a,b,c);
+		check(d.getRxObjects()==3,"whole buffer: RxObjects is "+d.getRxObjects());
+		check(d.getRxBytes()==a.length+b.length+c.length,"whole buffer: RxBytes is "+d.getRxBytes());
+		check(d.getRxSyncErrors()==0 && d.getRxCrcErrors()==0,"whole buffer: errors counted");
+
+		// the frame passed to the listener carries the header fields
+		final int[] header=new int[3];
+		UAVTalkFrameDecoder d2=new UAVTalkFrameDecoder(new UAVTalkFrameListener() {
+			public void onFrame(UAVTalkFrame frame) {
+				header[0]=frame.getType();
+				header[1]=frame.getObjID();
+				header[2]=frame.getPayloadLength();
+			}
+		});
+		d2.decode(a,0,a.length);
+		check(header[0]==UAVTalkDefinitions.TYPE_OBJ && header[1]==0x12345678 && header[2]==40,"header fields of the frame differ");
+	}
+
+	/**
+	 * frames split at every possible position and fed in random pieces
+	 */
+	private static void checkPieces(Random r,byte[] a,byte[] b,byte[] c) {
+		byte[] all=concat(a,b,c);
+		for (int split=0;split<=all.length;split++) {
+			Recorder rec=new Recorder();
+			UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+			d.decode(all,0,split);
+			d.decode(all,split,all.length-split);
+			checkFrames(rec,"split at "+split,a,b,c);
+		}
+		for (int n=0;n<100;n++) {
+			Recorder rec=new Recorder();
+			UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+			int pos=0;
+			while (pos<all.length) {
+				int len=Math.min(r.nextInt(n<50?4:200),all.length-pos);
+				d.decode(all,pos,len);
+				pos+=len;
+			}
+			checkFrames(rec,"random pieces",a,b,c);
+		}
+	}
+
+	private static void checkGarbage(byte[] a,byte[] b) {
+		Recorder rec=new Recorder();
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+		byte[] garbage={1,2,3,4,5};
+		byte[] all=concat(garbage,a,garbage,b);
+		d.decode(all,0,all.length);
+		checkFrames(rec,"garbage",a,b);
+		check(d.getRxSyncErrors()==2*garbage.length,"garbage: RxSyncErrors is "+d.getRxSyncErrors());
+	}
+
+	private static void checkBadCrc(byte[] a,byte[] b) {
+		Recorder rec=new Recorder();
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+		byte[] bad=a.clone();
+		bad[bad.length-1]^=1;
+		byte[] all=concat(bad,b);
+		d.decode(all,0,all.length);
+		checkFrames(rec,"bad CRC",b);
+		check(d.getRxCrcErrors()==1,"bad CRC: RxCrcErrors is "+d.getRxCrcErrors());
+		check(d.getRxSyncErrors()==bad.length-1,"bad CRC: RxSyncErrors is "+d.getRxSyncErrors());
+		check(d.getRxObjects()==1,"bad CRC: RxObjects is "+d.getRxObjects());
+	}
+
+	/**
+	 * an invalid type or a length beyond maxPayloadLength is no frame start
+	 */
+	private static void checkBadHeader(byte[] a,byte[] b) {
+		Recorder rec=new Recorder();
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec,50,false);
+		byte[] badType=a.clone();
+		badType[1]=0x07;
+		byte[] tooLong=frame(UAVTalkDefinitions.TYPE_OBJ,0x01020304,new byte[51]);
+		byte[] all=concat(badType,a,tooLong,b);
+		d.decode(all,0,all.length);
+		checkFrames(rec,"bad header",a,b);
+		check(d.getRxCrcErrors()==0,"bad header: RxCrcErrors is "+d.getRxCrcErrors());
+		check(d.getRxSyncErrors()==badType.length+tooLong.length,"bad header: RxSyncErrors is "+d.getRxSyncErrors());
+	}
+
+	private static void checkReset(byte[] a,byte[] b) {
+		Recorder rec=new Recorder();
+		UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec);
+		d.decode(a,0,a.length-3);
+		d.reset();
+		d.decode(b,0,b.length);
+		checkFrames(rec,"reset",b);
+		check(d.getRxSyncErrors()==0,"reset: the dropped start was counted");
+		d.resetStats();
+		check(d.getRxObjects()==0 && d.getRxBytes()==0,"resetStats() does not clear the counters");
+	}
+
+	/**
+	 * read() from a channel which delivers a few bytes per call
+	 */
+	private static void checkChannel(final Random r,byte[] a,byte[] b,byte[] c) throws Exception {
+		final ByteBuffer src=ByteBuffer.wrap(concat(a,b,c));
+		ReadableByteChannel ch=new ReadableByteChannel() {
+			public int read(ByteBuffer dst) {
+				if (!src.hasRemaining())
+					return -1;
+				int n=Math.min(Math.min(1+r.nextInt(30),src.remaining()),dst.remaining());
+				for (int i=0;i<n;i++)
+					dst.put(src.get());
+				return n;
+			}
+			public boolean isOpen() {
+				return true;
+			}
+			public void close() {
+			}
+		};
+		for (int direct=0;direct<2;direct++) {
+			src.rewind();
+			Recorder rec=new Recorder();
+			UAVTalkFrameDecoder d=new UAVTalkFrameDecoder(rec,UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH,direct==1);
+			while (d.read(ch)>=0)
+				;
+			checkFrames(rec,direct==1?"direct channel":"channel",a,b,c);
+		}
+	}
+}
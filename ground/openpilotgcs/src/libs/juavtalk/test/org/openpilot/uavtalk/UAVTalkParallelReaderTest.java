@@ -0,0 +1,133 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+package org.openpilot.uavtalk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.openpilot.uavtalk.AllTests.check;
+
+/**
+ ******************************************************************************
+ *
+ * @file       UAVTalkParallelReaderTest.java
+ * @author     The OpenPilot Team, http://www.openpilot.org Copyright (C) 2011.
+ * @brief      checks the parallel reader against the sequential decoder
+ *
+ * The captures mix valid frames with garbage, frames with a bad CRC, cut
+ * off frames and sync bytes inside of payloads, so chunks often start on a
+ * false sync. The chunks have to deliver exactly the frames of the
+ * sequential decoder, in order and chunk by chunk, and the same error counts.
+ *
+ ****************************************************************************
+*/
+public class UAVTalkParallelReaderTest {
+
+	private final static int NUM_FRAMES=20000;
+	private final static int MAX_PAYLOAD_LENGTH=UAVTalkFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH;
+	private final static int[] CHUNK_SIZES={64,256,4096,65536,1048576};
+
+	/**
+	 * keeps a digest of every frame - type, object ID and payload
+	 */
+	private final static class Digest implements UAVTalkFrameListener {
+		long[] frames=new long[16];
+		int count;
+
+		public void onFrame(UAVTalkFrame frame) {
+			long h=((long)frame.getType()<<32)^frame.getObjID();
+			for (int i=0;i<frame.getPayloadLength();i++)
+				h=h*31+frame.getPayloadByte(i);
+			if (count==frames.length)
+				frames=Arrays.copyOf(frames,count*2);
+			frames[count++]=h;
+		}
+	}
+
+	private final static UAVTalkParallelReader.ListenerFactory<Digest> DIGESTS=new UAVTalkParallelReader.ListenerFactory<Digest>() {
+		public Digest create(UAVTalkParallelReader.Chunk chunk) {
+			return new Digest();
+		}
+	};
+
+	public static void run() throws Exception {
+		for (int seed=1;seed<=3;seed++) {
+			ByteBuffer capture=ByteBuffer.wrap(generateCapture(new Random(seed)));
+			for (int i=0;i<CHUNK_SIZES.length;i++)
+				checkChunks(capture,CHUNK_SIZES[i],"seed "+seed+" chunk size "+CHUNK_SIZES[i]);
+		}
+		checkChunks(ByteBuffer.allocate(0),4096,"empty capture");
+	}
+
+	private static void checkChunks(ByteBuffer capture,int chunkSize,String what) throws Exception {
+		Digest seq=new Digest();
+		UAVTalkFrameDecoder decoder=new UAVTalkFrameDecoder(seq,MAX_PAYLOAD_LENGTH,false);
+		decoder.decode(capture.duplicate());
+
+		UAVTalkParallelReader reader=new UAVTalkParallelReader(capture.duplicate(),chunkSize,MAX_PAYLOAD_LENGTH);
+		List<Digest> digests=reader.decode(DIGESTS);
+		UAVTalkParallelReader.Chunk[] chunks=reader.getChunks();
+		check(digests.size()==chunks.length,what+": "+digests.size()+" listeners for "+chunks.length+" chunks");
+
+		int pos=0;
+		for (int n=0;n<chunks.length;n++) {
+			Digest d=digests.get(n);
+			check(d.count==chunks[n].getFrames(),what+": chunk "+n+" counts "+chunks[n].getFrames()+" frames but delivered "+d.count);
+			check(pos+d.count<=seq.count && Arrays.mismatch(d.frames,0,d.count,seq.frames,pos,pos+d.count)<0,
+					what+": chunk "+n+" differs from the sequential decoder");
+			pos+=d.count;
+		}
+		check(pos==seq.count,what+": chunks have "+pos+" frames instead of "+seq.count);
+		check(reader.getFrames()==seq.count,what+": getFrames() is "+reader.getFrames());
+		check(reader.getSyncErrors()==decoder.getRxSyncErrors(),what+": "+reader.getSyncErrors()+" sync errors instead of "+decoder.getRxSyncErrors());
+		check(reader.getCrcErrors()==decoder.getRxCrcErrors(),what+": "+reader.getCrcErrors()+" CRC errors instead of "+decoder.getRxCrcErrors());
+	}
+
+	private static byte[] generateCapture(Random r) {
+		ByteBuffer out=ByteBuffer.allocate(NUM_FRAMES*(UAVTalkHelper.MIN_PACKAGE_SIZE+150));
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer frame=ByteBuffer.allocate(UAVTalkHelper.MIN_PACKAGE_SIZE+MAX_PAYLOAD_LENGTH);
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] payload=new byte[300];
+		for (int i=0;i<NUM_FRAMES;i++) {
+			int kind=r.nextInt(20);
+			if (kind==0) {
+				// garbage with some sync bytes
+				for (int n=r.nextInt(30);n>0;n--)
+					out.put((byte)(r.nextInt(10)==0?UAVTalkDefinitions.SYNC_VAL:r.nextInt(256)));
+				continue;
+			}
+			int length=r.nextInt(kind==1?300:60);
+			r.nextBytes(payload);
+			if (length>0 && r.nextInt(4)==0)
+				payload[r.nextInt(length)]=UAVTalkDefinitions.SYNC_VAL;
+			frame.clear();
+			UAVTalkHelper.writeUAVTalkPackage(frame,UAVTalkDefinitions.TYPE_OBJ,r.nextInt(),payload,0,length);
+			int end=frame.position();
+			if (r.nextInt(50)==0)
+				frame.put(end-1,(byte)(frame.get(end-1)^1));
+			if (r.nextInt(80)==0)
+				end=r.nextInt(end);
+			out.put(frame.array(),0,end);
+		}
+		return Arrays.copyOf(out.array(),out.position());
+	}
+}
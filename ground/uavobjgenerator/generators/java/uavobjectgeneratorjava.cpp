@@ -36,6 +36,9 @@ bool UAVObjectGeneratorJava::generate(UAVObjectParser *parser, QString templatep
     fieldTypeStrCPPClass << "INT8" << "INT16" << "INT32"
                          << "UINT8" << "UINT16" << "UINT32" << "FLOAT32" << "ENUM";
 
+    fieldTypeStrJava << "byte" << "short" << "int" <<
+        "short" << "int" << "long" << "float" << "byte";
+
     javaCodePath     = QDir(templatepath + QString(JAVA_TEMPLATE_DIR));
     javaOutputPath   = QDir(outputpath + QString("java"));
     javaOutputPath.mkpath(javaOutputPath.absolutePath());
@@ -49,19 +52,26 @@ bool UAVObjectGeneratorJava::generate(UAVObjectParser *parser, QString templatep
     }
 
     QString objInc;
-    QString javaObjInit;
+    QString javaObjIds;
+    QString javaObjNames;
+    QString javaObjCreate;
 
     for (int objidx = 0; objidx < parser->getNumObjects(); ++objidx) {
         ObjectInfo *info = parser->getObjectByIndex(objidx);
         process_object(info);
 
-        javaObjInit.append("\t\t\tobjMngr.registerObject( new " + info->name + "() );\n");
+        javaObjIds.append("\t\t" + info->name + ".OBJID,\n");
+        javaObjNames.append("\t\t" + info->name + ".NAME,\n");
+        javaObjCreate.append("\t\t\tcase " + info->name + ".OBJID:\n"
+                             "\t\t\t\treturn new " + info->name + "();\n");
         objInc.append("#include \"" + info->namelc + ".h\"\n");
     }
 
     // Write the gcs object inialization files
     javaInitTemplate.replace(QString("$(OBJINC)"), objInc);
-    javaInitTemplate.replace(QString("$(OBJINIT)"), javaObjInit);
+    javaInitTemplate.replace(QString("$(OBJIDS)"), javaObjIds);
+    javaInitTemplate.replace(QString("$(OBJNAMES)"), javaObjNames);
+    javaInitTemplate.replace(QString("$(OBJCREATE)"), javaObjCreate);
     bool res = writeFileIfDiffrent(javaOutputPath.absolutePath() + "/UAVObjectsInitialize.java", javaInitTemplate);
     if (!res) {
         cout << "Error: Could not write output files" << endl;
@@ -72,6 +82,77 @@ bool UAVObjectGeneratorJava::generate(UAVObjectParser *parser, QString templatep
 }
 
 
+/**
+ * Java expression reading one value of the given field type from the object data
+ */
+QString UAVObjectGeneratorJava::javaReadExpression(int type, QString pos)
+{
+    switch (type) {
+    case FIELDTYPE_INT8:
+    case FIELDTYPE_ENUM:
+        return QString("data.get(%1)").arg(pos);
+
+    case FIELDTYPE_INT16:
+        return QString("data.getShort(%1)").arg(pos);
+
+    case FIELDTYPE_INT32:
+        return QString("data.getInt(%1)").arg(pos);
+
+    case FIELDTYPE_UINT8:
+        return QString("(short)(data.get(%1) & 0xFF)").arg(pos);
+
+    case FIELDTYPE_UINT16:
+        return QString("data.getShort(%1) & 0xFFFF").arg(pos);
+
+    case FIELDTYPE_UINT32:
+        return QString("data.getInt(%1) & 0xFFFFFFFFL").arg(pos);
+
+    default:
+        return QString("data.getFloat(%1)").arg(pos);
+    }
+}
+
+/**
+ * Java statement writing one value of the given field type to the object data
+ */
+QString UAVObjectGeneratorJava::javaWriteStatement(int type, QString pos, QString value)
+{
+    switch (type) {
+    case FIELDTYPE_INT8:
+    case FIELDTYPE_ENUM:
+        return QString("data.put(%1, %2)").arg(pos).arg(value);
+
+    case FIELDTYPE_UINT8:
+        return QString("data.put(%1, (byte)%2)").arg(pos).arg(value);
+
+    case FIELDTYPE_INT16:
+        return QString("data.putShort(%1, %2)").arg(pos).arg(value);
+
+    case FIELDTYPE_UINT16:
+        return QString("data.putShort(%1, (short)%2)").arg(pos).arg(value);
+
+    case FIELDTYPE_INT32:
+        return QString("data.putInt(%1, %2)").arg(pos).arg(value);
+
+    case FIELDTYPE_UINT32:
+        return QString("data.putInt(%1, (int)%2)").arg(pos).arg(value);
+
+    default:
+        return QString("data.putFloat(%1, %2)").arg(pos).arg(value);
+    }
+}
+
+/**
+ * Java expression converting the generic setField value to the field type
+ */
+QString UAVObjectGeneratorJava::javaUnboxExpression(int type, int fieldIndex)
+{
+    if (type == FIELDTYPE_ENUM) {
+        return QString("(byte)enumOption(val, FIELDS[%1].getEnumOptions())").arg(fieldIndex);
+    }
+    return QString("((Number)val).%1Value()").arg(fieldTypeStrJava[type]);
+}
+
 /**
  * Generate the java object files
  */
@@ -105,133 +186,170 @@ bool UAVObjectGeneratorJava::process_object(ObjectInfo *info)
     }
     outInclude.replace(QString("$(DATAFIELDS)"), fields);
 
-    // Replace the $(FIELDSINIT) tag
-    QString finit;
+    // Compute the offsets of the fields in the object data
+    QList<int> offsets;
+    int numBytes = 0;
     for (int n = 0; n < info->fields.length(); ++n) {
-        finit.append("\n");
-
-        // Setup element names
-        QString varElemName   = info->fields[n]->name + "ElemNames";
-        finit.append(QString("\t\tList<String> %1 = new ArrayList<String>();\n").arg(varElemName));
-        QStringList elemNames = info->fields[n]->elementNames;
-        for (int m = 0; m < elemNames.length(); ++m) {
-            finit.append(QString("\t\t%1.add(\"%2\");\n")
-                         .arg(varElemName)
-                         .arg(elemNames[m]));
-        }
+        offsets.append(numBytes);
+        numBytes += info->fields[n]->numBytes * info->fields[n]->numElements;
+    }
+    outCode.replace(QString("$(NUMBYTES)"), QString().setNum(numBytes));
 
-        // Only for enum types
-        if (info->fields[n]->type == FIELDTYPE_ENUM) {
-            QString varOptionName = info->fields[n]->name + "EnumOptions";
-            finit.append(QString("\t\tList<String> %1 = new ArrayList<String>();\n").arg(varOptionName));
-            QStringList options   = info->fields[n]->options;
-            for (int m = 0; m < options.length(); ++m) {
-                finit.append(QString("\t\t%1.add(\"%2\");\n")
-                             .arg(varOptionName)
-                             .arg(options[m]));
-            }
-            finit.append(QString("\t\tfields.add( new UAVObjectField(\"%1\", \"%2\", UAVObjectField.FieldType.ENUM, %3, %4) );\n")
-                         .arg(info->fields[n]->name)
-                         .arg(info->fields[n]->units)
-                         .arg(varElemName)
-                         .arg(varOptionName));
-        }
-        // For all other types
-        else {
-            finit.append(QString("\t\tfields.add( new UAVObjectField(\"%1\", \"%2\", UAVObjectField.FieldType.%3, %4, null) );\n")
-                         .arg(info->fields[n]->name)
-                         .arg(info->fields[n]->units)
-                         .arg(fieldTypeStrCPPClass[info->fields[n]->type])
-                         .arg(varElemName));
+    // Replace the $(FIELDDESCRIPTIONS) tag
+    QString fdesc;
+    for (int n = 0; n < info->fields.length(); ++n) {
+        FieldInfo *field = info->fields[n];
+        QString options  = "null";
+        if (field->type == FIELDTYPE_ENUM) {
+            options = "new String[] { \"" + field->options.join("\", \"") + "\" }";
         }
+        fdesc.append(QString("\t\tnew UAVObjectFieldDescription(\"%1\", OBJID, (byte)%2, UAVObjectFieldDescription.FIELDTYPE_%3, \"%4\",\n"
+                             "\t\t\t%5,\n"
+                             "\t\t\tnew String[] { \"%6\" }),\n")
+                     .arg(field->name)
+                     .arg(n)
+                     .arg(fieldTypeStrCPPClass[field->type])
+                     .arg(field->units)
+                     .arg(options)
+                     .arg(field->elementNames.join("\", \"")));
     }
-    outCode.replace(QString("$(FIELDSINIT)"), finit);
+    outCode.replace(QString("$(FIELDDESCRIPTIONS)"), fdesc);
 
-    // Replace the $(DATAFIELDINFO) tag
-    QString name;
-    QString enums;
+    // Replace the $(FIELDCONSTANTS) tag
+    QString constants;
     for (int n = 0; n < info->fields.length(); ++n) {
-        enums.append(QString("    // Field %1 information\n").arg(info->fields[n]->name));
+        FieldInfo *field = info->fields[n];
+        QString prefix   = field->name.toUpper();
+        constants.append(QString("\t// Field %1 information\n").arg(field->name));
+        constants.append(QString("\tpublic static final int %1_OFFSET = %2;\n")
+                         .arg(prefix)
+                         .arg(offsets[n]));
         // Only for enum types
-        if (info->fields[n]->type == FIELDTYPE_ENUM) {
-            enums.append(QString("    /* Enumeration options for field %1 */\n").arg(info->fields[n]->name));
-            enums.append("    typedef enum { ");
-            // Go through each option
-            QStringList options = info->fields[n]->options;
+        if (field->type == FIELDTYPE_ENUM) {
+            QStringList options = field->options;
             for (int m = 0; m < options.length(); ++m) {
-                QString s = (m != (options.length() - 1)) ? "%1_%2=%3, " : "%1_%2=%3";
-                enums.append(s.arg(info->fields[n]->name.toUpper())
-                             .arg(options[m].toUpper().replace(QRegExp(ENUM_SPECIAL_CHARS), ""))
-                             .arg(m));
+                constants.append(QString("\tpublic static final byte %1_%2 = %3;\n")
+                                 .arg(prefix)
+                                 .arg(options[m].toUpper().replace(QRegExp(ENUM_SPECIAL_CHARS), ""))
+                                 .arg(m));
             }
-            enums.append(QString(" } %1Options;\n")
-                         .arg(info->fields[n]->name));
         }
         // Generate element names (only if field has more than one element)
-        if (info->fields[n]->numElements > 1 && !info->fields[n]->defaultElementNames) {
-            enums.append(QString("    /* Array element names for field %1 */\n").arg(info->fields[n]->name));
-            enums.append("    typedef enum { ");
-            // Go through the element names
-            QStringList elemNames = info->fields[n]->elementNames;
+        if (field->numElements > 1 && !field->defaultElementNames) {
+            QStringList elemNames = field->elementNames;
             for (int m = 0; m < elemNames.length(); ++m) {
-                QString s = (m != (elemNames.length() - 1)) ? "%1_%2=%3, " : "%1_%2=%3";
-                enums.append(s.arg(info->fields[n]->name.toUpper())
-                             .arg(elemNames[m].toUpper())
-                             .arg(m));
+                constants.append(QString("\tpublic static final int %1_%2 = %3;\n")
+                                 .arg(prefix)
+                                 .arg(elemNames[m].toUpper())
+                                 .arg(m));
             }
-            enums.append(QString(" } %1Elem;\n")
-                         .arg(info->fields[n]->name));
         }
         // Generate array information
-        if (info->fields[n]->numElements > 1) {
-            enums.append(QString("    /* Number of elements for field %1 */\n").arg(info->fields[n]->name));
-            enums.append(QString("    static const quint32 %1_NUMELEM = %2;\n")
-                         .arg(info->fields[n]->name.toUpper())
-                         .arg(info->fields[n]->numElements));
+        if (field->numElements > 1) {
+            constants.append(QString("\tpublic static final int %1_NUMELEM = %2;\n")
+                             .arg(prefix)
+                             .arg(field->numElements));
+        }
+    }
+    outCode.replace(QString("$(FIELDCONSTANTS)"), constants);
+
+    // Replace the $(FIELDACCESSORS), $(GETFIELDCASES) and $(SETFIELDCASES) tags
+    QString accessors;
+    QString getcases;
+    QString setcases;
+    for (int n = 0; n < info->fields.length(); ++n) {
+        FieldInfo *field = info->fields[n];
+        QString type     = fieldTypeStrJava[field->type];
+        QString name     = field->name.left(1).toUpper() + field->name.mid(1);
+        QString pos      = field->name.toUpper() + "_OFFSET";
+
+        if (field->numElements > 1) {
+            pos = QString("%1_OFFSET + checkIndex(idx, %1_NUMELEM) * %2")
+                  .arg(field->name.toUpper())
+                  .arg(field->numBytes);
+            accessors.append(QString("\tpublic %1 get%2(int idx) {\n"
+                                     "\t\treturn %3;\n"
+                                     "\t}\n\n"
+                                     "\tpublic void set%2(int idx, %1 value) {\n"
+                                     "\t\tint pos = %4;\n"
+                                     "\t\tbeginUpdate();\n"
+                                     "\t\t%5;\n"
+                                     "\t\tendUpdate(%6);\n"
+                                     "\t}\n\n")
+                             .arg(type)
+                             .arg(name)
+                             .arg(javaReadExpression(field->type, pos))
+                             .arg(pos)
+                             .arg(javaWriteStatement(field->type, "pos", "value"))
+                             .arg(n));
+            getcases.append(QString("\t\tcase %1:\n"
+                                    "\t\t\treturn get%2(arr_pos);\n")
+                            .arg(n).arg(name));
+            setcases.append(QString("\t\tcase %1:\n"
+                                    "\t\t\tset%2(arr_pos, %3);\n"
+                                    "\t\t\treturn;\n")
+                            .arg(n).arg(name)
+                            .arg(javaUnboxExpression(field->type, n)));
+        } else {
+            accessors.append(QString("\tpublic %1 get%2() {\n"
+                                     "\t\treturn %3;\n"
+                                     "\t}\n\n"
+                                     "\tpublic void set%2(%1 value) {\n"
+                                     "\t\tbeginUpdate();\n"
+                                     "\t\t%4;\n"
+                                     "\t\tendUpdate(%5);\n"
+                                     "\t}\n\n")
+                             .arg(type)
+                             .arg(name)
+                             .arg(javaReadExpression(field->type, pos))
+                             .arg(javaWriteStatement(field->type, pos, "value"))
+                             .arg(n));
+            getcases.append(QString("\t\tcase %1:\n"
+                                    "\t\t\treturn get%2();\n")
+                            .arg(n).arg(name));
+            setcases.append(QString("\t\tcase %1:\n"
+                                    "\t\t\tset%2(%3);\n"
+                                    "\t\t\treturn;\n")
+                            .arg(n).arg(name)
+                            .arg(javaUnboxExpression(field->type, n)));
         }
     }
-    outInclude.replace(QString("$(DATAFIELDINFO)"), enums);
+    outCode.replace(QString("$(FIELDACCESSORS)"), accessors);
+    outCode.replace(QString("$(GETFIELDCASES)"), getcases);
+    outCode.replace(QString("$(SETFIELDCASES)"), setcases);
 
     // Replace the $(INITFIELDS) tag
     QString initfields;
     for (int n = 0; n < info->fields.length(); ++n) {
-        if (!info->fields[n]->defaultValues.isEmpty()) {
-            // For non-array fields
-            if (info->fields[n]->numElements == 1) {
-                if (info->fields[n]->type == FIELDTYPE_ENUM) {
-                    initfields.append(QString("\t\tgetField(\"%1\").setValue(\"%2\");\n")
-                                      .arg(info->fields[n]->name)
-                                      .arg(info->fields[n]->defaultValues[0]));
-                } else if (info->fields[n]->type == FIELDTYPE_FLOAT32) {
-                    initfields.append(QString("\t\tgetField(\"%1\").setValue(%2);\n")
-                                      .arg(info->fields[n]->name)
-                                      .arg(info->fields[n]->defaultValues[0].toFloat()));
-                } else {
-                    initfields.append(QString("\t\tgetField(\"%1\").setValue(%2);\n")
-                                      .arg(info->fields[n]->name)
-                                      .arg(info->fields[n]->defaultValues[0].toInt()));
+        FieldInfo *field = info->fields[n];
+        if (field->defaultValues.isEmpty()) {
+            continue;
+        }
+        QString name = field->name.left(1).toUpper() + field->name.mid(1);
+        for (int idx = 0; idx < field->numElements; ++idx) {
+            QString value;
+            if (field->type == FIELDTYPE_ENUM) {
+                int option = field->options.indexOf(field->defaultValues[idx]);
+                if (option < 0) {
+                    cerr << "Warning: invalid default value " << qPrintable(field->defaultValues[idx])
+                         << " for " << qPrintable(info->name) << "." << qPrintable(field->name) << endl;
+                    option = 0;
                 }
+                value = QString().setNum(option);
+            } else if (field->type == FIELDTYPE_FLOAT32) {
+                value = QString("%1f").arg(field->defaultValues[idx].toFloat());
             } else {
-                // Initialize all fields in the array
-                for (int idx = 0; idx < info->fields[n]->numElements; ++idx) {
-                    if (info->fields[n]->type == FIELDTYPE_ENUM) {
-                        initfields.append(QString("\t\tgetField(\"%1\").setValue(\"%3\",%2);\n")
-                                          .arg(info->fields[n]->name)
-                                          .arg(idx)
-                                          .arg(info->fields[n]->defaultValues[idx]));
-                    } else if (info->fields[n]->type == FIELDTYPE_FLOAT32) {
-                        initfields.append(QString("\t\tgetField(\"%1\").setValue(%3,%2);\n")
-                                          .arg(info->fields[n]->name)
-                                          .arg(idx)
-                                          .arg(info->fields[n]->defaultValues[idx].toFloat()));
-                    } else {
-                        initfields.append(QString("\t\tgetField(\"%1\").setValue(%3,%2);\n")
-                                          .arg(info->fields[n]->name)
-                                          .arg(idx)
-                                          .arg(info->fields[n]->defaultValues[idx].toInt()));
-                    }
+                value = QString().setNum(field->defaultValues[idx].toLongLong());
+                if (field->type == FIELDTYPE_UINT32) {
+                    value.append("L");
                 }
             }
+            value = QString("(%1)%2").arg(fieldTypeStrJava[field->type]).arg(value);
+            if (field->numElements > 1) {
+                initfields.append(QString("\t\tset%1(%2, %3);\n").arg(name).arg(idx).arg(value));
+            } else {
+                initfields.append(QString("\t\tset%1(%2);\n").arg(name).arg(value));
+            }
         }
     }
 
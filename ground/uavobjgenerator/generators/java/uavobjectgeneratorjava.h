@@ -38,9 +38,12 @@ public:
 
 private:
     bool process_object(ObjectInfo *info);
+    QString javaReadExpression(int type, QString pos);
+    QString javaWriteStatement(int type, QString pos, QString value);
+    QString javaUnboxExpression(int type, int fieldIndex);
 
     QString javaCodeTemplate, javaIncludeTemplate;
-    QStringList fieldTypeStrCPP, fieldTypeStrCPPClass;
+    QStringList fieldTypeStrCPP, fieldTypeStrCPPClass, fieldTypeStrJava;
     QDir javaCodePath;
     QDir javaOutputPath;
 };